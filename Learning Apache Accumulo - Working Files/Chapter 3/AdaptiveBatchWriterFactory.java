@@ -0,0 +1,292 @@
+package com.oreilly.accumulotraining;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.accumulo.core.client.BatchWriter;
+import org.apache.accumulo.core.client.BatchWriterConfig;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.Durability;
+import org.apache.accumulo.core.client.MultiTableBatchWriter;
+import org.apache.accumulo.core.client.MutationsRejectedException;
+import org.apache.accumulo.core.client.TableNotFoundException;
+import org.apache.accumulo.core.data.Mutation;
+
+/**
+ * Creates BatchWriters whose memory, latency and thread settings follow the
+ * observed write rate instead of being hard-coded in each client.
+ *
+ * The first writer starts with two write threads per tablet server. Each
+ * writer then measures the bytes it is given, how long addMutation blocks
+ * and how long flushes take. Once per window it picks a buffer large enough
+ * to hold bufferSeconds worth of writes and adds threads while the servers
+ * can't keep up. BatchWriterConfig is fixed once a writer is built, so a
+ * significant change is applied by closing the underlying writer and opening
+ * a new one. Every choice is logged so the settings can be pinned later.
+ */
+public class AdaptiveBatchWriterFactory {
+
+	private static final Logger logger = Logger.getLogger(AdaptiveBatchWriterFactory.class.getName());
+
+	private static final long DEFAULT_INITIAL_MEMORY = 16L * 1024 * 1024;
+	private static final int THREADS_PER_SERVER = 2;
+
+	private long minMemory = 1024L * 1024;
+	private long maxMemory = 256L * 1024 * 1024;
+	private long minLatencyMillis = 100;
+	private long maxLatencyMillis = 10000;
+	private int minWriteThreads = 2;
+	private int maxWriteThreads = 64;
+	private double bufferSeconds = 2.0;
+	private long windowMillis = 10000;
+	private Durability durability = Durability.DEFAULT;
+
+	// last settings picked, used as the starting point for the next writer
+	private long memory = -1;
+	private long latencyMillis = -1;
+	private int writeThreads = -1;
+
+	public AdaptiveBatchWriterFactory setMemoryBounds(long minMemory, long maxMemory) {
+		this.minMemory = minMemory;
+		this.maxMemory = maxMemory;
+		return this;
+	}
+
+	public AdaptiveBatchWriterFactory setLatencyBounds(long min, long max, TimeUnit unit) {
+		this.minLatencyMillis = unit.toMillis(min);
+		this.maxLatencyMillis = unit.toMillis(max);
+		return this;
+	}
+
+	public AdaptiveBatchWriterFactory setWriteThreadBounds(int minWriteThreads, int maxWriteThreads) {
+		this.minWriteThreads = minWriteThreads;
+		this.maxWriteThreads = maxWriteThreads;
+		return this;
+	}
+
+	/**
+	 * How many seconds of observed throughput the client buffer should hold
+	 *
+	 * @param bufferSeconds
+	 * @return
+	 */
+	public AdaptiveBatchWriterFactory setBufferSeconds(double bufferSeconds) {
+		this.bufferSeconds = bufferSeconds;
+		return this;
+	}
+
+	/**
+	 * How often each writer re-evaluates its settings
+	 *
+	 * @param window
+	 * @param unit
+	 * @return
+	 */
+	public AdaptiveBatchWriterFactory setWindow(long window, TimeUnit unit) {
+		this.windowMillis = unit.toMillis(window);
+		return this;
+	}
+
+	public AdaptiveBatchWriterFactory setDurability(Durability durability) {
+		this.durability = durability;
+		return this;
+	}
+
+	/**
+	 * Returns a writer for table that tunes itself as it is used
+	 *
+	 * @param connector
+	 * @param table
+	 * @return
+	 * @throws TableNotFoundException
+	 */
+	public BatchWriter createBatchWriter(Connector connector, String table)
+			throws TableNotFoundException {
+
+		return new AdaptiveBatchWriter(connector, table, newConfig(connector));
+	}
+
+	/**
+	 * MultiTableBatchWriters cannot be swapped out behind the BatchWriters
+	 * they hand out, so these only get the initial pick
+	 *
+	 * @param connector
+	 * @return
+	 */
+	public MultiTableBatchWriter createMultiTableBatchWriter(Connector connector) {
+		return connector.createMultiTableBatchWriter(newConfig(connector));
+	}
+
+	/**
+	 * The settings the next writer would start with
+	 *
+	 * @param connector
+	 * @return
+	 */
+	public synchronized BatchWriterConfig newConfig(Connector connector) {
+
+		if(writeThreads < 0) {
+			int servers = connector.instanceOperations().getTabletServers().size();
+
+			memory = clamp(DEFAULT_INITIAL_MEMORY, minMemory, maxMemory);
+			latencyMillis = clamp((long) (bufferSeconds * 1000), minLatencyMillis, maxLatencyMillis);
+			writeThreads = (int) clamp(Math.max(1, servers) * THREADS_PER_SERVER, minWriteThreads, maxWriteThreads);
+
+			logger.info("initial batch writer settings for " + servers + " tablet servers: " + describe());
+		}
+
+		return toConfig();
+	}
+
+	private synchronized BatchWriterConfig toConfig() {
+		BatchWriterConfig config = new BatchWriterConfig();
+		config.setMaxMemory(memory);
+		config.setMaxLatency(latencyMillis, TimeUnit.MILLISECONDS);
+		config.setMaxWriteThreads(writeThreads);
+		config.setDurability(durability);
+		return config;
+	}
+
+	private String describe() {
+		return "maxMemory=" + memory
+				+ " maxLatency=" + latencyMillis + "ms"
+				+ " maxWriteThreads=" + writeThreads;
+	}
+
+	/**
+	 * Picks new settings from one window of measurements and returns
+	 * whether they differ enough from the current ones to be worth
+	 * rebuilding the writer
+	 */
+	private synchronized boolean adjust(String table, long bytes, long elapsedNanos, long blockedNanos, long flushNanos, int flushes) {
+
+		double seconds = elapsedNanos / 1e9;
+		double bytesPerSecond = bytes / seconds;
+		double blockedFraction = blockedNanos / (double) elapsedNanos;
+		long averageFlushMillis = flushes == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(flushNanos / flushes);
+
+		long newMemory = clamp((long) (bytesPerSecond * bufferSeconds), minMemory, maxMemory);
+
+		// a flush drains the whole buffer, so it bounds how long buffered
+		// mutations can sit before they are sent anyway
+		long newLatency = clamp(Math.max((long) (bufferSeconds * 1000), averageFlushMillis), minLatencyMillis, maxLatencyMillis);
+
+		// spending a large share of the time blocked in addMutation means the
+		// buffer is full and the servers are not draining it fast enough
+		int newThreads = writeThreads;
+		if(blockedFraction > 0.25 || averageFlushMillis > newLatency) {
+			newThreads = (int) clamp(writeThreads * 2L, minWriteThreads, maxWriteThreads);
+		}
+
+		logger.fine(table + ": " + (long) bytesPerSecond + " bytes/sec, "
+				+ (int) (blockedFraction * 100) + "% blocked, average flush " + averageFlushMillis + "ms");
+
+		boolean significant = newThreads != writeThreads
+				|| newMemory > memory * 2
+				|| newMemory < memory / 2;
+
+		if(significant) {
+			memory = newMemory;
+			latencyMillis = newLatency;
+			writeThreads = newThreads;
+
+			logger.info("adjusted batch writer settings for " + table + " at "
+					+ (long) bytesPerSecond + " bytes/sec: " + describe());
+		}
+
+		return significant;
+	}
+
+	private static long clamp(long value, long min, long max) {
+		return Math.max(min, Math.min(max, value));
+	}
+
+	/**
+	 * Forwards to a regular BatchWriter and replaces it when the factory
+	 * picks significantly different settings
+	 */
+	private class AdaptiveBatchWriter implements BatchWriter {
+
+		private final Connector connector;
+		private final String table;
+
+		private BatchWriter writer;
+
+		private long windowStart = System.nanoTime();
+		private long bytes = 0;
+		private long blockedNanos = 0;
+		private long flushNanos = 0;
+		private int flushes = 0;
+
+		AdaptiveBatchWriter(Connector connector, String table, BatchWriterConfig config)
+				throws TableNotFoundException {
+
+			this.connector = connector;
+			this.table = table;
+			this.writer = connector.createBatchWriter(table, config);
+		}
+
+		@Override
+		public synchronized void addMutation(Mutation m) throws MutationsRejectedException {
+
+			long start = System.nanoTime();
+			writer.addMutation(m);
+			long end = System.nanoTime();
+
+			bytes += m.numBytes();
+			blockedNanos += end - start;
+
+			maybeAdjust(end);
+		}
+
+		@Override
+		public synchronized void addMutations(Iterable<Mutation> iterable) throws MutationsRejectedException {
+			for(Mutation m : iterable) {
+				addMutation(m);
+			}
+		}
+
+		@Override
+		public synchronized void flush() throws MutationsRejectedException {
+
+			long start = System.nanoTime();
+			writer.flush();
+
+			flushNanos += System.nanoTime() - start;
+			flushes++;
+		}
+
+		@Override
+		public synchronized void close() throws MutationsRejectedException {
+			writer.close();
+		}
+
+		private void maybeAdjust(long now) throws MutationsRejectedException {
+
+			long elapsed = now - windowStart;
+			if(elapsed < TimeUnit.MILLISECONDS.toNanos(windowMillis)) {
+				return;
+			}
+
+			try {
+				if(adjust(table, bytes, elapsed, blockedNanos, flushNanos, flushes)) {
+					try {
+						BatchWriter replaced = writer;
+						writer = connector.createBatchWriter(table, toConfig());
+						// if this rejects what the old writer still held, the new one is already in use
+						replaced.close();
+					} catch (TableNotFoundException ex) {
+						logger.log(Level.WARNING, "keeping previous batch writer settings for " + table, ex);
+					}
+				}
+			} finally {
+				windowStart = now;
+				bytes = 0;
+				blockedNanos = 0;
+				flushNanos = 0;
+				flushes = 0;
+			}
+		}
+	}
+}
@@ -0,0 +1,235 @@
+package com.oreilly.accumulotraining;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.accumulo.core.client.IteratorSetting;
+import org.apache.accumulo.core.data.ByteSequence;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.PartialKey;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.IteratorEnvironment;
+import org.apache.accumulo.core.iterators.OptionDescriber;
+import org.apache.accumulo.core.iterators.SortedKeyValueIterator;
+import org.apache.accumulo.core.iterators.WrappingIterator;
+
+/**
+ * Runs on the tablet servers and reduces the entries it reads to their
+ * count, sum, minimum and maximum, so a rollup over a range of the energy
+ * table sends a few partial results across the network instead of every
+ * quantity.
+ *
+ * Entries are grouped by row, by row and column family, or not at all, in
+ * which case each range the iterator is seeked to is one group; a client
+ * that splits its range at tablet boundaries gets one result per tablet.
+ * Each group comes back as one entry, at the last key of the group, with
+ * the Stats of its values. Resuming a scan after that key starts the next
+ * group, so no group is split or counted twice. Values are read as decimal
+ * numbers, as IngestClient writes quantities; the rest are skipped.
+ */
+public class AggregateIterator extends WrappingIterator implements OptionDescriber {
+
+	public static final String GROUP_OPTION = "group";
+
+	public enum Group {
+		RANGE, ROW, FAMILY
+	}
+
+	private Group group = Group.RANGE;
+	private Map<String, String> options;
+
+	private Key topKey = null;
+	private Value topValue = null;
+
+	/**
+	 * @param setting
+	 * @param group which entries are reduced together
+	 */
+	public static void setGroup(IteratorSetting setting, Group group) {
+		setting.addOption(GROUP_OPTION, group.name());
+	}
+
+	@Override
+	public void init(SortedKeyValueIterator<Key, Value> source, Map<String, String> options, IteratorEnvironment env)
+			throws IOException {
+		super.init(source, options, env);
+
+		this.options = new HashMap<>(options);
+		if(options.containsKey(GROUP_OPTION)) {
+			group = Group.valueOf(options.get(GROUP_OPTION));
+		}
+	}
+
+	@Override
+	public SortedKeyValueIterator<Key, Value> deepCopy(IteratorEnvironment env) {
+		AggregateIterator copy = new AggregateIterator();
+		try {
+			copy.init(getSource().deepCopy(env), options, env);
+		} catch (IOException ex) {
+			throw new IllegalStateException(ex);
+		}
+		return copy;
+	}
+
+	@Override
+	public void seek(Range range, Collection<ByteSequence> columnFamilies, boolean inclusive) throws IOException {
+		super.seek(range, columnFamilies, inclusive);
+		findTop();
+	}
+
+	@Override
+	public boolean hasTop() {
+		return topKey != null;
+	}
+
+	@Override
+	public Key getTopKey() {
+		return topKey;
+	}
+
+	@Override
+	public Value getTopValue() {
+		return topValue;
+	}
+
+	@Override
+	public void next() throws IOException {
+		findTop();
+	}
+
+	@Override
+	public IteratorOptions describeOptions() {
+		Map<String, String> described = new HashMap<>();
+		described.put(GROUP_OPTION, "RANGE, ROW or FAMILY (default RANGE)");
+		return new IteratorOptions("aggregate", "reduces numeric values to their count, sum, min and max",
+				described, null);
+	}
+
+	@Override
+	public boolean validateOptions(Map<String, String> options) {
+		if(options.containsKey(GROUP_OPTION)) {
+			Group.valueOf(options.get(GROUP_OPTION));
+		}
+		return true;
+	}
+
+	/**
+	 * Reads the source up to the end of the next group with a number in it
+	 */
+	private void findTop() throws IOException {
+		topKey = null;
+		topValue = null;
+
+		SortedKeyValueIterator<Key, Value> source = getSource();
+		while(topKey == null && source.hasTop()) {
+			Stats stats = new Stats();
+			Key last = null;
+			while(source.hasTop() && (last == null || sameGroup(source.getTopKey(), last))) {
+				Value v = source.getTopValue();
+				try {
+					stats.add(Double.parseDouble(new String(v.get(), 0, v.getSize(), StandardCharsets.US_ASCII)));
+				} catch (NumberFormatException ex) {
+					// not a quantity
+				}
+				// the source reuses its key, so keep a copy
+				last = new Key(source.getTopKey());
+				source.next();
+			}
+			if(stats.getCount() > 0) {
+				topKey = last;
+				topValue = stats.toValue();
+			}
+		}
+	}
+
+	private boolean sameGroup(Key key, Key last) {
+		switch(group) {
+			case ROW:
+				return key.equals(last, PartialKey.ROW);
+			case FAMILY:
+				return key.equals(last, PartialKey.ROW_COLFAM);
+			default:
+				return true;
+		}
+	}
+
+	/**
+	 * Count, sum, minimum and maximum of a set of numbers, which partial
+	 * results from several tablets add up into
+	 */
+	public static class Stats {
+
+		private static final int ENCODED_LENGTH = 32;
+
+		private long count = 0;
+		private double sum = 0;
+		private double min = Double.POSITIVE_INFINITY;
+		private double max = Double.NEGATIVE_INFINITY;
+
+		/**
+		 * @param value a value returned by AggregateIterator
+		 * @return
+		 * @throws IllegalArgumentException if value isn't one
+		 */
+		public static Stats fromValue(Value value) {
+			if(value.getSize() != ENCODED_LENGTH) {
+				throw new IllegalArgumentException("not aggregate stats: " + value.getSize() + " bytes");
+			}
+			ByteBuffer buffer = ByteBuffer.wrap(value.get());
+			Stats stats = new Stats();
+			stats.count = buffer.getLong();
+			stats.sum = buffer.getDouble();
+			stats.min = buffer.getDouble();
+			stats.max = buffer.getDouble();
+			return stats;
+		}
+
+		public void add(double number) {
+			count++;
+			sum += number;
+			min = Math.min(min, number);
+			max = Math.max(max, number);
+		}
+
+		public void add(Stats other) {
+			count += other.count;
+			sum += other.sum;
+			min = Math.min(min, other.min);
+			max = Math.max(max, other.max);
+		}
+
+		public Value toValue() {
+			ByteBuffer buffer = ByteBuffer.allocate(ENCODED_LENGTH);
+			buffer.putLong(count).putDouble(sum).putDouble(min).putDouble(max);
+			return new Value(buffer.array());
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public double getSum() {
+			return sum;
+		}
+
+		public double getMin() {
+			return min;
+		}
+
+		public double getMax() {
+			return max;
+		}
+
+		/**
+		 * @return the mean, NaN if there are no numbers
+		 */
+		public double getMean() {
+			return count == 0 ? Double.NaN : sum / count;
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package com.oreilly.accumulotraining;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size queue that any number of threads can offer to and poll from
+ * without locks, after Dmitry Vyukov's bounded MPMC queue.
+ *
+ * Every slot carries a sequence number saying whose turn it is. A producer
+ * claims the slot at the tail by moving the tail forward with a CAS once
+ * the slot's sequence shows it is empty, stores the element and then
+ * publishes it by advancing the sequence. Consumers do the same at the
+ * head. Neither side ever waits on the other: offer() returns false when
+ * the buffer is full and poll() returns null when it is empty, leaving the
+ * caller to decide how to wait.
+ *
+ * @param <E>
+ */
+public class BoundedRingBuffer<E> {
+
+	private final Object[] slots;
+	private final AtomicLongArray sequences;
+	private final int mask;
+
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicLong head = new AtomicLong();
+
+	/**
+	 * @param capacity rounded up to a power of two
+	 */
+	public BoundedRingBuffer(int capacity) {
+
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+
+		slots = new Object[size];
+		sequences = new AtomicLongArray(size);
+		mask = size - 1;
+
+		for(int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+	}
+
+	/**
+	 * @param e
+	 * @return false if the buffer is full
+	 */
+	public boolean offer(E e) {
+
+		long position = tail.get();
+		int index;
+
+		while(true) {
+			index = (int) position & mask;
+			long difference = sequences.get(index) - position;
+
+			if(difference == 0) {
+				if(tail.compareAndSet(position, position + 1)) {
+					break;
+				}
+				position = tail.get();
+			} else if(difference < 0) {
+				return false;
+			} else {
+				// another producer took this slot first
+				position = tail.get();
+			}
+		}
+
+		slots[index] = e;
+		sequences.lazySet(index, position + 1);
+		return true;
+	}
+
+	/**
+	 * @return the oldest element, or null if the buffer is empty
+	 */
+	@SuppressWarnings("unchecked")
+	public E poll() {
+
+		long position = head.get();
+		int index;
+
+		while(true) {
+			index = (int) position & mask;
+			long difference = sequences.get(index) - (position + 1);
+
+			if(difference == 0) {
+				if(head.compareAndSet(position, position + 1)) {
+					break;
+				}
+				position = head.get();
+			} else if(difference < 0) {
+				return null;
+			} else {
+				position = head.get();
+			}
+		}
+
+		E e = (E) slots[index];
+		slots[index] = null;
+		sequences.lazySet(index, position + mask + 1);
+		return e;
+	}
+
+	/**
+	 * Number of elements, exact only when no other thread is active
+	 *
+	 * @return
+	 */
+	public int size() {
+		return (int) Math.max(0, tail.get() - head.get());
+	}
+
+	public int capacity() {
+		return slots.length;
+	}
+}
@@ -0,0 +1,498 @@
+package com.oreilly.accumulotraining;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.logging.Logger;
+
+import org.apache.accumulo.core.client.AccumuloException;
+import org.apache.accumulo.core.client.AccumuloSecurityException;
+import org.apache.accumulo.core.client.BatchWriter;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.MutationsRejectedException;
+import org.apache.accumulo.core.client.TableNotFoundException;
+import org.apache.accumulo.core.client.rfile.RFile;
+import org.apache.accumulo.core.client.rfile.RFileWriter;
+import org.apache.accumulo.core.data.ColumnUpdate;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.PartialKey;
+import org.apache.accumulo.core.data.Value;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+
+/**
+ * Loads data into a table by writing sorted RFiles and importing them with
+ * importDirectory, bypassing the write-ahead log and minor compactions.
+ *
+ * The writer looks like a BatchWriter, so the same RecordHandlers used for
+ * live ingest can feed it. Mutations are broken into key/value pairs and
+ * buffered; when the buffer exceeds maxMemory it is sorted and spilled to a
+ * local run file. Closing the writer merges the runs and writes one RFile
+ * per tablet of the table's current splits.
+ *
+ * A run or RFile that can't be written, for example on a full disk, stops
+ * the load: later mutations are dropped, the runs and partial files are
+ * deleted and importInto() throws the IOException.
+ *
+ * Imported files are stamped with the import time, as the tablet servers
+ * would have done for live writes. When the same key is written more than
+ * once, only the last value is kept unless the table combines them, which
+ * matches what a scan of a live-written table returns.
+ */
+public class BulkIngest {
+
+	private static final Logger logger = Logger.getLogger(BulkIngest.class.getName());
+
+	public static final long DEFAULT_MAX_MEMORY = 256L * 1024 * 1024;
+
+	// rough per-entry cost of the buffered objects besides the raw bytes
+	private static final int ENTRY_OVERHEAD = 128;
+
+	/**
+	 * Creates a writer whose files are staged under workDir/table
+	 *
+	 * @param connector
+	 * @param fs file system shared with the tablet servers
+	 * @param workDir
+	 * @param table
+	 * @param combined true if the table has a combiner that should see every value
+	 * @return
+	 * @throws TableNotFoundException
+	 * @throws AccumuloSecurityException
+	 * @throws AccumuloException
+	 */
+	public static Writer createWriter(
+			Connector connector,
+			FileSystem fs,
+			String workDir,
+			String table,
+			boolean combined)
+			throws TableNotFoundException, AccumuloSecurityException, AccumuloException {
+
+		SortedSet<Text> splits = new TreeSet<>(connector.tableOperations().listSplits(table));
+		return new Writer(connector, fs, new Path(workDir, table), table, splits, combined, DEFAULT_MAX_MEMORY);
+	}
+
+	/**
+	 * A BatchWriter that sorts everything it is given into RFiles, which are
+	 * imported into the table by importInto()
+	 */
+	public static class Writer implements BatchWriter {
+
+		private final Connector connector;
+		private final FileSystem fs;
+		private final Path dir;
+		private final String table;
+		private final List<Text> splits;
+		private final boolean combined;
+		private final long maxMemory;
+
+		private final List<Entry> buffer = new ArrayList<>();
+		private final List<File> runs = new ArrayList<>();
+		private long buffered = 0;
+		private long sequence = 0;
+		private boolean closed = false;
+		private IOException failure = null;
+
+		Writer(
+				Connector connector,
+				FileSystem fs,
+				Path dir,
+				String table,
+				SortedSet<Text> splits,
+				boolean combined,
+				long maxMemory) {
+
+			this.connector = connector;
+			this.fs = fs;
+			this.dir = dir;
+			this.table = table;
+			this.splits = new ArrayList<>(splits);
+			this.combined = combined;
+			this.maxMemory = maxMemory;
+		}
+
+		@Override
+		public synchronized void addMutation(Mutation m) throws MutationsRejectedException {
+
+			if(failure != null) {
+				return;
+			}
+
+			byte[] row = m.getRow();
+
+			for(ColumnUpdate update : m.getUpdates()) {
+				Key key = new Key(
+						row,
+						update.getColumnFamily(),
+						update.getColumnQualifier(),
+						update.getColumnVisibility(),
+						update.hasTimestamp() ? update.getTimestamp() : Long.MAX_VALUE,
+						update.isDeleted(),
+						false);
+
+				Value value = new Value(update.getValue(), false);
+
+				buffer.add(new Entry(key, value, sequence++));
+				buffered += key.getSize() + value.getSize() + ENTRY_OVERHEAD;
+			}
+
+			if(buffered >= maxMemory) {
+				try {
+					spill();
+				} catch (IOException ex) {
+					fail(ex);
+				}
+			}
+		}
+
+		@Override
+		public void addMutations(Iterable<Mutation> iterable) throws MutationsRejectedException {
+			for(Mutation m : iterable) {
+				addMutation(m);
+			}
+		}
+
+		/**
+		 * Nothing is visible until the files are imported, so there is
+		 * nothing to flush
+		 */
+		@Override
+		public void flush() {
+		}
+
+		/**
+		 * Merges everything written so far into RFiles under dir/files. A
+		 * failure is kept for importInto() to throw.
+		 */
+		@Override
+		public synchronized void close() throws MutationsRejectedException {
+
+			if(closed) {
+				return;
+			}
+			closed = true;
+
+			if(failure != null) {
+				return;
+			}
+			try {
+				writeFiles();
+			} catch (IOException ex) {
+				fail(ex);
+			}
+		}
+
+		/**
+		 * Closes the writer and imports its files into the table
+		 *
+		 * @throws MutationsRejectedException
+		 * @throws IOException
+		 * @throws TableNotFoundException
+		 * @throws AccumuloException
+		 * @throws AccumuloSecurityException
+		 */
+		public void importInto()
+				throws MutationsRejectedException, IOException, TableNotFoundException, AccumuloException, AccumuloSecurityException {
+
+			close();
+			synchronized(this) {
+				if(failure != null) {
+					throw new IOException("could not write files for " + table, failure);
+				}
+			}
+
+			Path failures = new Path(dir, "failures");
+			fs.delete(failures, true);
+			fs.mkdirs(failures);
+
+			connector.tableOperations().importDirectory(
+					table,
+					new Path(dir, "files").toString(),
+					failures.toString(),
+					true);
+
+			if(fs.listStatus(failures).length > 0) {
+				throw new IOException("some files could not be imported into " + table + ", see " + failures);
+			}
+		}
+
+		private void spill() throws IOException {
+
+			Collections.sort(buffer);
+
+			File run = File.createTempFile("bulk-" + table + "-", ".run");
+			run.deleteOnExit();
+			// added first so a failed write is deleted with the others
+			runs.add(run);
+
+			try (DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(run), 64 * 1024))) {
+
+				for(Entry e : buffer) {
+					e.key.write(out);
+					e.value.write(out);
+				}
+			}
+
+			logger.fine("spilled " + buffer.size() + " entries for " + table + " to " + run);
+
+			buffer.clear();
+			buffered = 0;
+		}
+
+		private void writeFiles() throws IOException {
+
+			Path files = new Path(dir, "files");
+			fs.delete(files, true);
+			fs.mkdirs(files);
+
+			Iterator<Entry> sorted;
+			List<RunReader> readers = new ArrayList<>();
+
+			if(runs.isEmpty()) {
+				Collections.sort(buffer);
+				sorted = buffer.iterator();
+			} else {
+				if(!buffer.isEmpty()) {
+					spill();
+				}
+				for(int i = 0; i < runs.size(); i++) {
+					readers.add(new RunReader(runs.get(i), i));
+				}
+				sorted = new MergingIterator(readers);
+			}
+
+			try {
+				writeTablets(files, sorted);
+			} catch (IOException | UncheckedIOException ex) {
+				fs.delete(files, true);
+				throw ex instanceof UncheckedIOException ? ((UncheckedIOException) ex).getCause() : (IOException) ex;
+			} finally {
+				for(RunReader reader : readers) {
+					reader.close();
+				}
+				for(File run : runs) {
+					run.delete();
+				}
+				buffer.clear();
+			}
+		}
+
+		private void writeTablets(Path files, Iterator<Entry> sorted) throws IOException {
+
+			TabletFiles out = new TabletFiles(files);
+			Entry pending = null;
+
+			try {
+				while(sorted.hasNext()) {
+					Entry next = sorted.next();
+
+					// equal keys arrive in write order; keep only the last unless combined
+					if(pending != null && (combined || !pending.key.equals(next.key, PartialKey.ROW_COLFAM_COLQUAL_COLVIS_TIME_DEL))) {
+						out.append(pending);
+					}
+					pending = next;
+				}
+
+				if(pending != null) {
+					out.append(pending);
+				}
+			} finally {
+				out.close();
+			}
+
+			logger.info("wrote " + out.entries + " entries for " + table + " into " + out.fileCount + " files");
+		}
+
+		/**
+		 * Starts a new RFile whenever the sorted keys cross into the next tablet
+		 */
+		private class TabletFiles {
+
+			private final Path files;
+			private RFileWriter out = null;
+			private int tablet = -1;
+			int fileCount = 0;
+			long entries = 0;
+
+			TabletFiles(Path files) {
+				this.files = files;
+			}
+
+			void append(Entry e) throws IOException {
+
+				int t = tabletFor(e.key.getRow());
+				if(out == null || t != tablet) {
+					close();
+					tablet = t;
+					out = RFile.newWriter()
+							.to(new Path(files, String.format("part-%05d.rf", fileCount++)).toString())
+							.withFileSystem(fs)
+							.build();
+				}
+
+				out.append(e.key, e.value);
+				entries++;
+			}
+
+			void close() throws IOException {
+				if(out != null) {
+					out.close();
+					out = null;
+				}
+			}
+		}
+
+		/**
+		 * Keeps the first failure and drops what was buffered and spilled
+		 */
+		private void fail(IOException ex) {
+			logger.warning("bulk load of " + table + " failed: " + ex);
+			failure = ex;
+			buffer.clear();
+			buffered = 0;
+			for(File run : runs) {
+				run.delete();
+			}
+			runs.clear();
+		}
+
+		/**
+		 * Index of the tablet holding row; tablet i ends at split i
+		 */
+		private int tabletFor(Text row) {
+			int index = Collections.binarySearch(splits, row);
+			return index >= 0 ? index : -index - 1;
+		}
+	}
+
+	/**
+	 * A buffered key/value pair, ordered by key and then by the order it
+	 * was written in
+	 */
+	private static class Entry implements Comparable<Entry> {
+
+		final Key key;
+		final Value value;
+		final long sequence;
+
+		Entry(Key key, Value value, long sequence) {
+			this.key = key;
+			this.value = value;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public int compareTo(Entry o) {
+			int c = key.compareTo(o.key);
+			return c != 0 ? c : Long.compare(sequence, o.sequence);
+		}
+	}
+
+	/**
+	 * Reads back a spilled run. Runs are numbered in the order they were
+	 * spilled, which preserves write order between equal keys.
+	 */
+	private static class RunReader {
+
+		private final DataInputStream in;
+		private final int number;
+		private Entry current;
+
+		RunReader(File run, int number) throws IOException {
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), 64 * 1024));
+			this.number = number;
+			advance();
+		}
+
+		Entry current() {
+			return current;
+		}
+
+		void advance() throws IOException {
+			Key key = new Key();
+			Value value = new Value();
+			try {
+				key.readFields(in);
+				value.readFields(in);
+				current = new Entry(key, value, number);
+			} catch (EOFException ex) {
+				current = null;
+			}
+		}
+
+		void close() throws IOException {
+			in.close();
+		}
+	}
+
+	/**
+	 * K-way merge of sorted runs
+	 */
+	private static class MergingIterator implements Iterator<Entry> {
+
+		private final PriorityQueue<RunReader> heap;
+
+		MergingIterator(List<RunReader> readers) {
+
+			heap = new PriorityQueue<>(Math.max(1, readers.size()), new Comparator<RunReader>() {
+
+				@Override
+				public int compare(RunReader a, RunReader b) {
+					return a.current().compareTo(b.current());
+				}
+			});
+
+			for(RunReader reader : readers) {
+				if(reader.current() != null) {
+					heap.add(reader);
+				}
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return !heap.isEmpty();
+		}
+
+		@Override
+		public Entry next() {
+			RunReader reader = heap.poll();
+			Entry e = reader.current();
+
+			try {
+				reader.advance();
+			} catch (IOException ex) {
+				throw new UncheckedIOException("could not read sorted run", ex);
+			}
+
+			if(reader.current() != null) {
+				heap.add(reader);
+			}
+			return e;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException("Not supported.");
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package com.oreilly.accumulotraining;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.Scanner;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.PartialKey;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.security.Authorizations;
+import org.apache.accumulo.minicluster.MiniAccumuloCluster;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Checks that bulk loading gives the same tables as writing Mutations.
+ *
+ * Starts a MiniAccumuloCluster in a temporary directory, loads the file
+ * with run() and runBulk() of IngestClient, IteratorClient and
+ * IndexIngestClient into separate tables, and compares each pair entry by
+ * entry: row, column family, qualifier, visibility and value. Timestamps
+ * differ between the two and are ignored. Fails on the first difference,
+ * or if a pair of tables is empty.
+ *
+ * usage: BulkIngestCheck file.csv
+ */
+public class BulkIngestCheck {
+
+	private static final String PASSWORD = "secret";
+
+	public static void main(String[] args) throws Exception {
+
+		String filename = args[0];
+
+		File dir = Files.createTempDirectory("bulk-ingest-check").toFile();
+		MiniAccumuloCluster cluster = new MiniAccumuloCluster(dir, PASSWORD);
+		cluster.start();
+
+		try {
+			String instanceName = cluster.getInstanceName();
+			String zookeepers = cluster.getZooKeepers();
+			String workDir = new File(dir, "bulk").getAbsolutePath();
+			Connector conn = cluster.getConnector("root", PASSWORD);
+
+			IngestClient.run(instanceName, zookeepers, "root", PASSWORD, "live", filename);
+			IngestClient.runBulk(instanceName, zookeepers, "root", PASSWORD, "bulk", filename, workDir);
+			compare(conn, "live", "bulk");
+
+			IteratorClient.run(instanceName, zookeepers, "root", PASSWORD, "summedLive", filename);
+			IteratorClient.runBulk(instanceName, zookeepers, "root", PASSWORD, "summedBulk", filename, workDir);
+			compare(conn, "summedLive", "summedBulk");
+
+			IndexIngestClient.run(instanceName, zookeepers, "root", PASSWORD, "indexedLive", filename);
+			IndexIngestClient.runBulk(instanceName, zookeepers, "root", PASSWORD, "indexedBulk", filename, workDir);
+			compare(conn, "indexedLive", "indexedBulk");
+			compare(conn, EnergyIndex.indexTableFor("indexedLive"), EnergyIndex.indexTableFor("indexedBulk"));
+
+			System.out.println("bulk and live tables match");
+		} finally {
+			cluster.stop();
+			FileUtils.deleteQuietly(dir);
+		}
+	}
+
+	/**
+	 * @throws IllegalStateException at the first entry that differs
+	 */
+	private static void compare(Connector conn, String expectedTable, String actualTable) throws Exception {
+
+		Scanner expectedScanner = conn.createScanner(expectedTable, Authorizations.EMPTY);
+		Scanner actualScanner = conn.createScanner(actualTable, Authorizations.EMPTY);
+		Iterator<Map.Entry<Key, Value>> expected = expectedScanner.iterator();
+		Iterator<Map.Entry<Key, Value>> actual = actualScanner.iterator();
+
+		long entries = 0;
+		while(expected.hasNext() && actual.hasNext()) {
+			Map.Entry<Key, Value> e = expected.next();
+			Map.Entry<Key, Value> a = actual.next();
+			if(!e.getKey().equals(a.getKey(), PartialKey.ROW_COLFAM_COLQUAL_COLVIS) || !e.getValue().equals(a.getValue())) {
+				throw new IllegalStateException(actualTable + " has " + a.getKey() + " " + a.getValue() + " where "
+						+ expectedTable + " has " + e.getKey() + " " + e.getValue());
+			}
+			entries++;
+		}
+		if(expected.hasNext() || actual.hasNext()) {
+			throw new IllegalStateException((expected.hasNext() ? actualTable : expectedTable)
+					+ " ends after " + entries + " entries");
+		}
+		if(entries == 0) {
+			throw new IllegalStateException(expectedTable + " and " + actualTable + " are both empty");
+		}
+
+		System.out.println(expectedTable + " and " + actualTable + " both have " + entries + " entries");
+	}
+}
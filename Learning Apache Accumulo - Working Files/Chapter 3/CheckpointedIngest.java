@@ -0,0 +1,344 @@
+package com.oreilly.accumulotraining;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.accumulo.core.client.BatchWriter;
+import org.apache.accumulo.core.client.MutationsRejectedException;
+
+/**
+ * Runs ParallelIngest so that a load that dies part way through can be
+ * restarted without rewriting everything.
+ *
+ * Handlers report, per chunk, the offset up to which every record has been
+ * handed to the writer. Every interval those offsets are copied, the writer
+ * is flushed, and once the flush succeeds the copy is written to a sidecar
+ * file next to each input file (data.csv.checkpoint). A restart over the
+ * same, unmodified files cuts the same chunks and continues each one from
+ * its recorded offset, so at most one interval of work is repeated. The
+ * sidecars are removed once everything has been written.
+ *
+ * Repeated records rewrite the same cells with the same values, which a
+ * table keeping one version returns unchanged. Tables that combine values,
+ * such as the summing table in IteratorClient, would count them twice and
+ * should not be loaded this way.
+ */
+public class CheckpointedIngest {
+
+	private static final Logger logger = Logger.getLogger(CheckpointedIngest.class.getName());
+
+	public static final long DEFAULT_INTERVAL_MILLIS = 30000;
+
+	private static final String SUFFIX = ".checkpoint";
+
+	/**
+	 * A ChunkHandler that reports how far it has got
+	 */
+	public interface Handler {
+		/**
+		 * @param region the mapped bytes left to do in the chunk
+		 * @param firstInFile true if the region starts with the header line
+		 * @param progress to be advanced after records are handed to the writer
+		 * @return the number of records written
+		 */
+		int handle(ByteBuffer region, boolean firstInFile, Progress progress)
+				throws IOException, MutationsRejectedException;
+	}
+
+	/**
+	 * Ingests a file, directory or glob through writer, resuming from and
+	 * recording checkpoints beside each file
+	 *
+	 * @param input
+	 * @param writer the writer handler writes to, flushed at each checkpoint
+	 * @param handler must be safe to call from several threads
+	 * @return the number of records written by this run
+	 * @throws IOException
+	 * @throws MutationsRejectedException
+	 */
+	public static int ingest(String input, BatchWriter writer, Handler handler)
+			throws IOException, MutationsRejectedException {
+
+		return ingest(
+				input,
+				Runtime.getRuntime().availableProcessors(),
+				ParallelIngest.DEFAULT_CHUNK_SIZE,
+				writer,
+				handler,
+				DEFAULT_INTERVAL_MILLIS);
+	}
+
+	/**
+	 *
+	 * @param input a file, directory or glob
+	 * @param threads number of workers
+	 * @param chunkSize must be the same as the run being resumed
+	 * @param writer
+	 * @param handler
+	 * @param intervalMillis time between checkpoints
+	 * @return the number of records written by this run
+	 * @throws IOException
+	 * @throws MutationsRejectedException
+	 */
+	public static int ingest(
+			String input,
+			int threads,
+			long chunkSize,
+			final BatchWriter writer,
+			final Handler handler,
+			long intervalMillis)
+			throws IOException, MutationsRejectedException {
+
+		final List<FileCheckpoint> files = new ArrayList<>();
+		List<ParallelIngest.Chunk> remaining = new ArrayList<>();
+		final Map<ParallelIngest.Chunk, Progress> progress = new IdentityHashMap<>();
+
+		for(Path file : ParallelIngest.resolve(input)) {
+			FileCheckpoint checkpoint = new FileCheckpoint(file, chunkSize);
+			files.add(checkpoint);
+
+			for(Progress p : checkpoint.chunks) {
+				if(p.offset < p.end) {
+					ParallelIngest.Chunk chunk = new ParallelIngest.Chunk(file, p.offset, p.end - p.offset, p.offset == 0);
+					remaining.add(chunk);
+					progress.put(chunk, p);
+				}
+			}
+		}
+
+		ScheduledExecutorService checkpointer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ingest-checkpoint");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		checkpointer.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					checkpoint(writer, files);
+				} catch (IOException | MutationsRejectedException ex) {
+					// the previous checkpoint still stands
+					logger.log(Level.WARNING, "could not checkpoint", ex);
+				}
+			}
+		}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+
+		int written;
+		try {
+			written = ParallelIngest.execute(input, remaining, threads, new ParallelIngest.ChunkTask() {
+
+				@Override
+				public int process(ParallelIngest.Chunk chunk) throws IOException, MutationsRejectedException {
+					return handler.handle(ParallelIngest.map(chunk), chunk.firstInFile, progress.get(chunk).resume());
+				}
+			});
+		} catch (IOException | MutationsRejectedException | RuntimeException ex) {
+			shutdown(checkpointer);
+
+			// keep whatever did get written before giving up
+			try {
+				checkpoint(writer, files);
+			} catch (IOException | MutationsRejectedException | RuntimeException checkpointEx) {
+				logger.log(Level.WARNING, "could not write a final checkpoint", checkpointEx);
+			}
+			throw ex;
+		}
+
+		shutdown(checkpointer);
+
+		writer.flush();
+		for(FileCheckpoint checkpoint : files) {
+			checkpoint.delete();
+		}
+
+		return written;
+	}
+
+	/**
+	 * Copies every chunk's progress, flushes and only then saves the copy,
+	 * so a checkpoint never claims records that are still buffered
+	 */
+	private static synchronized void checkpoint(BatchWriter writer, List<FileCheckpoint> files)
+			throws IOException, MutationsRejectedException {
+
+		List<Properties> snapshots = new ArrayList<>();
+		for(FileCheckpoint checkpoint : files) {
+			snapshots.add(checkpoint.snapshot());
+		}
+
+		writer.flush();
+
+		for(int i = 0; i < files.size(); i++) {
+			files.get(i).save(snapshots.get(i));
+		}
+	}
+
+	private static void shutdown(ScheduledExecutorService checkpointer) {
+		checkpointer.shutdown();
+		try {
+			checkpointer.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * How far into one chunk everything has been handed to the writer
+	 */
+	public static class Progress {
+
+		private final long start;
+		private final long end;
+
+		private long offset;
+		private long records;
+
+		// where the current region starts and how many records came before it
+		private long regionStart;
+		private long recordsBefore;
+
+		Progress(long start, long end, long offset, long records) {
+			this.start = start;
+			this.end = end;
+			this.offset = offset;
+			this.records = records;
+		}
+
+		/**
+		 * Records that everything before position in the current region,
+		 * count records in all, has been handed to the writer
+		 *
+		 * @param position
+		 * @param count
+		 */
+		public synchronized void advance(int position, long count) {
+			offset = regionStart + position;
+			records = recordsBefore + count;
+		}
+
+		synchronized Progress resume() {
+			regionStart = offset;
+			recordsBefore = records;
+			return this;
+		}
+
+		synchronized long[] get() {
+			return new long[] {offset, records};
+		}
+	}
+
+	/**
+	 * The chunks of one input file and the sidecar their progress is kept in
+	 */
+	private static class FileCheckpoint {
+
+		private final Path file;
+		private final Path sidecar;
+		private final long size;
+		private final long modified;
+		private final long chunkSize;
+		private final List<Progress> chunks = new ArrayList<>();
+
+		FileCheckpoint(Path file, long chunkSize) throws IOException {
+			this.file = file;
+			this.sidecar = file.resolveSibling(file.getFileName() + SUFFIX);
+			this.size = Files.size(file);
+			this.modified = Files.getLastModifiedTime(file).toMillis();
+			this.chunkSize = chunkSize;
+
+			Properties saved = load();
+			long resumed = 0;
+
+			for(ParallelIngest.Chunk chunk : ParallelIngest.split(file, chunkSize)) {
+				long end = chunk.start + chunk.length;
+				long offset = Long.parseLong(saved.getProperty("chunk." + chunk.start + ".offset", Long.toString(chunk.start)));
+				long records = Long.parseLong(saved.getProperty("chunk." + chunk.start + ".records", "0"));
+
+				chunks.add(new Progress(chunk.start, end, Math.max(chunk.start, Math.min(offset, end)), records));
+				resumed += records;
+			}
+
+			if(resumed > 0) {
+				logger.info("resuming " + file + " after " + resumed + " records already written");
+			}
+		}
+
+		private Properties load() throws IOException {
+
+			Properties saved = new Properties();
+			if(!Files.exists(sidecar)) {
+				return saved;
+			}
+
+			try (InputStream in = Files.newInputStream(sidecar)) {
+				saved.load(in);
+			}
+
+			if(!Long.toString(size).equals(saved.getProperty("size"))
+					|| !Long.toString(modified).equals(saved.getProperty("modified"))
+					|| !Long.toString(chunkSize).equals(saved.getProperty("chunkSize"))) {
+
+				logger.warning(file + " or the chunk size changed since " + sidecar + " was written, starting over");
+				return new Properties();
+			}
+
+			return saved;
+		}
+
+		Properties snapshot() {
+
+			Properties snapshot = new Properties();
+			snapshot.setProperty("size", Long.toString(size));
+			snapshot.setProperty("modified", Long.toString(modified));
+			snapshot.setProperty("chunkSize", Long.toString(chunkSize));
+
+			for(Progress p : chunks) {
+				long[] state = p.get();
+				snapshot.setProperty("chunk." + p.start + ".offset", Long.toString(state[0]));
+				snapshot.setProperty("chunk." + p.start + ".records", Long.toString(state[1]));
+			}
+
+			return snapshot;
+		}
+
+		/**
+		 * Writes a temporary file and renames it over the sidecar, so a crash
+		 * leaves either the old checkpoint or the new one
+		 */
+		void save(Properties snapshot) throws IOException {
+
+			Path tmp = sidecar.resolveSibling(sidecar.getFileName() + ".tmp");
+			try (OutputStream out = Files.newOutputStream(tmp)) {
+				snapshot.store(out, "ingest progress for " + file.getFileName());
+			}
+
+			Files.move(tmp, sidecar, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+
+		void delete() throws IOException {
+			Files.deleteIfExists(sidecar);
+		}
+	}
+}
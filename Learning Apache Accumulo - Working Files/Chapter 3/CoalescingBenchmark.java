@@ -0,0 +1,63 @@
+package com.oreilly.accumulotraining;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.accumulo.core.client.MutationsRejectedException;
+
+/**
+ * Compares what the ingest clients would send with and without row
+ * coalescing, without needing a cluster.
+ *
+ * Mutations are counted and measured by a BatchWriter that discards them.
+ * The client-side BatchWriter charges each Mutation its estimated memory
+ * use against maxMemory and sends a batch of RPCs every time that fills,
+ * so the estimated batch count below tracks the number of round trips.
+ *
+ * usage: CoalescingBenchmark file.csv [maxMemoryBytes]
+ */
+public class CoalescingBenchmark {
+
+	public static void main(String[] args) throws IOException, MutationsRejectedException {
+
+		File csvData = new File(args[0]);
+		long maxMemory = args.length > 1 ? Long.parseLong(args[1]) : 16L * 1024 * 1024;
+
+		System.out.println("path\tmode\tmutations\tbytes\testimated batches\tseconds");
+
+		for(String path : new String[] {"plain", "labeled", "combiner"}) {
+			for(boolean coalesce : new boolean[] {false, true}) {
+
+				CountingBatchWriter writer = new CountingBatchWriter();
+
+				// a cap of one update per Mutation is the same as not coalescing
+				MutationCoalescer coalescer = coalesce
+						? new MutationCoalescer(writer)
+						: new MutationCoalescer(writer, 1, Long.MAX_VALUE);
+
+				long start = System.nanoTime();
+				CsvIngest.ingest(csvData, handlerFor(path, coalescer));
+				double seconds = (System.nanoTime() - start) / 1e9;
+
+				System.out.println(
+						path + "\t" +
+						(coalesce ? "coalesced" : "per-record") + "\t" +
+						writer.mutations + "\t" +
+						writer.bytes + "\t" +
+						(writer.memory / maxMemory + 1) + "\t" +
+						String.format("%.3f", seconds));
+			}
+		}
+	}
+
+	private static CsvIngest.RecordHandler handlerFor(String path, MutationCoalescer coalescer) {
+		switch(path) {
+			case "labeled":
+				return new CsvRecordWriters.Labeled(coalescer, new VisibilityCache());
+			case "combiner":
+				return new CsvRecordWriters.Summed(coalescer);
+			default:
+				return new CsvRecordWriters.Plain(coalescer);
+		}
+	}
+}
@@ -0,0 +1,521 @@
+package com.oreilly.accumulotraining;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.accumulo.core.client.AccumuloException;
+import org.apache.accumulo.core.client.AccumuloSecurityException;
+import org.apache.accumulo.core.client.BatchWriter;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.Instance;
+import org.apache.accumulo.core.client.MultiTableBatchWriter;
+import org.apache.accumulo.core.client.MutationsRejectedException;
+import org.apache.accumulo.core.client.TableNotFoundException;
+import org.apache.accumulo.core.client.ZooKeeperInstance;
+import org.apache.accumulo.core.client.security.tokens.PasswordToken;
+import org.apache.accumulo.core.data.Mutation;
+
+/**
+ * Keeps Connectors and BatchWriters alive between calls, so a client
+ * called over and over from a long running service doesn't look up the
+ * instance in ZooKeeper, authenticate and start writer threads for every
+ * request.
+ *
+ * Connectors are made on first use and kept per instance, ZooKeeper
+ * servers and user, along with a salted digest of the password they were
+ * made with; a call with any other password logs in again. Writers are
+ * kept per connector and table, or one MultiTableBatchWriter per
+ * connector, and flushed in the background every flush interval so
+ * nothing waits long in a buffer nobody flushes. A caller that needs its
+ * mutations applied before it returns still calls flush() itself.
+ *
+ * The writers handed out are shared: closing one only flushes it. Once a
+ * writer rejects mutations, whether for a caller or in the background, it
+ * leaves the cache and the next caller gets a new one. Everyone still
+ * holding it gets the rejection from their next call on it, as their
+ * mutations may have been among those lost, and never reach the closed
+ * writer underneath. close() closes every writer, for when the service
+ * shuts down.
+ *
+ * Thread safe. Most callers use the one shared() manager.
+ */
+public class ConnectionManager implements AutoCloseable {
+
+	private static final Logger logger = Logger.getLogger(ConnectionManager.class.getName());
+
+	public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 1000;
+
+	private static final ConnectionManager shared = new ConnectionManager(DEFAULT_FLUSH_INTERVAL_MILLIS);
+
+	private final ConcurrentHashMap<List<String>, Instance> instances = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<List<String>, LoggedIn> connectors = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<WriterKey, SharedBatchWriter> writers = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<Connector, SharedMultiTableBatchWriter> multiWriters = new ConcurrentHashMap<>();
+
+	// out of the cache after a rejection, until a caller has been told
+	private final Set<Shared> rejectedWriters = Collections.newSetFromMap(new ConcurrentHashMap<Shared, Boolean>());
+
+	private final byte[] salt = new byte[16];
+
+	private final AdaptiveBatchWriterFactory writerFactory = new AdaptiveBatchWriterFactory();
+	private final ScheduledExecutorService flusher;
+
+	/**
+	 * @param flushIntervalMillis how often shared writers are flushed
+	 */
+	public ConnectionManager(long flushIntervalMillis) {
+		new SecureRandom().nextBytes(salt);
+
+		flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "shared-writer-flusher");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		flusher.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				flushAll();
+			}
+		}, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * The manager the clients' run methods share
+	 *
+	 * @return
+	 */
+	public static ConnectionManager shared() {
+		return shared;
+	}
+
+	/**
+	 * A connector for user, made the first time it is asked for
+	 *
+	 * @param instanceName
+	 * @param zookeepers
+	 * @param username
+	 * @param password
+	 * @return
+	 * @throws AccumuloException
+	 * @throws AccumuloSecurityException if the user can't log in
+	 */
+	public Connector getConnector(String instanceName, String zookeepers, String username, String password)
+			throws AccumuloException, AccumuloSecurityException {
+
+		List<String> key = Arrays.asList(instanceName, zookeepers, username);
+		byte[] digest = digest(password);
+		LoggedIn loggedIn = connectors.get(key);
+		if(loggedIn != null && MessageDigest.isEqual(loggedIn.passwordDigest, digest)) {
+			return loggedIn.conn;
+		}
+
+		List<String> instanceKey = Arrays.asList(instanceName, zookeepers);
+		Instance inst = instances.get(instanceKey);
+		if(inst == null) {
+			inst = new ZooKeeperInstance(instanceName, zookeepers);
+			Instance raced = instances.putIfAbsent(instanceKey, inst);
+			if(raced != null) {
+				inst = raced;
+			}
+		}
+
+		// a wrong password fails here and leaves the cached connector alone;
+		// two threads may both log in the first time, and either connector will do
+		Connector conn = inst.getConnector(username, new PasswordToken(password));
+		connectors.put(key, new LoggedIn(conn, digest));
+		return conn;
+	}
+
+	/**
+	 * The shared writer for table
+	 *
+	 * @param conn a connector from this manager
+	 * @param table
+	 * @return a writer whose close() only flushes
+	 * @throws TableNotFoundException
+	 */
+	public BatchWriter getBatchWriter(Connector conn, String table) throws TableNotFoundException {
+		WriterKey key = new WriterKey(conn, table);
+		SharedBatchWriter writer = writers.get(key);
+		if(writer != null) {
+			return writer;
+		}
+
+		writer = new SharedBatchWriter(key, writerFactory.createBatchWriter(conn, table));
+		SharedBatchWriter raced = writers.putIfAbsent(key, writer);
+		if(raced != null) {
+			closeQuietly(writer);
+			return raced;
+		}
+		return writer;
+	}
+
+	/**
+	 * The shared MultiTableBatchWriter for conn
+	 *
+	 * @param conn a connector from this manager
+	 * @return a writer whose close() only flushes, as does closing the
+	 *         writers it hands out for each table
+	 */
+	public MultiTableBatchWriter getMultiTableBatchWriter(Connector conn) {
+		SharedMultiTableBatchWriter writer = multiWriters.get(conn);
+		if(writer != null) {
+			return writer;
+		}
+
+		writer = new SharedMultiTableBatchWriter(conn, writerFactory.createMultiTableBatchWriter(conn));
+		SharedMultiTableBatchWriter raced = multiWriters.putIfAbsent(conn, writer);
+		if(raced != null) {
+			closeQuietly(writer);
+			return raced;
+		}
+		return writer;
+	}
+
+	/**
+	 * Closes every writer and stops flushing; connectors stay usable
+	 */
+	@Override
+	public void close() {
+		flusher.shutdown();
+
+		List<Shared> all = new ArrayList<>();
+		all.addAll(writers.values());
+		all.addAll(multiWriters.values());
+		all.addAll(rejectedWriters);
+		writers.clear();
+		multiWriters.clear();
+		rejectedWriters.clear();
+
+		for(Shared writer : all) {
+			closeQuietly(writer);
+		}
+	}
+
+	private void flushAll() {
+		for(SharedBatchWriter writer : writers.values()) {
+			writer.backgroundFlush();
+		}
+		for(SharedMultiTableBatchWriter writer : multiWriters.values()) {
+			writer.backgroundFlush();
+		}
+	}
+
+	private byte[] digest(String password) {
+		try {
+			MessageDigest sha = MessageDigest.getInstance("SHA-256");
+			sha.update(salt);
+			return sha.digest(password.getBytes(StandardCharsets.UTF_8));
+		} catch (NoSuchAlgorithmException ex) {
+			// every JVM has SHA-256
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	private static void closeQuietly(Shared writer) {
+		synchronized(writer) {
+			try {
+				writer.retire();
+			} catch (MutationsRejectedException ex) {
+				logger.log(Level.WARNING, ex.getLocalizedMessage(), ex);
+			}
+		}
+	}
+
+	private static class LoggedIn {
+
+		final Connector conn;
+		final byte[] passwordDigest;
+
+		LoggedIn(Connector conn, byte[] passwordDigest) {
+			this.conn = conn;
+			this.passwordDigest = passwordDigest;
+		}
+	}
+
+	private static class WriterKey {
+
+		final Connector conn;
+		final String table;
+
+		WriterKey(Connector conn, String table) {
+			this.conn = conn;
+			this.table = table;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof WriterKey)) {
+				return false;
+			}
+			WriterKey other = (WriterKey) o;
+			return conn == other.conn && table.equals(other.table);
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(conn) * 31 + table.hashCode();
+		}
+	}
+
+	/**
+	 * What the shared writers have in common: once the writer underneath
+	 * rejects mutations, every call gets that rejection instead of reaching
+	 * it, and it is closed when a caller first gets it. All of it runs with
+	 * the shared writer locked.
+	 */
+	private abstract class Shared {
+
+		MutationsRejectedException failure = null;
+		boolean retired = false;
+
+		abstract void uncache();
+
+		abstract void flushWriter() throws MutationsRejectedException;
+
+		abstract void closeWriter() throws MutationsRejectedException;
+
+		/**
+		 * Takes this writer out of the cache and keeps ex for its callers
+		 */
+		void rejected(MutationsRejectedException ex) {
+			if(failure == null) {
+				failure = ex;
+				uncache();
+				rejectedWriters.add(this);
+			}
+		}
+
+		/**
+		 * Throws the rejection, if there was one
+		 */
+		void check() throws MutationsRejectedException {
+			if(failure == null) {
+				return;
+			}
+			if(!retired) {
+				try {
+					retire();
+				} catch (MutationsRejectedException ex) {
+					// the same mutations again
+				}
+			}
+			throw failure;
+		}
+
+		void retire() throws MutationsRejectedException {
+			if(!retired) {
+				retired = true;
+				rejectedWriters.remove(this);
+				closeWriter();
+			}
+		}
+
+		synchronized void backgroundFlush() {
+			if(failure != null || retired) {
+				return;
+			}
+			try {
+				flushWriter();
+			} catch (MutationsRejectedException ex) {
+				rejected(ex);
+				logger.log(Level.WARNING, "shared writer rejected mutations; its callers get the rejection next", ex);
+			}
+		}
+
+		/**
+		 * Flushes for a caller
+		 */
+		synchronized void flushShared() throws MutationsRejectedException {
+			check();
+			try {
+				flushWriter();
+			} catch (MutationsRejectedException ex) {
+				rejected(ex);
+				check();
+			}
+		}
+	}
+
+	/**
+	 * Forwards to a cached writer; close() flushes
+	 */
+	private class SharedBatchWriter extends Shared implements BatchWriter {
+
+		private final WriterKey key;
+		private final BatchWriter writer;
+
+		SharedBatchWriter(WriterKey key, BatchWriter writer) {
+			this.key = key;
+			this.writer = writer;
+		}
+
+		@Override
+		public synchronized void addMutation(Mutation m) throws MutationsRejectedException {
+			check();
+			try {
+				writer.addMutation(m);
+			} catch (MutationsRejectedException ex) {
+				rejected(ex);
+				check();
+			}
+		}
+
+		@Override
+		public synchronized void addMutations(Iterable<Mutation> iterable) throws MutationsRejectedException {
+			check();
+			try {
+				writer.addMutations(iterable);
+			} catch (MutationsRejectedException ex) {
+				rejected(ex);
+				check();
+			}
+		}
+
+		@Override
+		public void flush() throws MutationsRejectedException {
+			flushShared();
+		}
+
+		@Override
+		public void close() throws MutationsRejectedException {
+			flushShared();
+		}
+
+		@Override
+		void uncache() {
+			writers.remove(key, this);
+		}
+
+		@Override
+		void flushWriter() throws MutationsRejectedException {
+			writer.flush();
+		}
+
+		@Override
+		void closeWriter() throws MutationsRejectedException {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Forwards to a cached MultiTableBatchWriter; close() flushes
+	 */
+	private class SharedMultiTableBatchWriter extends Shared implements MultiTableBatchWriter {
+
+		private final Connector conn;
+		private final MultiTableBatchWriter writer;
+
+		SharedMultiTableBatchWriter(Connector conn, MultiTableBatchWriter writer) {
+			this.conn = conn;
+			this.writer = writer;
+		}
+
+		@Override
+		public synchronized BatchWriter getBatchWriter(String table)
+				throws AccumuloException, AccumuloSecurityException, TableNotFoundException {
+			check();
+			return new SharedTableWriter(this, writer.getBatchWriter(table));
+		}
+
+		@Override
+		public void flush() throws MutationsRejectedException {
+			flushShared();
+		}
+
+		@Override
+		public void close() throws MutationsRejectedException {
+			flushShared();
+		}
+
+		@Override
+		public synchronized boolean isClosed() {
+			return retired;
+		}
+
+		@Override
+		void uncache() {
+			multiWriters.remove(conn, this);
+		}
+
+		@Override
+		void flushWriter() throws MutationsRejectedException {
+			writer.flush();
+		}
+
+		@Override
+		void closeWriter() throws MutationsRejectedException {
+			writer.close();
+		}
+	}
+
+	/**
+	 * One table's writer of a SharedMultiTableBatchWriter, which it locks
+	 * and reports rejections to; flush() and close() flush every table
+	 */
+	private class SharedTableWriter implements BatchWriter {
+
+		private final SharedMultiTableBatchWriter owner;
+		private final BatchWriter writer;
+
+		SharedTableWriter(SharedMultiTableBatchWriter owner, BatchWriter writer) {
+			this.owner = owner;
+			this.writer = writer;
+		}
+
+		@Override
+		public void addMutation(Mutation m) throws MutationsRejectedException {
+			synchronized(owner) {
+				owner.check();
+				try {
+					writer.addMutation(m);
+				} catch (MutationsRejectedException ex) {
+					owner.rejected(ex);
+					owner.check();
+				}
+			}
+		}
+
+		@Override
+		public void addMutations(Iterable<Mutation> iterable) throws MutationsRejectedException {
+			synchronized(owner) {
+				owner.check();
+				try {
+					writer.addMutations(iterable);
+				} catch (MutationsRejectedException ex) {
+					owner.rejected(ex);
+					owner.check();
+				}
+			}
+		}
+
+		@Override
+		public void flush() throws MutationsRejectedException {
+			owner.flushShared();
+		}
+
+		@Override
+		public void close() throws MutationsRejectedException {
+			owner.flushShared();
+		}
+	}
+}
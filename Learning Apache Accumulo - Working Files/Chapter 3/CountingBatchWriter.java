@@ -0,0 +1,38 @@
+package com.oreilly.accumulotraining;
+
+import org.apache.accumulo.core.client.BatchWriter;
+import org.apache.accumulo.core.data.Mutation;
+
+/**
+ * Discards what it is given, counting mutations, their serialized size and
+ * the memory the client-side BatchWriter would charge for them. Used by the
+ * benchmarks that run without a cluster.
+ */
+class CountingBatchWriter implements BatchWriter {
+
+	long mutations = 0;
+	long bytes = 0;
+	long memory = 0;
+
+	@Override
+	public synchronized void addMutation(Mutation m) {
+		mutations++;
+		bytes += m.numBytes();
+		memory += m.estimatedMemoryUsed();
+	}
+
+	@Override
+	public void addMutations(Iterable<Mutation> iterable) {
+		for(Mutation m : iterable) {
+			addMutation(m);
+		}
+	}
+
+	@Override
+	public void flush() {
+	}
+
+	@Override
+	public void close() {
+	}
+}
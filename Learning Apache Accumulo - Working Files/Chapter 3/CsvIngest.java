@@ -0,0 +1,110 @@
+package com.oreilly.accumulotraining;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+
+import org.apache.accumulo.core.client.MutationsRejectedException;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+
+/**
+ * Streams the records of a CSV file to a handler one at a time.
+ *
+ * Records are pulled lazily from the parser rather than loaded with
+ * getRecords(), so memory use stays flat regardless of file size. The
+ * BatchWriter sends mutations on its own threads, so parsing the next
+ * record overlaps with sending the previous ones.
+ */
+public class CsvIngest {
+
+	private static final int MIN_FIELDS = 6;
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Turns one CSV record into one or more Mutations
+	 */
+	public interface RecordHandler {
+		void handle(CSVRecord record) throws MutationsRejectedException;
+
+		/**
+		 * Called after the last record of a file or chunk, to send
+		 * anything the handler is still holding on to
+		 *
+		 * @throws MutationsRejectedException
+		 */
+		void finish() throws MutationsRejectedException;
+	}
+
+	/**
+	 * Creates a handler for each thread that reads records
+	 */
+	public interface RecordHandlerFactory {
+		RecordHandler newHandler();
+	}
+
+	/**
+	 * Reads every record after the header and passes the ones with
+	 * enough fields to the handler
+	 *
+	 * @param csvData
+	 * @param handler
+	 * @return the number of records handed to the handler
+	 * @throws IOException
+	 * @throws MutationsRejectedException
+	 */
+	public static int ingest(File csvData, RecordHandler handler)
+			throws IOException, MutationsRejectedException {
+
+		Reader reader = new BufferedReader(
+				new InputStreamReader(new FileInputStream(csvData), Charset.defaultCharset()),
+				READ_BUFFER_SIZE);
+
+		try (CSVParser parser = new CSVParser(reader, CSVFormat.EXCEL)) {
+			return ingest(parser, true, handler);
+		}
+	}
+
+	/**
+	 * Passes the records of an already opened parser to the handler,
+	 * optionally skipping the first one
+	 *
+	 * @param parser
+	 * @param skipHeader
+	 * @param handler
+	 * @return the number of records handed to the handler
+	 * @throws MutationsRejectedException
+	 */
+	static int ingest(CSVParser parser, boolean skipHeader, RecordHandler handler)
+			throws MutationsRejectedException {
+
+		int written = 0;
+
+		Iterator<CSVRecord> records = parser.iterator();
+		if(skipHeader && records.hasNext()) {
+			records.next(); // skip header
+		}
+
+		while(records.hasNext()) {
+			CSVRecord csvRecord = records.next();
+
+			if(csvRecord.size() < MIN_FIELDS) {
+				continue;
+			}
+
+			handler.handle(csvRecord);
+			written++;
+		}
+
+		handler.finish();
+
+		return written;
+	}
+}
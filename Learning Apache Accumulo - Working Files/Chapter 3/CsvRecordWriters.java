@@ -0,0 +1,130 @@
+package com.oreilly.accumulotraining;
+
+import java.math.BigDecimal;
+
+import org.apache.accumulo.core.client.MutationsRejectedException;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.user.BigDecimalCombiner.BigDecimalEncoder;
+
+import org.apache.commons.csv.CSVRecord;
+
+/**
+ * The commons-csv record handlers the ingest clients used before they
+ * moved to EnergyRecordTokenizer. The benchmarks keep them to compare
+ * parsing and coalescing against the tokenizer paths: Plain writes the
+ * IngestClient layout, Labeled the AuthIngestClient one and Summed the
+ * IteratorClient one. Each merges consecutive records for the same
+ * country into one Mutation through its MutationCoalescer.
+ */
+public class CsvRecordWriters {
+
+	private static final int COUNTRY = 0;
+	private static final int COMMODITY = 1;
+	private static final int YEAR = 2;
+	private static final int QUANTITY = 4;
+
+	/**
+	 * The quantity under the energy type and year, as TokenizedIngest
+	 */
+	static class Plain implements CsvIngest.RecordHandler {
+
+		private final MutationCoalescer coalescer;
+
+		Plain(MutationCoalescer coalescer) {
+			this.coalescer = coalescer;
+		}
+
+		@Override
+		public void handle(CSVRecord csvRecord) throws MutationsRejectedException {
+
+			String energyType = parseEnergyType(csvRecord.get(COMMODITY));
+
+			coalescer.put(
+					csvRecord.get(COUNTRY),
+					energyType,
+					csvRecord.get(YEAR),
+					new Value(csvRecord.get(QUANTITY).getBytes()));
+		}
+
+		@Override
+		public void finish() throws MutationsRejectedException {
+			coalescer.flush();
+		}
+	}
+
+	/**
+	 * Like Plain, labeled with the energy type and country, as
+	 * AuthIngestClient.LabeledIngest
+	 */
+	static class Labeled implements CsvIngest.RecordHandler {
+
+		private final MutationCoalescer coalescer;
+		private final VisibilityCache labels;
+
+		Labeled(MutationCoalescer coalescer, VisibilityCache labels) {
+			this.coalescer = coalescer;
+			this.labels = labels;
+		}
+
+		@Override
+		public void handle(CSVRecord csvRecord) throws MutationsRejectedException {
+
+			String country = csvRecord.get(COUNTRY);
+			String energyType = parseEnergyType(csvRecord.get(COMMODITY));
+
+			coalescer.put(
+					country,
+					energyType,
+					csvRecord.get(YEAR),
+					labels.get(energyType, country),
+					new Value(csvRecord.get(QUANTITY).getBytes()));
+		}
+
+		@Override
+		public void finish() throws MutationsRejectedException {
+			coalescer.flush();
+		}
+	}
+
+	/**
+	 * The encoded quantity under the energy type with a blank qualifier, for
+	 * a summing combiner, as IteratorClient.SummedIngest
+	 */
+	static class Summed implements CsvIngest.RecordHandler {
+
+		private final MutationCoalescer coalescer;
+		private final BigDecimalEncoder encoder = new BigDecimalEncoder();
+
+		Summed(MutationCoalescer coalescer) {
+			this.coalescer = coalescer;
+		}
+
+		@Override
+		public void handle(CSVRecord csvRecord) throws MutationsRejectedException {
+
+			String country = csvRecord.get(COUNTRY);
+			String energyType = parseEnergyType(csvRecord.get(COMMODITY));
+
+			BigDecimal value = BigDecimal.valueOf(Double.parseDouble(csvRecord.get(QUANTITY)));
+
+			coalescer.put(
+					country,
+					energyType,
+					"",
+					new Value(encoder.encode(value)));
+		}
+
+		@Override
+		public void finish() throws MutationsRejectedException {
+			coalescer.flush();
+		}
+	}
+
+	private static String parseEnergyType(String line) {
+		String[] parts = line.split("\\s+");
+		if(parts.length > 3) {
+			return parts[3];
+		}
+		return line;
+	}
+}
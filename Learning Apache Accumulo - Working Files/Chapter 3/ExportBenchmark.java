@@ -0,0 +1,149 @@
+package com.oreilly.accumulotraining;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.channels.FileChannel;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.accumulo.core.client.BatchWriter;
+import org.apache.accumulo.core.client.MutationsRejectedException;
+import org.apache.accumulo.core.data.ColumnUpdate;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Value;
+
+/**
+ * Compares the cost per entry of writing scan results the way ScanClient
+ * used to print them, with four toString() calls, concatenation and a
+ * println per entry, against ScanExporter in each of its formats, without
+ * needing a cluster.
+ *
+ * The entries are the IngestClient layout of the input file, sorted as a
+ * scan would return them, and exported repeatedly until at least
+ * MIN_ENTRIES have been written each round. The println path writes to a
+ * PrintStream set up like System.out, flushing every line. Everything goes
+ * to output, a temporary file unless given, which is truncated for each
+ * run. The first rounds warm up the JIT and are not reported.
+ *
+ * usage: ExportBenchmark file.csv [rounds] [output]
+ */
+public class ExportBenchmark {
+
+	private static final int WARMUP_ROUNDS = 2;
+	private static final int MIN_ENTRIES = 1000000;
+
+	public static void main(String[] args) throws IOException, MutationsRejectedException {
+
+		File csvData = new File(args[0]);
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+		File output;
+		if(args.length > 2) {
+			output = new File(args[2]);
+		} else {
+			output = File.createTempFile("export", ".out");
+			output.deleteOnExit();
+		}
+
+		List<Map.Entry<Key, Value>> entries = load(csvData);
+		if(entries.isEmpty()) {
+			System.out.println("no entries in " + csvData);
+			return;
+		}
+		int passes = (MIN_ENTRIES + entries.size() - 1) / entries.size();
+
+		System.out.println("path\tround\tentries\tbytes\tentries/s\tMB/s");
+
+		List<String> paths = new ArrayList<>();
+		paths.add("println");
+		for(ScanExporter.Format format : ScanExporter.Format.values()) {
+			paths.add(format.name().toLowerCase());
+		}
+
+		for(int round = -WARMUP_ROUNDS; round < rounds; round++) {
+			for(String path : paths) {
+
+				long start = System.nanoTime();
+				long written = path.equals("println")
+						? println(entries, passes, output)
+						: export(entries, passes, output, ScanExporter.Format.forName(path));
+				double seconds = (System.nanoTime() - start) / 1e9;
+
+				if(round >= 0) {
+					System.out.println(
+							path + "\t" +
+							round + "\t" +
+							written + "\t" +
+							output.length() + "\t" +
+							String.format("%.0f", written / seconds) + "\t" +
+							String.format("%.1f", output.length() / seconds / 1e6));
+				}
+			}
+		}
+	}
+
+	private static long println(List<Map.Entry<Key, Value>> entries, int passes, File output) throws IOException {
+		long written = 0;
+		try (PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(output), 128), true)) {
+			for(int pass = 0; pass < passes; pass++) {
+				for(Map.Entry<Key, Value> e : entries) {
+					out.println(
+							e.getKey().getRow().toString() + " " +
+							e.getKey().getColumnFamily().toString() + " " +
+							e.getKey().getColumnQualifier().toString() + "\t" +
+							new String(e.getValue().get()));
+					written++;
+				}
+			}
+		}
+		return written;
+	}
+
+	private static long export(List<Map.Entry<Key, Value>> entries, int passes, File output, ScanExporter.Format format)
+			throws IOException {
+		try (FileChannel channel = new FileOutputStream(output).getChannel();
+				ScanExporter exporter = new ScanExporter(channel, format)) {
+			for(int pass = 0; pass < passes; pass++) {
+				exporter.export(entries);
+			}
+			return exporter.getEntries();
+		}
+	}
+
+	/**
+	 * Builds the entries IngestClient would write for csvData, in key order
+	 */
+	private static List<Map.Entry<Key, Value>> load(File csvData) throws IOException, MutationsRejectedException {
+
+		final SortedMap<Key, Value> cells = new TreeMap<>();
+
+		BatchWriter collector = new CountingBatchWriter() {
+
+			@Override
+			public synchronized void addMutation(Mutation m) {
+				super.addMutation(m);
+				for(ColumnUpdate update : m.getUpdates()) {
+					cells.put(
+							new Key(m.getRow(), update.getColumnFamily(), update.getColumnQualifier(),
+									update.getColumnVisibility(), update.getTimestamp()),
+							new Value(update.getValue()));
+				}
+			}
+		};
+
+		CsvIngest.ingest(csvData, new CsvRecordWriters.Plain(new MutationCoalescer(collector)));
+
+		List<Map.Entry<Key, Value>> entries = new ArrayList<>();
+		for(Map.Entry<Key, Value> cell : cells.entrySet()) {
+			entries.add(new AbstractMap.SimpleImmutableEntry<>(cell.getKey(), cell.getValue()));
+		}
+		return entries;
+	}
+}
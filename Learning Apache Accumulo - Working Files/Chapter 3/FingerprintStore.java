@@ -0,0 +1,481 @@
+package com.oreilly.accumulotraining;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.apache.accumulo.core.client.AccumuloException;
+import org.apache.accumulo.core.client.AccumuloSecurityException;
+import org.apache.accumulo.core.client.BatchWriter;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.MultiTableBatchWriter;
+import org.apache.accumulo.core.client.MutationsRejectedException;
+import org.apache.accumulo.core.client.TableNotFoundException;
+import org.apache.accumulo.core.data.ColumnUpdate;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.security.ColumnVisibility;
+
+/**
+ * Remembers which cells the previous load wrote so that a daily re-load only
+ * sends the ones that are new or changed.
+ *
+ * Each update passed through a filtered writer is reduced to a 64 bit hash
+ * of its table, row, column, visibility and value. Updates whose hash was
+ * in the previous run's store are dropped; everything else is written. The
+ * hashes of every update seen, written or not, make up the store for the
+ * next run, which save() writes over the old one once the load succeeded.
+ * Index entries are filtered the same way, since an unchanged record
+ * produces the same index key.
+ *
+ * The hashes are kept in open addressing sets of primitive longs, about 16
+ * bytes per cell. A Bloom filter would be smaller, but a false positive
+ * would silently skip a changed cell; with 64 bit hashes a collision is
+ * vanishingly unlikely at the sizes these loads reach. Cells that
+ * disappeared from the input are not deleted, and stale index entries for
+ * changed values are left in place as a full load would leave them.
+ *
+ * The store records the instance and table IDs it was written for, and is
+ * ignored when they no longer match or the caller has just created a
+ * table, so a dropped and recreated table gets a full load. It only knows
+ * what earlier loads wrote: a cell changed or deleted some other way, for
+ * example with UpdateDeleteClient, is not restored by re-loading an
+ * unchanged file. Delete the fingerprint file to force a full load.
+ */
+public class FingerprintStore {
+
+	private static final Logger logger = Logger.getLogger(FingerprintStore.class.getName());
+
+	private static final int MAGIC = 0x46505332; // FPS2
+
+	private final Path file;
+	private final String tables;
+	private final LongHashSet previous;
+	private final LongHashSet current = new LongHashSet(1024);
+
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+
+	/**
+	 * Loads the previous run's fingerprints from file, if there was one for
+	 * the same tables
+	 *
+	 * @param file
+	 * @param tables what tablesId() returns for the tables being loaded
+	 * @param created true if any of them was just created
+	 * @return
+	 * @throws IOException
+	 */
+	public static FingerprintStore open(Path file, String tables, boolean created) throws IOException {
+
+		if(!Files.exists(file)) {
+			logger.info("no fingerprints at " + file + ", every cell will be written");
+			return new FingerprintStore(file, tables, new LongHashSet(16));
+		}
+		if(created) {
+			logger.info("ignoring fingerprints at " + file + " for a new table, every cell will be written");
+			return new FingerprintStore(file, tables, new LongHashSet(16));
+		}
+
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(Files.newInputStream(file), 64 * 1024))) {
+
+			if(in.readInt() != MAGIC) {
+				logger.info(file + " is not a current fingerprint store, every cell will be written");
+				return new FingerprintStore(file, tables, new LongHashSet(16));
+			}
+
+			String stored = in.readUTF();
+			if(!stored.equals(tables)) {
+				logger.info("fingerprints at " + file + " are for tables " + stored + ", not " + tables
+						+ ", every cell will be written");
+				return new FingerprintStore(file, tables, new LongHashSet(16));
+			}
+
+			int count = in.readInt();
+			LongHashSet previous = new LongHashSet(count);
+			for(int i = 0; i < count; i++) {
+				previous.add(in.readLong());
+			}
+
+			logger.info("loaded " + count + " fingerprints from " + file);
+			return new FingerprintStore(file, tables, previous);
+		}
+	}
+
+	/**
+	 * Identifies the given tables of conn's instance, so that a store is not
+	 * used against a recreated table or another instance with the same
+	 * table names
+	 *
+	 * @param conn
+	 * @param tables
+	 * @return
+	 * @throws TableNotFoundException if one of them doesn't exist
+	 */
+	public static String tablesId(Connector conn, String... tables) throws TableNotFoundException {
+
+		Map<String, String> ids = conn.tableOperations().tableIdMap();
+		StringBuilder id = new StringBuilder(conn.getInstance().getInstanceID());
+		for(String table : tables) {
+			if(!ids.containsKey(table)) {
+				throw new TableNotFoundException(null, table, null);
+			}
+			id.append(',').append(ids.get(table));
+		}
+		return id.toString();
+	}
+
+	private FingerprintStore(Path file, String tables, LongHashSet previous) {
+		this.file = file;
+		this.tables = tables;
+		this.previous = previous;
+	}
+
+	/**
+	 * Wraps a writer for table so that it drops cells the previous run wrote
+	 *
+	 * @param writer
+	 * @param table
+	 * @return
+	 */
+	public BatchWriter filter(BatchWriter writer, String table) {
+		return new FilteringBatchWriter(writer, table);
+	}
+
+	/**
+	 * Wraps a multi-table writer; the BatchWriters it hands out are filtered
+	 *
+	 * @param writer
+	 * @return
+	 */
+	public MultiTableBatchWriter filter(final MultiTableBatchWriter writer) {
+		return new MultiTableBatchWriter() {
+
+			@Override
+			public BatchWriter getBatchWriter(String table)
+					throws AccumuloException, AccumuloSecurityException, TableNotFoundException {
+				return new FilteringBatchWriter(writer.getBatchWriter(table), table);
+			}
+
+			@Override
+			public void flush() throws MutationsRejectedException {
+				writer.flush();
+			}
+
+			@Override
+			public void close() throws MutationsRejectedException {
+				writer.close();
+			}
+
+			@Override
+			public boolean isClosed() {
+				return writer.isClosed();
+			}
+		};
+	}
+
+	public long getWritten() {
+		return written.get();
+	}
+
+	public long getSkipped() {
+		return skipped.get();
+	}
+
+	/**
+	 * Replaces the stored fingerprints with the ones seen by this run. Only
+	 * call this once everything has been written.
+	 *
+	 * @throws IOException
+	 */
+	public void save() throws IOException {
+
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(Files.newOutputStream(tmp), 64 * 1024))) {
+
+			out.writeInt(MAGIC);
+			out.writeUTF(tables);
+			current.writeTo(out);
+		}
+
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		logger.info("wrote " + written + " cells, skipped " + skipped
+				+ " unchanged; saved " + current.size() + " fingerprints to " + file);
+	}
+
+	/**
+	 * FNV-1a over the table and each field with its length, finished with
+	 * the MurmurHash3 mixer so the low bits used by the sets are well spread
+	 */
+	static long fingerprint(byte[] table, byte[] row, ColumnUpdate update) {
+
+		long h = 0xcbf29ce484222325L;
+		h = hash(h, table);
+		h = hash(h, row);
+		h = hash(h, update.getColumnFamily());
+		h = hash(h, update.getColumnQualifier());
+		h = hash(h, update.getColumnVisibility());
+		h = hash(h, update.getValue());
+
+		if(update.hasTimestamp()) {
+			h = hash(h, update.getTimestamp());
+		}
+
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private static long hash(long h, byte[] bytes) {
+		h = hash(h, bytes.length);
+		for(byte b : bytes) {
+			h ^= b & 0xff;
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+
+	private static long hash(long h, long value) {
+		for(int i = 0; i < 8; i++) {
+			h ^= (value >>> (i * 8)) & 0xff;
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+
+	private class FilteringBatchWriter implements BatchWriter {
+
+		private final BatchWriter writer;
+		private final byte[] table;
+
+		FilteringBatchWriter(BatchWriter writer, String table) {
+			this.writer = writer;
+			this.table = table.getBytes(StandardCharsets.UTF_8);
+		}
+
+		@Override
+		public void addMutation(Mutation m) throws MutationsRejectedException {
+
+			byte[] row = m.getRow();
+			List<ColumnUpdate> updates = m.getUpdates();
+			boolean[] keep = new boolean[updates.size()];
+			int kept = 0;
+
+			for(int i = 0; i < keep.length; i++) {
+				ColumnUpdate update = updates.get(i);
+
+				// deletes are always sent and not remembered
+				if(!update.isDeleted()) {
+					long fingerprint = fingerprint(table, row, update);
+					current.add(fingerprint);
+
+					if(previous.contains(fingerprint)) {
+						continue;
+					}
+				}
+
+				keep[i] = true;
+				kept++;
+			}
+
+			skipped.addAndGet(keep.length - kept);
+
+			if(kept == 0) {
+				return;
+			}
+
+			written.addAndGet(kept);
+
+			if(kept == keep.length) {
+				writer.addMutation(m);
+				return;
+			}
+
+			Mutation changed = new Mutation(row);
+			for(int i = 0; i < keep.length; i++) {
+				if(keep[i]) {
+					put(changed, updates.get(i));
+				}
+			}
+			writer.addMutation(changed);
+		}
+
+		@Override
+		public void addMutations(Iterable<Mutation> iterable) throws MutationsRejectedException {
+			for(Mutation m : iterable) {
+				addMutation(m);
+			}
+		}
+
+		@Override
+		public void flush() throws MutationsRejectedException {
+			writer.flush();
+		}
+
+		@Override
+		public void close() throws MutationsRejectedException {
+			writer.close();
+		}
+
+		private void put(Mutation m, ColumnUpdate update) {
+
+			ColumnVisibility visibility = new ColumnVisibility(update.getColumnVisibility());
+
+			if(update.isDeleted()) {
+				if(update.hasTimestamp()) {
+					m.putDelete(update.getColumnFamily(), update.getColumnQualifier(), visibility, update.getTimestamp());
+				} else {
+					m.putDelete(update.getColumnFamily(), update.getColumnQualifier(), visibility);
+				}
+			} else if(update.hasTimestamp()) {
+				m.put(update.getColumnFamily(), update.getColumnQualifier(), visibility, update.getTimestamp(), update.getValue());
+			} else {
+				m.put(update.getColumnFamily(), update.getColumnQualifier(), visibility, update.getValue());
+			}
+		}
+	}
+
+	/**
+	 * A set of longs with linear probing, split into independently locked
+	 * segments so ingest threads rarely wait on each other. Zero marks an
+	 * empty slot, so a zero fingerprint is stored as one.
+	 */
+	static class LongHashSet {
+
+		private static final int SEGMENTS = 64;
+
+		private final Segment[] segments = new Segment[SEGMENTS];
+
+		LongHashSet(int expected) {
+			for(int i = 0; i < SEGMENTS; i++) {
+				segments[i] = new Segment(Math.max(16, expected / SEGMENTS));
+			}
+		}
+
+		boolean add(long value) {
+			value = value == 0 ? 1 : value;
+			return segmentFor(value).add(value);
+		}
+
+		boolean contains(long value) {
+			value = value == 0 ? 1 : value;
+			return segmentFor(value).contains(value);
+		}
+
+		long size() {
+			long size = 0;
+			for(Segment segment : segments) {
+				size += segment.size();
+			}
+			return size;
+		}
+
+		void writeTo(DataOutputStream out) throws IOException {
+
+			long size = size();
+			if(size > Integer.MAX_VALUE) {
+				throw new IOException("too many fingerprints to save: " + size);
+			}
+
+			out.writeInt((int) size);
+			for(Segment segment : segments) {
+				segment.writeTo(out);
+			}
+		}
+
+		private Segment segmentFor(long value) {
+			// the top bits pick the segment, the low bits the slot
+			return segments[(int) (value >>> 58)];
+		}
+
+		private static class Segment {
+
+			private long[] slots;
+			private int size = 0;
+
+			Segment(int expected) {
+				int capacity = Integer.highestOneBit(Math.max(16, expected * 2 - 1)) << 1;
+				slots = new long[capacity];
+			}
+
+			synchronized boolean add(long value) {
+
+				if(size * 2 >= slots.length) {
+					grow();
+				}
+
+				int mask = slots.length - 1;
+				int i = (int) value & mask;
+				while(slots[i] != 0) {
+					if(slots[i] == value) {
+						return false;
+					}
+					i = (i + 1) & mask;
+				}
+
+				slots[i] = value;
+				size++;
+				return true;
+			}
+
+			synchronized boolean contains(long value) {
+
+				int mask = slots.length - 1;
+				int i = (int) value & mask;
+				while(slots[i] != 0) {
+					if(slots[i] == value) {
+						return true;
+					}
+					i = (i + 1) & mask;
+				}
+				return false;
+			}
+
+			synchronized int size() {
+				return size;
+			}
+
+			synchronized void writeTo(DataOutputStream out) throws IOException {
+				for(long value : slots) {
+					if(value != 0) {
+						out.writeLong(value);
+					}
+				}
+			}
+
+			private void grow() {
+				long[] old = slots;
+				slots = new long[old.length * 2];
+				size = 0;
+
+				int mask = slots.length - 1;
+				for(long value : old) {
+					if(value != 0) {
+						int i = (int) value & mask;
+						while(slots[i] != 0) {
+							i = (i + 1) & mask;
+						}
+						slots[i] = value;
+						size++;
+					}
+				}
+			}
+		}
+	}
+}
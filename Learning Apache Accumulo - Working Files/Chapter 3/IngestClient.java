@@ -1,10 +1,8 @@
 package com.oreilly.accumulotraining;
 
-import java.io.File;
 import java.io.IOException;
-import java.nio.charset.Charset;
-import java.util.Iterator;
 
+import java.nio.file.Paths;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -12,33 +10,18 @@ import java.util.logging.Logger;
 import org.apache.accumulo.core.client.AccumuloException;
 import org.apache.accumulo.core.client.AccumuloSecurityException;
 import org.apache.accumulo.core.client.BatchWriter;
-import org.apache.accumulo.core.client.BatchWriterConfig;
 import org.apache.accumulo.core.client.Connector;
-import org.apache.accumulo.core.client.Durability;
-import org.apache.accumulo.core.client.Instance;
 import org.apache.accumulo.core.client.MutationsRejectedException;
 import org.apache.accumulo.core.client.TableExistsException;
 import org.apache.accumulo.core.client.TableNotFoundException;
-import org.apache.accumulo.core.client.ZooKeeperInstance;
-import org.apache.accumulo.core.client.security.tokens.PasswordToken;
-import org.apache.accumulo.core.data.Mutation;
-import org.apache.accumulo.core.data.Value;
 
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVParser;
-import org.apache.commons.csv.CSVRecord;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
 
 public class IngestClient {
 	
 	private static final Logger logger = Logger.getLogger(IngestClient.class.getName());
 	
-	private static final int COUNTRY = 0;
-	private static final int COMMODITY = 1;
-	private static final int YEAR = 2;
-	private static final int UNIT = 3;
-	private static final int QUANTITY = 4;
-	private static final int FOOTNOTES = 5;
-	
 	public static void run(
 			String instanceName, 
 			String zookeepers, 
@@ -50,58 +33,109 @@ public class IngestClient {
 		try {
 			
 			System.out.println("connecting to accumulo ...");
-			Instance inst = new ZooKeeperInstance(instanceName, zookeepers);
-			System.out.println("got instance");
-			Connector conn = inst.getConnector(username, new PasswordToken(password));
+			Connector conn = ConnectionManager.shared().getConnector(instanceName, zookeepers, username, password);
 			System.out.println("got connector");
 			
-			if(!conn.tableOperations().exists(table)) {
-				System.out.println("creating table " + table);
-				conn.tableOperations().create(table);
+			createTableIfMissing(conn, table, filename);
+			
+			try (IngestMetrics metrics = new IngestMetrics(table).startLogging(10, TimeUnit.SECONDS)) {
+				
+				BatchWriter writer = metrics.meter(new AdaptiveBatchWriterFactory().createBatchWriter(conn, table));
+				
+				System.out.println("writing data from file " + filename + " ...");
+				
+				// a restart after a failure continues from the last checkpoint
+				int written = CheckpointedIngest.ingest(filename, writer, new TokenizedIngest(writer, metrics));
+				
+				writer.close();
+				
+				System.out.println("wrote " + written + " records");
 			}
+		
+		} catch (MutationsRejectedException ex) {
 			
-			BatchWriterConfig config = new BatchWriterConfig();
-			config.setMaxLatency(1, TimeUnit.SECONDS);
-			config.setMaxMemory(10240);
-			config.setDurability(Durability.DEFAULT);
-			config.setMaxWriteThreads(10);
+			// see Error Handling Example
 			
-			BatchWriter writer = conn.createBatchWriter(table, config);
+		} catch (AccumuloException | AccumuloSecurityException | TableNotFoundException | TableExistsException | IOException ex) {
+			logger.log(Level.SEVERE, ex.getLocalizedMessage(), ex);
+		}
+	}	
+	
+	/**
+	 * Loads the same data as run() by writing sorted RFiles under workDir
+	 * and importing them, instead of sending Mutations to the tablet servers
+	 */
+	public static void runBulk(
+			String instanceName, 
+			String zookeepers, 
+			String username, 
+			String password, 
+			String table, 
+			String filename,
+			String workDir) {
+		
+		try {
+			
+			System.out.println("connecting to accumulo ...");
+			Connector conn = ConnectionManager.shared().getConnector(instanceName, zookeepers, username, password);
 			
-			int written = 0;
-			File csvData = new File(filename);
+			createTableIfMissing(conn, table, filename);
 			
-			System.out.println("parsing file");
-			CSVParser parser = CSVParser.parse(csvData, Charset.defaultCharset(), CSVFormat.EXCEL);
+			BulkIngest.Writer writer = BulkIngest.createWriter(
+					conn, FileSystem.get(new Configuration()), workDir, table, false);
 			
-			System.out.println("writing data from file " + filename + " ...");
+			System.out.println("sorting data from file " + filename + " ...");
 			
-			Iterator<CSVRecord> records = parser.getRecords().iterator();
-			records.next(); // skip header
+			int written = ParallelIngest.ingestChunks(filename, new TokenizedIngest(writer));
 			
-			while(records.hasNext()) {
-				CSVRecord csvRecord = records.next();
+			System.out.println("importing into " + table + " ...");
+			writer.importInto();
+			
+			System.out.println("loaded " + written + " records");
+		
+		} catch (AccumuloException | AccumuloSecurityException | TableNotFoundException | TableExistsException | IOException ex) {
+			logger.log(Level.SEVERE, ex.getLocalizedMessage(), ex);
+		}
+	}
+	
+	/**
+	 * Loads the file like run(), but only writes cells that are new or
+	 * changed since the previous load recorded in fingerprintFile
+	 */
+	public static void runIncremental(
+			String instanceName, 
+			String zookeepers, 
+			String username, 
+			String password, 
+			String table, 
+			String filename,
+			String fingerprintFile) {
+		
+		try {
+			
+			System.out.println("connecting to accumulo ...");
+			Connector conn = ConnectionManager.shared().getConnector(instanceName, zookeepers, username, password);
+			
+			boolean created = createTableIfMissing(conn, table, filename);
+			
+			FingerprintStore fingerprints = FingerprintStore.open(
+					Paths.get(fingerprintFile), FingerprintStore.tablesId(conn, table), created);
+			
+			try (IngestMetrics metrics = new IngestMetrics(table).startLogging(10, TimeUnit.SECONDS)) {
+				
+				BatchWriter writer = fingerprints.filter(
+						metrics.meter(new AdaptiveBatchWriterFactory().createBatchWriter(conn, table)), table);
 				
-				if(csvRecord.size() < 6) {
-					continue;
-				}
+				System.out.println("writing changes from file " + filename + " ...");
 				
-				String energyType = parseEnergyType(csvRecord.get(COMMODITY));
-				Mutation m = new Mutation(csvRecord.get(COUNTRY));
+				int read = ParallelIngest.ingestChunks(filename, new TokenizedIngest(writer, metrics));
 				
-				m.put(
-						energyType, 
-						csvRecord.get(YEAR), 
-						new Value(csvRecord.get(QUANTITY).getBytes()));
+				writer.close();
+				fingerprints.save();
 				
-				writer.addMutation(m);
-				written++;
+				System.out.println("read " + read + " records, wrote " + fingerprints.getWritten() 
+						+ " cells, skipped " + fingerprints.getSkipped() + " unchanged");
 			}
-			
-			writer.close();
-			parser.close();
-			
-			System.out.println("wrote " + written + " records");
 		
 		} catch (MutationsRejectedException ex) {
 			
@@ -110,12 +144,25 @@ public class IngestClient {
 		} catch (AccumuloException | AccumuloSecurityException | TableNotFoundException | TableExistsException | IOException ex) {
 			logger.log(Level.SEVERE, ex.getLocalizedMessage(), ex);
 		}
-	}	
-
-	private static String parseEnergyType(String line) {
-		String[] parts = line.split("\\s+");
-		if(parts.length > 3)
-			return parts[3];
-		return line;
+	}
+	
+	/**
+	 * @return true if the table was created
+	 */
+	private static boolean createTableIfMissing(Connector conn, String table, String filename) 
+			throws AccumuloException, AccumuloSecurityException, TableExistsException, TableNotFoundException, IOException {
+		
+		if(!conn.tableOperations().exists(table)) {
+			System.out.println("creating table " + table);
+			conn.tableOperations().create(table);
+			
+			// spread the first writes across tablet servers
+			OptimizationExamples.splitTable(
+					conn, 
+					table, 
+					SplitPlanner.countrySplits(filename, SplitPlanner.defaultSplitCount(conn)));
+			return true;
+		}
+		return false;
 	}
 }
@@ -0,0 +1,545 @@
+package com.oreilly.accumulotraining;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.accumulo.core.client.AccumuloException;
+import org.apache.accumulo.core.client.AccumuloSecurityException;
+import org.apache.accumulo.core.client.BatchWriter;
+import org.apache.accumulo.core.client.MultiTableBatchWriter;
+import org.apache.accumulo.core.client.MutationsRejectedException;
+import org.apache.accumulo.core.client.TableNotFoundException;
+import org.apache.accumulo.core.data.ConstraintViolationSummary;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.commons.csv.CSVRecord;
+
+/**
+ * Measures an ingest run so a slow load can be pinned on parsing, client
+ * memory or the tablet servers.
+ *
+ * Writers wrapped by meter() count the mutations, updates and bytes they are
+ * given, the time spent inside addMutation and the latency of each flush.
+ * addMutation only takes long when the client buffer is full, so a lot of
+ * blocked time with slow flushes means the servers are the limit, a lot
+ * with fast flushes means the buffer is too small, and a low record rate
+ * with little blocked time means parsing is.
+ * Records are counted by whoever parses them, through addRecords().
+ *
+ * The totals are registered as an MXBean named
+ * com.oreilly.accumulotraining:type=IngestMetrics,name=... and, once
+ * startLogging() is called, a summary of the last period is logged at a
+ * fixed rate. close() stops both and logs the totals.
+ */
+public class IngestMetrics implements IngestMetricsMXBean, AutoCloseable {
+
+	private static final Logger logger = Logger.getLogger(IngestMetrics.class.getName());
+
+	private final String name;
+	private final long started = System.nanoTime();
+
+	private final LongAdder records = new LongAdder();
+	private final LongAdder mutations = new LongAdder();
+	private final LongAdder updates = new LongAdder();
+	private final LongAdder bytes = new LongAdder();
+	private final LongAdder blockedNanos = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+
+	private final LatencyHistogram addMutationLatency = new LatencyHistogram();
+	private final LatencyHistogram flushLatency = new LatencyHistogram();
+
+	private ObjectName objectName = null;
+	private ScheduledExecutorService reporter = null;
+
+	// totals at the previous log line
+	private long lastReport = started;
+	private long lastRecords = 0;
+	private long lastBytes = 0;
+	private long lastBlockedNanos = 0;
+	private long lastRejected = 0;
+	private long[] lastAddMutationCounts = new long[LatencyHistogram.BUCKETS];
+	private long[] lastFlushCounts = new long[LatencyHistogram.BUCKETS];
+
+	/**
+	 * Creates metrics and registers them with the platform MBeanServer
+	 *
+	 * @param name identifies the run in JMX and in the log, such as the table
+	 */
+	public IngestMetrics(String name) {
+		this.name = name;
+
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName candidate = new ObjectName(
+					"com.oreilly.accumulotraining:type=IngestMetrics,name=" + ObjectName.quote(name));
+			server.registerMBean(this, candidate);
+			objectName = candidate;
+		} catch (JMException ex) {
+			// a second run with the same name in this JVM; the log still works
+			logger.log(Level.WARNING, "could not register metrics for " + name, ex);
+		}
+	}
+
+	/**
+	 * Logs a summary of the previous period every period
+	 *
+	 * @param period
+	 * @param unit
+	 * @return
+	 */
+	public synchronized IngestMetrics startLogging(long period, TimeUnit unit) {
+
+		if(reporter == null) {
+			reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "ingest-metrics-" + name);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+			reporter.scheduleAtFixedRate(new Runnable() {
+
+				@Override
+				public void run() {
+					logger.info(report());
+				}
+			}, period, period, unit);
+		}
+
+		return this;
+	}
+
+	public void addRecords(long count) {
+		records.add(count);
+	}
+
+	/**
+	 * Wraps a writer so everything sent through it is counted here
+	 *
+	 * @param writer
+	 * @return
+	 */
+	public BatchWriter meter(BatchWriter writer) {
+		return new MeteredBatchWriter(writer);
+	}
+
+	/**
+	 * Wraps a multi-table writer; the BatchWriters it hands out are metered
+	 * too
+	 *
+	 * @param writer
+	 * @return
+	 */
+	public MultiTableBatchWriter meter(MultiTableBatchWriter writer) {
+		return new MeteredMultiTableBatchWriter(writer);
+	}
+
+	/**
+	 * Counts every record handled by the handlers factory makes
+	 *
+	 * @param factory
+	 * @return
+	 */
+	public CsvIngest.RecordHandlerFactory count(final CsvIngest.RecordHandlerFactory factory) {
+		return new CsvIngest.RecordHandlerFactory() {
+
+			@Override
+			public CsvIngest.RecordHandler newHandler() {
+				final CsvIngest.RecordHandler handler = factory.newHandler();
+
+				return new CsvIngest.RecordHandler() {
+
+					@Override
+					public void handle(CSVRecord csvRecord) throws MutationsRejectedException {
+						handler.handle(csvRecord);
+						records.increment();
+					}
+
+					@Override
+					public void finish() throws MutationsRejectedException {
+						handler.finish();
+					}
+				};
+			}
+		};
+	}
+
+	/**
+	 * Stops logging, unregisters from JMX and logs the totals
+	 */
+	@Override
+	public synchronized void close() {
+
+		if(reporter != null) {
+			reporter.shutdownNow();
+			reporter = null;
+		}
+
+		if(objectName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			} catch (JMException ex) {
+				logger.log(Level.FINE, "could not unregister metrics for " + name, ex);
+			}
+			objectName = null;
+		}
+
+		logger.info(summary());
+	}
+
+	/**
+	 * Rates, latencies and counts over the period since the previous
+	 * report, and the records written in total
+	 *
+	 * @return
+	 */
+	synchronized String report() {
+
+		long now = System.nanoTime();
+		double seconds = Math.max(1e-9, (now - lastReport) / 1e9);
+
+		long r = records.sum();
+		long b = bytes.sum();
+		long blocked = blockedNanos.sum();
+		long rejectedTotal = rejected.sum();
+		long[] addMutationCounts = addMutationLatency.snapshot();
+		long[] flushCounts = flushLatency.snapshot();
+		long[] periodAddMutations = LatencyHistogram.since(addMutationCounts, lastAddMutationCounts);
+		long[] periodFlushes = LatencyHistogram.since(flushCounts, lastFlushCounts);
+
+		String line = String.format(
+				"%s: %.0f records/s, %.2f MB/s, blocked %.0f ms/s in addMutation (p99 %.2f ms), "
+				+ "%d flushes (p99 %.1f ms), %d rejected, %d records total",
+				name,
+				(r - lastRecords) / seconds,
+				(b - lastBytes) / seconds / (1024 * 1024),
+				(blocked - lastBlockedNanos) / 1e6 / seconds,
+				LatencyHistogram.percentileMillis(periodAddMutations, 0.99),
+				LatencyHistogram.count(periodFlushes),
+				LatencyHistogram.percentileMillis(periodFlushes, 0.99),
+				rejectedTotal - lastRejected,
+				r);
+
+		lastReport = now;
+		lastRecords = r;
+		lastBytes = b;
+		lastBlockedNanos = blocked;
+		lastRejected = rejectedTotal;
+		lastAddMutationCounts = addMutationCounts;
+		lastFlushCounts = flushCounts;
+
+		return line;
+	}
+
+	/**
+	 * Averages and totals over the whole run
+	 *
+	 * @return
+	 */
+	String summary() {
+		return String.format(
+				"%s: %d records, %d mutations, %d updates, %d bytes in %.1f s; "
+				+ "%.0f records/s, %.2f MB/s, blocked %d ms, flush p50 %.1f ms p99 %.1f ms max %.1f ms, %d rejected",
+				name,
+				getRecords(),
+				getMutations(),
+				getUpdates(),
+				getBytes(),
+				elapsedSeconds(),
+				getRecordsPerSecond(),
+				getBytesPerSecond() / (1024 * 1024),
+				getBlockedMillis(),
+				getFlushP50Millis(),
+				getFlushP99Millis(),
+				getFlushMaxMillis(),
+				getRejectedMutations());
+	}
+
+	@Override
+	public long getRecords() {
+		return records.sum();
+	}
+
+	@Override
+	public long getMutations() {
+		return mutations.sum();
+	}
+
+	@Override
+	public long getUpdates() {
+		return updates.sum();
+	}
+
+	@Override
+	public long getBytes() {
+		return bytes.sum();
+	}
+
+	@Override
+	public double getRecordsPerSecond() {
+		return records.sum() / elapsedSeconds();
+	}
+
+	@Override
+	public double getBytesPerSecond() {
+		return bytes.sum() / elapsedSeconds();
+	}
+
+	@Override
+	public long getBlockedMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(blockedNanos.sum());
+	}
+
+	@Override
+	public double getAddMutationP99Millis() {
+		return addMutationLatency.percentileMillis(0.99);
+	}
+
+	@Override
+	public long getFlushes() {
+		return flushLatency.count();
+	}
+
+	@Override
+	public double getFlushP50Millis() {
+		return flushLatency.percentileMillis(0.5);
+	}
+
+	@Override
+	public double getFlushP99Millis() {
+		return flushLatency.percentileMillis(0.99);
+	}
+
+	@Override
+	public double getFlushMaxMillis() {
+		return flushLatency.percentileMillis(1.0);
+	}
+
+	@Override
+	public long getRejectedMutations() {
+		return rejected.sum();
+	}
+
+	private double elapsedSeconds() {
+		return Math.max(1e-9, (System.nanoTime() - started) / 1e9);
+	}
+
+	private void rejected(MutationsRejectedException ex) {
+
+		long count = ex.getUnknownExceptions() + ex.getSecurityErrorCodes().size();
+		for(ConstraintViolationSummary summary : ex.getConstraintViolationSummaries()) {
+			count += summary.getNumberOfViolatingMutations();
+		}
+
+		rejected.add(Math.max(1, count));
+	}
+
+	private void added(int size, long numBytes, long nanos) {
+		mutations.increment();
+		updates.add(size);
+		bytes.add(numBytes);
+		blockedNanos.add(nanos);
+		addMutationLatency.add(nanos);
+	}
+
+	private class MeteredBatchWriter implements BatchWriter {
+
+		private final BatchWriter writer;
+
+		MeteredBatchWriter(BatchWriter writer) {
+			this.writer = writer;
+		}
+
+		@Override
+		public void addMutation(Mutation m) throws MutationsRejectedException {
+
+			// sized before the writer's threads can see it
+			int size = m.size();
+			long numBytes = m.numBytes();
+
+			long start = System.nanoTime();
+			try {
+				writer.addMutation(m);
+			} catch (MutationsRejectedException ex) {
+				rejected(ex);
+				throw ex;
+			}
+			added(size, numBytes, System.nanoTime() - start);
+		}
+
+		@Override
+		public void addMutations(Iterable<Mutation> iterable) throws MutationsRejectedException {
+			for(Mutation m : iterable) {
+				addMutation(m);
+			}
+		}
+
+		@Override
+		public void flush() throws MutationsRejectedException {
+
+			long start = System.nanoTime();
+			try {
+				writer.flush();
+			} catch (MutationsRejectedException ex) {
+				rejected(ex);
+				throw ex;
+			} finally {
+				flushLatency.add(System.nanoTime() - start);
+			}
+		}
+
+		/**
+		 * Closing sends whatever is still buffered, so it is timed as a flush
+		 */
+		@Override
+		public void close() throws MutationsRejectedException {
+
+			long start = System.nanoTime();
+			try {
+				writer.close();
+			} catch (MutationsRejectedException ex) {
+				rejected(ex);
+				throw ex;
+			} finally {
+				flushLatency.add(System.nanoTime() - start);
+			}
+		}
+	}
+
+	private class MeteredMultiTableBatchWriter implements MultiTableBatchWriter {
+
+		private final MultiTableBatchWriter writer;
+
+		MeteredMultiTableBatchWriter(MultiTableBatchWriter writer) {
+			this.writer = writer;
+		}
+
+		@Override
+		public BatchWriter getBatchWriter(String table)
+				throws AccumuloException, AccumuloSecurityException, TableNotFoundException {
+
+			return new MeteredBatchWriter(writer.getBatchWriter(table));
+		}
+
+		@Override
+		public void flush() throws MutationsRejectedException {
+
+			long start = System.nanoTime();
+			try {
+				writer.flush();
+			} catch (MutationsRejectedException ex) {
+				rejected(ex);
+				throw ex;
+			} finally {
+				flushLatency.add(System.nanoTime() - start);
+			}
+		}
+
+		@Override
+		public void close() throws MutationsRejectedException {
+
+			long start = System.nanoTime();
+			try {
+				writer.close();
+			} catch (MutationsRejectedException ex) {
+				rejected(ex);
+				throw ex;
+			} finally {
+				flushLatency.add(System.nanoTime() - start);
+			}
+		}
+
+		@Override
+		public boolean isClosed() {
+			return writer.isClosed();
+		}
+	}
+
+	/**
+	 * Counts latencies in power-of-two microsecond buckets, which is precise
+	 * enough to tell a 2 ms flush from a 2 s one without locking. Counts are
+	 * kept since creation; a period's share is the difference of two
+	 * snapshots.
+	 */
+	private static class LatencyHistogram {
+
+		static final int BUCKETS = 64;
+
+		private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+		void add(long nanos) {
+			long micros = Math.max(0, nanos / 1000);
+			counts.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(micros));
+		}
+
+		long[] snapshot() {
+			long[] snapshot = new long[BUCKETS];
+			for(int i = 0; i < BUCKETS; i++) {
+				snapshot[i] = counts.get(i);
+			}
+			return snapshot;
+		}
+
+		long count() {
+			return count(snapshot());
+		}
+
+		double percentileMillis(double fraction) {
+			return percentileMillis(snapshot(), fraction);
+		}
+
+		/**
+		 * The samples added between two snapshots
+		 */
+		static long[] since(long[] now, long[] before) {
+			long[] period = new long[BUCKETS];
+			for(int i = 0; i < BUCKETS; i++) {
+				period[i] = now[i] - before[i];
+			}
+			return period;
+		}
+
+		static long count(long[] counts) {
+			long total = 0;
+			for(long c : counts) {
+				total += c;
+			}
+			return total;
+		}
+
+		/**
+		 * Upper bound of the bucket holding the given fraction of samples
+		 */
+		static double percentileMillis(long[] counts, double fraction) {
+
+			long total = count(counts);
+			if(total == 0) {
+				return 0;
+			}
+
+			long target = (long) Math.ceil(fraction * total);
+			long seen = 0;
+			for(int i = 0; i < BUCKETS; i++) {
+				seen += counts[i];
+				if(seen >= target && counts[i] > 0) {
+					return Math.scalb(1.0, i) / 1000.0;
+				}
+			}
+
+			return Double.MAX_VALUE;
+		}
+	}
+}
@@ -0,0 +1,38 @@
+package com.oreilly.accumulotraining;
+
+/**
+ * What IngestMetrics exposes through JMX. Counters are totals since the
+ * metrics were created; rates are averages over the same period.
+ */
+public interface IngestMetricsMXBean {
+
+	long getRecords();
+
+	long getMutations();
+
+	long getUpdates();
+
+	long getBytes();
+
+	double getRecordsPerSecond();
+
+	double getBytesPerSecond();
+
+	/**
+	 * Total time writers spent inside addMutation, most of which is waiting
+	 * for client buffer space while the servers catch up
+	 */
+	long getBlockedMillis();
+
+	double getAddMutationP99Millis();
+
+	long getFlushes();
+
+	double getFlushP50Millis();
+
+	double getFlushP99Millis();
+
+	double getFlushMaxMillis();
+
+	long getRejectedMutations();
+}
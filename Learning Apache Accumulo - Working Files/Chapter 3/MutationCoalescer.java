@@ -0,0 +1,117 @@
+package com.oreilly.accumulotraining;
+
+import org.apache.accumulo.core.client.BatchWriter;
+import org.apache.accumulo.core.client.MutationsRejectedException;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.security.ColumnVisibility;
+
+/**
+ * Collects consecutive column updates for the same row into a single
+ * Mutation before handing it to a BatchWriter.
+ *
+ * Input sorted or grouped by row, such as the per-country CSV extracts,
+ * turns into one Mutation per row instead of one per line, which saves
+ * repeating the row and the per-mutation overhead on the wire and in the
+ * tablet server's in-memory map. A Mutation is also sent once it reaches
+ * maxUpdates column updates or roughly maxBytes of data.
+ *
+ * Not thread safe; use one per thread.
+ */
+public class MutationCoalescer {
+
+	public static final int DEFAULT_MAX_UPDATES = 1000;
+	public static final long DEFAULT_MAX_BYTES = 1024 * 1024;
+
+	// serialized bytes per column update besides the column and value data
+	private static final int UPDATE_OVERHEAD = 16;
+
+	private final BatchWriter writer;
+	private final int maxUpdates;
+	private final long maxBytes;
+
+	private String row = null;
+	private Mutation pending = null;
+	private long pendingBytes = 0;
+
+	private long mutationsWritten = 0;
+	private long updatesWritten = 0;
+
+	public MutationCoalescer(BatchWriter writer) {
+		this(writer, DEFAULT_MAX_UPDATES, DEFAULT_MAX_BYTES);
+	}
+
+	public MutationCoalescer(BatchWriter writer, int maxUpdates, long maxBytes) {
+		this.writer = writer;
+		this.maxUpdates = maxUpdates;
+		this.maxBytes = maxBytes;
+	}
+
+	public void put(String row, String columnFamily, String columnQualifier, Value value)
+			throws MutationsRejectedException {
+
+		mutationFor(row).put(columnFamily, columnQualifier, value);
+		added(columnFamily.length() + columnQualifier.length() + value.getSize());
+	}
+
+	public void put(String row, String columnFamily, String columnQualifier, ColumnVisibility visibility, Value value)
+			throws MutationsRejectedException {
+
+		mutationFor(row).put(columnFamily, columnQualifier, visibility, value);
+		added(columnFamily.length() + columnQualifier.length() + visibility.getExpression().length + value.getSize());
+	}
+
+	/**
+	 * Sends the Mutation being built, if any, to the BatchWriter
+	 *
+	 * @throws MutationsRejectedException
+	 */
+	public void flush() throws MutationsRejectedException {
+
+		if(pending == null) {
+			return;
+		}
+
+		updatesWritten += pending.size();
+		mutationsWritten++;
+
+		Mutation m = pending;
+		pending = null;
+		row = null;
+		pendingBytes = 0;
+
+		writer.addMutation(m);
+	}
+
+	public long getMutationsWritten() {
+		return mutationsWritten;
+	}
+
+	public long getUpdatesWritten() {
+		return updatesWritten;
+	}
+
+	private Mutation mutationFor(String rowString) throws MutationsRejectedException {
+
+		if(pending != null && !row.equals(rowString)) {
+			flush();
+		}
+
+		if(pending == null) {
+			row = rowString;
+			pending = new Mutation(rowString);
+			pendingBytes = rowString.length();
+		}
+
+		return pending;
+	}
+
+	private void added(long bytes) throws MutationsRejectedException {
+
+		pendingBytes += bytes + UPDATE_OVERHEAD;
+
+		if(pending.size() >= maxUpdates || pendingBytes >= maxBytes) {
+			flush();
+		}
+	}
+}
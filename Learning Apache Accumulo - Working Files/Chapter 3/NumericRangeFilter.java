@@ -0,0 +1,156 @@
+package com.oreilly.accumulotraining;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import org.apache.accumulo.core.client.IteratorSetting;
+import org.apache.accumulo.core.data.ByteSequence;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.Filter;
+import org.apache.accumulo.core.iterators.IteratorEnvironment;
+import org.apache.accumulo.core.iterators.SortedKeyValueIterator;
+
+/**
+ * Keeps the entries whose column qualifier, or value, is a number within
+ * a range, such as the years 2000 to 2010 or quantities over 100 in the
+ * energy table. Runs on the tablet servers, so entries outside the range
+ * never leave them.
+ *
+ * The field is read as a decimal number, as the clients in this project
+ * write years and quantities. Entries whose field isn't a number are
+ * dropped. Either bound may be left out.
+ */
+public class NumericRangeFilter extends Filter {
+
+	public static final String FIELD_OPTION = "field";
+	public static final String MIN_OPTION = "min";
+	public static final String MAX_OPTION = "max";
+	public static final String MIN_INCLUSIVE_OPTION = "minInclusive";
+	public static final String MAX_INCLUSIVE_OPTION = "maxInclusive";
+
+	public enum Field {
+		QUALIFIER, VALUE
+	}
+
+	private Field field = Field.VALUE;
+	private double min = Double.NEGATIVE_INFINITY;
+	private double max = Double.POSITIVE_INFINITY;
+	private boolean minInclusive = true;
+	private boolean maxInclusive = true;
+
+	/**
+	 * @param setting
+	 * @param field which part of each entry to compare
+	 */
+	public static void setField(IteratorSetting setting, Field field) {
+		setting.addOption(FIELD_OPTION, field.name());
+	}
+
+	/**
+	 * @param setting
+	 * @param min
+	 * @param inclusive whether min itself is kept
+	 */
+	public static void setMin(IteratorSetting setting, double min, boolean inclusive) {
+		setting.addOption(MIN_OPTION, Double.toString(min));
+		setting.addOption(MIN_INCLUSIVE_OPTION, Boolean.toString(inclusive));
+	}
+
+	/**
+	 * @param setting
+	 * @param max
+	 * @param inclusive whether max itself is kept
+	 */
+	public static void setMax(IteratorSetting setting, double max, boolean inclusive) {
+		setting.addOption(MAX_OPTION, Double.toString(max));
+		setting.addOption(MAX_INCLUSIVE_OPTION, Boolean.toString(inclusive));
+	}
+
+	@Override
+	public void init(SortedKeyValueIterator<Key, Value> source, Map<String, String> options, IteratorEnvironment env)
+			throws IOException {
+		super.init(source, options, env);
+
+		if(options.containsKey(FIELD_OPTION)) {
+			field = Field.valueOf(options.get(FIELD_OPTION));
+		}
+		if(options.containsKey(MIN_OPTION)) {
+			min = Double.parseDouble(options.get(MIN_OPTION));
+			minInclusive = !options.containsKey(MIN_INCLUSIVE_OPTION)
+					|| Boolean.parseBoolean(options.get(MIN_INCLUSIVE_OPTION));
+		}
+		if(options.containsKey(MAX_OPTION)) {
+			max = Double.parseDouble(options.get(MAX_OPTION));
+			maxInclusive = !options.containsKey(MAX_INCLUSIVE_OPTION)
+					|| Boolean.parseBoolean(options.get(MAX_INCLUSIVE_OPTION));
+		}
+	}
+
+	@Override
+	public SortedKeyValueIterator<Key, Value> deepCopy(IteratorEnvironment env) {
+		NumericRangeFilter copy = (NumericRangeFilter) super.deepCopy(env);
+		copy.field = field;
+		copy.min = min;
+		copy.max = max;
+		copy.minInclusive = minInclusive;
+		copy.maxInclusive = maxInclusive;
+		return copy;
+	}
+
+	@Override
+	public boolean accept(Key k, Value v) {
+		double number;
+		try {
+			if(field == Field.QUALIFIER) {
+				ByteSequence cq = k.getColumnQualifierData();
+				number = parse(cq.getBackingArray(), cq.offset(), cq.length());
+			} else {
+				number = parse(v.get(), 0, v.getSize());
+			}
+		} catch (NumberFormatException ex) {
+			return false;
+		}
+
+		return (minInclusive ? number >= min : number > min)
+				&& (maxInclusive ? number <= max : number < max);
+	}
+
+	@Override
+	public IteratorOptions describeOptions() {
+		IteratorOptions options = super.describeOptions();
+		options.setName("numericRange");
+		options.setDescription("keeps entries whose qualifier or value is a number within a range");
+		options.addNamedOption(FIELD_OPTION, "QUALIFIER or VALUE (default VALUE)");
+		options.addNamedOption(MIN_OPTION, "lowest number kept (optional)");
+		options.addNamedOption(MIN_INCLUSIVE_OPTION, "whether min itself is kept (default true)");
+		options.addNamedOption(MAX_OPTION, "highest number kept (optional)");
+		options.addNamedOption(MAX_INCLUSIVE_OPTION, "whether max itself is kept (default true)");
+		return options;
+	}
+
+	@Override
+	public boolean validateOptions(Map<String, String> options) {
+		super.validateOptions(options);
+		try {
+			if(options.containsKey(FIELD_OPTION)) {
+				Field.valueOf(options.get(FIELD_OPTION));
+			}
+			if(options.containsKey(MIN_OPTION)) {
+				Double.parseDouble(options.get(MIN_OPTION));
+			}
+			if(options.containsKey(MAX_OPTION)) {
+				Double.parseDouble(options.get(MAX_OPTION));
+			}
+		} catch (IllegalArgumentException ex) {
+			throw new IllegalArgumentException("bad " + getClass().getSimpleName() + " options: " + options, ex);
+		}
+		return true;
+	}
+
+	private static double parse(byte[] data, int offset, int length) {
+		// the digits of a year or quantity are ASCII, whatever the platform encoding
+		return Double.parseDouble(new String(data, offset, length, StandardCharsets.US_ASCII));
+	}
+}
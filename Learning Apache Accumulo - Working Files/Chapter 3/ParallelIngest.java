@@ -0,0 +1,398 @@
+package com.oreilly.accumulotraining;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.apache.accumulo.core.client.MutationsRejectedException;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+
+/**
+ * Parses one or more CSV files on a pool of worker threads.
+ *
+ * Each file is cut into chunks that end on a newline, and every chunk is
+ * memory-mapped and parsed independently. Every chunk gets its own
+ * RecordHandler from the factory, but all of them typically write to one
+ * shared BatchWriter or MultiTableBatchWriter, which are thread safe.
+ * A ChunkHandler can be given instead to work on the mapped bytes directly.
+ *
+ * Chunks are cut on raw newlines, so quoted fields must not contain line
+ * breaks. The UN energy extracts never do.
+ */
+public class ParallelIngest {
+
+	private static final Logger logger = Logger.getLogger(ParallelIngest.class.getName());
+
+	public static final long DEFAULT_CHUNK_SIZE = 64L * 1024 * 1024;
+
+	private static final int SCAN_BUFFER_SIZE = 8192;
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Processes one newline-aligned region of a file
+	 */
+	public interface ChunkHandler {
+		/**
+		 * @param region the mapped bytes of the chunk
+		 * @param firstInFile true if the region starts with the header line
+		 * @return the number of records written
+		 */
+		int handle(ByteBuffer region, boolean firstInFile) throws IOException, MutationsRejectedException;
+	}
+
+	/**
+	 * Ingests a file, a directory of files or a glob such as data/*.csv,
+	 * using one worker per available core
+	 *
+	 * @param input
+	 * @param handlers
+	 * @return the number of records handed to the handlers
+	 * @throws IOException
+	 * @throws MutationsRejectedException
+	 */
+	public static int ingest(String input, CsvIngest.RecordHandlerFactory handlers)
+			throws IOException, MutationsRejectedException {
+
+		return ingest(input, Runtime.getRuntime().availableProcessors(), DEFAULT_CHUNK_SIZE, handlers);
+	}
+
+	/**
+	 * Ingests a file, a directory of files or a glob by handing each mapped
+	 * chunk to handler, using one worker per available core
+	 *
+	 * @param input
+	 * @param handler must be safe to call from several threads
+	 * @return the number of records written
+	 * @throws IOException
+	 * @throws MutationsRejectedException
+	 */
+	public static int ingestChunks(String input, ChunkHandler handler)
+			throws IOException, MutationsRejectedException {
+
+		return ingestChunks(input, Runtime.getRuntime().availableProcessors(), DEFAULT_CHUNK_SIZE, handler);
+	}
+
+	/**
+	 *
+	 * @param input a file, directory or glob
+	 * @param threads number of parsing workers
+	 * @param chunkSize approximate number of bytes parsed per task
+	 * @param handlers
+	 * @return the number of records handed to the handlers
+	 * @throws IOException
+	 * @throws MutationsRejectedException
+	 */
+	public static int ingest(
+			String input,
+			int threads,
+			long chunkSize,
+			final CsvIngest.RecordHandlerFactory handlers)
+			throws IOException, MutationsRejectedException {
+
+		return ingestChunks(input, threads, chunkSize, new ChunkHandler() {
+
+			@Override
+			public int handle(ByteBuffer region, boolean firstInFile)
+					throws IOException, MutationsRejectedException {
+
+				BufferedReader reader = new BufferedReader(
+						new InputStreamReader(new ByteBufferInputStream(region), Charset.defaultCharset()),
+						READ_BUFFER_SIZE);
+
+				try (CSVParser parser = new CSVParser(reader, CSVFormat.EXCEL)) {
+					return CsvIngest.ingest(parser, firstInFile, handlers.newHandler());
+				}
+			}
+		});
+	}
+
+	/**
+	 *
+	 * @param input a file, directory or glob
+	 * @param threads number of workers
+	 * @param chunkSize approximate number of bytes handled per task
+	 * @param handler must be safe to call from several threads
+	 * @return the number of records written
+	 * @throws IOException
+	 * @throws MutationsRejectedException
+	 */
+	public static int ingestChunks(
+			String input,
+			int threads,
+			long chunkSize,
+			final ChunkHandler handler)
+			throws IOException, MutationsRejectedException {
+
+		List<Chunk> chunks = new ArrayList<>();
+		for(Path file : resolve(input)) {
+			chunks.addAll(split(file, chunkSize));
+		}
+
+		return execute(input, chunks, threads, new ChunkTask() {
+
+			@Override
+			public int process(Chunk chunk) throws IOException, MutationsRejectedException {
+				return handler.handle(map(chunk), chunk.firstInFile);
+			}
+		});
+	}
+
+	/**
+	 * Runs task over every chunk on a pool of workers
+	 *
+	 * @param input what the chunks were cut from, for messages
+	 * @param chunks
+	 * @param threads
+	 * @param task
+	 * @return the total of the counts returned by task
+	 * @throws IOException
+	 * @throws MutationsRejectedException
+	 */
+	static int execute(String input, List<Chunk> chunks, int threads, final ChunkTask task)
+			throws IOException, MutationsRejectedException {
+
+		logger.info("ingesting " + chunks.size() + " chunks with " + threads + " workers");
+
+		final AtomicInteger written = new AtomicInteger();
+
+		ExecutorService workers = Executors.newFixedThreadPool(threads, new WorkerThreadFactory());
+		try {
+			List<Future<Integer>> results = new ArrayList<>();
+			for(final Chunk chunk : chunks) {
+				results.add(workers.submit(new Callable<Integer>() {
+
+					@Override
+					public Integer call() throws Exception {
+						int count = task.process(chunk);
+						int total = written.addAndGet(count);
+
+						logger.info(Thread.currentThread().getName() + " wrote " + count
+								+ " records from " + chunk + ", " + total + " total");
+						return count;
+					}
+				}));
+			}
+
+			for(Future<Integer> result : results) {
+				result.get();
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while ingesting " + input, ex);
+		} catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if(cause instanceof MutationsRejectedException) {
+				throw (MutationsRejectedException) cause;
+			}
+			if(cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new IOException("failed ingesting " + input, cause);
+		} finally {
+			workers.shutdownNow();
+		}
+
+		return written.get();
+	}
+
+	/**
+	 * Expands a file, directory or glob into a sorted list of regular files
+	 *
+	 * @param input
+	 * @return
+	 * @throws IOException
+	 */
+	static List<Path> resolve(String input) throws IOException {
+
+		List<Path> files = new ArrayList<>();
+		Path path = Paths.get(input);
+
+		if(Files.isRegularFile(path)) {
+			files.add(path);
+			return files;
+		}
+
+		Path dir = path;
+		String glob = "*";
+
+		if(!Files.isDirectory(path)) {
+			dir = path.toAbsolutePath().getParent();
+			glob = path.getFileName().toString();
+		}
+
+		final PathMatcher matcher = dir.getFileSystem().getPathMatcher("glob:" + glob);
+
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+			for(Path entry : entries) {
+				if(Files.isRegularFile(entry) && matcher.matches(entry.getFileName())) {
+					files.add(entry);
+				}
+			}
+		}
+
+		if(files.isEmpty()) {
+			throw new IOException("no input files match " + input);
+		}
+
+		Collections.sort(files);
+		return files;
+	}
+
+	/**
+	 * Cuts a file into regions of roughly chunkSize bytes, each ending
+	 * just after a newline
+	 *
+	 * @param file
+	 * @param chunkSize
+	 * @return
+	 * @throws IOException
+	 */
+	static List<Chunk> split(Path file, long chunkSize) throws IOException {
+
+		List<Chunk> chunks = new ArrayList<>();
+
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = channel.size();
+			long start = 0;
+
+			while(start < size) {
+				long end = Math.min(start + chunkSize, size);
+				if(end < size) {
+					end = nextLineStart(channel, end);
+				}
+
+				chunks.add(new Chunk(file, start, end - start, start == 0));
+				start = end;
+			}
+		}
+
+		return chunks;
+	}
+
+	private static long nextLineStart(FileChannel channel, long position) throws IOException {
+
+		ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+		long size = channel.size();
+
+		while(position < size) {
+			buffer.clear();
+			int read = channel.read(buffer, position);
+			if(read <= 0) {
+				break;
+			}
+
+			for(int i = 0; i < read; i++) {
+				if(buffer.get(i) == '\n') {
+					return position + i + 1;
+				}
+			}
+			position += read;
+		}
+
+		return size;
+	}
+
+	/**
+	 * Maps a chunk of its file read-only
+	 *
+	 * @param chunk
+	 * @return
+	 * @throws IOException
+	 */
+	static MappedByteBuffer map(Chunk chunk) throws IOException {
+		try (FileChannel channel = FileChannel.open(chunk.file, StandardOpenOption.READ)) {
+			return channel.map(FileChannel.MapMode.READ_ONLY, chunk.start, chunk.length);
+		}
+	}
+
+	/**
+	 * Work done for one chunk by execute()
+	 */
+	interface ChunkTask {
+		int process(Chunk chunk) throws IOException, MutationsRejectedException;
+	}
+
+	/**
+	 * A newline-aligned region of an input file
+	 */
+	static class Chunk {
+
+		final Path file;
+		final long start;
+		final long length;
+		final boolean firstInFile;
+
+		Chunk(Path file, long start, long length, boolean firstInFile) {
+			this.file = file;
+			this.start = start;
+			this.length = length;
+			this.firstInFile = firstInFile;
+		}
+
+		@Override
+		public String toString() {
+			return file.getFileName() + "[" + start + ".." + (start + length) + ")";
+		}
+	}
+
+	private static class ByteBufferInputStream extends InputStream {
+
+		private final ByteBuffer buffer;
+
+		ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if(!buffer.hasRemaining()) {
+				return -1;
+			}
+
+			int n = Math.min(len, buffer.remaining());
+			buffer.get(b, off, n);
+			return n;
+		}
+	}
+
+	private static class WorkerThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger next = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "ingest-worker-" + next.getAndIncrement());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
@@ -0,0 +1,275 @@
+package com.oreilly.accumulotraining;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.accumulo.core.client.AccumuloException;
+import org.apache.accumulo.core.client.AccumuloSecurityException;
+import org.apache.accumulo.core.client.BatchScanner;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.IteratorSetting;
+import org.apache.accumulo.core.client.Scanner;
+import org.apache.accumulo.core.client.ScannerBase;
+import org.apache.accumulo.core.client.TableNotFoundException;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.security.Authorizations;
+
+/**
+ * Reads a range of a table from all the tablets it covers at once, rather
+ * than one tablet after another as a Scanner does.
+ *
+ * The range is cut at tablet boundaries. Unordered, the pieces go to a
+ * BatchScanner, which returns entries as the tablet servers send them.
+ * Ordered, each piece is read by its own Scanner on a pool of threads,
+ * into a bounded queue, and the pieces are handed out one after another
+ * in range order. Pieces don't overlap, so that is the whole merge: entries
+ * come back in key order, as from a single Scanner, while the next few
+ * pieces are already being read. Memory stays at one queue per thread.
+ *
+ * Iterate once, from a single thread, and close when done.
+ */
+public class ParallelScanner implements Iterable<Map.Entry<Key, Value>>, AutoCloseable {
+
+	public static final int DEFAULT_QUEUE_SIZE = 1000;
+
+	// marks the end of a piece in its queue
+	private static final Map.Entry<Key, Value> END = new AbstractMap.SimpleImmutableEntry<>(null, null);
+
+	private final Connector conn;
+	private final String table;
+	private final Authorizations auths;
+	private final Collection<IteratorSetting.Column> columns;
+	private final List<Range> pieces;
+	private final int threads;
+	private final int queueSize;
+
+	private BatchScanner batchScanner = null;
+	private ExecutorService readers = null;
+
+	/**
+	 * @param conn
+	 * @param table
+	 * @param auths
+	 * @param range
+	 * @param columns columns to fetch; all if empty
+	 * @param threads pieces read at once
+	 * @param ordered whether entries must come back in key order
+	 * @throws AccumuloException
+	 * @throws AccumuloSecurityException
+	 * @throws TableNotFoundException
+	 */
+	public ParallelScanner(
+			Connector conn,
+			String table,
+			Authorizations auths,
+			Range range,
+			Collection<IteratorSetting.Column> columns,
+			int threads,
+			boolean ordered)
+			throws AccumuloException, AccumuloSecurityException, TableNotFoundException {
+
+		this(conn, table, auths, range, columns, threads, ordered, DEFAULT_QUEUE_SIZE);
+	}
+
+	/**
+	 * @param queueSize entries read ahead for each piece being read, when ordered
+	 */
+	public ParallelScanner(
+			Connector conn,
+			String table,
+			Authorizations auths,
+			Range range,
+			Collection<IteratorSetting.Column> columns,
+			int threads,
+			boolean ordered,
+			int queueSize)
+			throws AccumuloException, AccumuloSecurityException, TableNotFoundException {
+
+		this.conn = conn;
+		this.table = table;
+		this.auths = auths;
+		this.columns = new ArrayList<>(columns);
+		this.threads = Math.max(1, threads);
+		this.queueSize = queueSize;
+
+		pieces = new ArrayList<>(conn.tableOperations().splitRangeByTablets(table, range, Integer.MAX_VALUE));
+		Collections.sort(pieces);
+
+		if(!ordered) {
+			batchScanner = conn.createBatchScanner(table, auths, this.threads);
+			batchScanner.setRanges(pieces);
+			fetch(batchScanner);
+		}
+	}
+
+	/**
+	 * @return how many pieces the range was cut into, one per tablet
+	 */
+	public int getPieces() {
+		return pieces.size();
+	}
+
+	@Override
+	public Iterator<Map.Entry<Key, Value>> iterator() {
+		if(batchScanner != null) {
+			return batchScanner.iterator();
+		}
+		if(readers != null) {
+			throw new IllegalStateException("already iterated");
+		}
+
+		readers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "parallel-scan-reader");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		return new OrderedIterator();
+	}
+
+	@Override
+	public void close() {
+		if(batchScanner != null) {
+			batchScanner.close();
+		}
+		if(readers != null) {
+			readers.shutdownNow();
+		}
+	}
+
+	private void fetch(ScannerBase scanner) {
+		for(IteratorSetting.Column column : columns) {
+			if(column.getColumnQualifier() == null) {
+				scanner.fetchColumnFamily(column.getColumnFamily());
+			} else {
+				scanner.fetchColumn(column.getColumnFamily(), column.getColumnQualifier());
+			}
+		}
+	}
+
+	/**
+	 * Hands out the pieces in order, keeping up to threads of them being
+	 * read ahead
+	 */
+	private class OrderedIterator implements Iterator<Map.Entry<Key, Value>> {
+
+		private final List<Piece> started = new ArrayList<>();
+		private int current = 0;
+		private Map.Entry<Key, Value> next = null;
+
+		OrderedIterator() {
+			while(started.size() < Math.min(threads, pieces.size())) {
+				start();
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			while(next == null && current < pieces.size()) {
+				Piece piece = started.get(current);
+				Map.Entry<Key, Value> entry = piece.take();
+				if(entry != END) {
+					next = entry;
+				} else {
+					// done with this piece, so its thread can start the next one
+					started.set(current, null);
+					current++;
+					if(started.size() < pieces.size()) {
+						start();
+					}
+				}
+			}
+			return next != null;
+		}
+
+		@Override
+		public Map.Entry<Key, Value> next() {
+			if(!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Map.Entry<Key, Value> entry = next;
+			next = null;
+			return entry;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		private void start() {
+			Piece piece = new Piece(pieces.get(started.size()), queueSize);
+			started.add(piece);
+			readers.submit(piece);
+		}
+	}
+
+	/**
+	 * Reads one piece of the range into a bounded queue, ending with END
+	 */
+	private class Piece implements Runnable {
+
+		private final Range range;
+		private final BlockingQueue<Map.Entry<Key, Value>> queue;
+		private volatile RuntimeException failure = null;
+
+		Piece(Range range, int queueSize) {
+			this.range = range;
+			this.queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+		}
+
+		@Override
+		public void run() {
+			try {
+				Scanner scanner = conn.createScanner(table, auths);
+				scanner.setRange(range);
+				fetch(scanner);
+				for(Map.Entry<Key, Value> e : scanner) {
+					queue.put(e);
+				}
+			} catch (InterruptedException ex) {
+				// closed early
+				Thread.currentThread().interrupt();
+				return;
+			} catch (TableNotFoundException | RuntimeException ex) {
+				failure = ex instanceof RuntimeException ? (RuntimeException) ex : new IllegalStateException(ex);
+			}
+
+			try {
+				queue.put(END);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		Map.Entry<Key, Value> take() {
+			Map.Entry<Key, Value> entry;
+			try {
+				entry = queue.take();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException(ex);
+			}
+			if(entry == END && failure != null) {
+				throw failure;
+			}
+			return entry;
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package com.oreilly.accumulotraining;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.accumulo.core.client.BatchWriter;
+import org.apache.accumulo.core.client.MutationsRejectedException;
+
+/**
+ * Compares the cost per record of turning CSV into Mutations with
+ * commons-csv and with EnergyRecordTokenizer, without needing a cluster.
+ *
+ * Both paths build the IngestClient layout and hand their Mutations to a
+ * BatchWriter that only counts them. The first rounds warm up the JIT and
+ * are not reported. Run with -verbose:gc or a profiler to compare
+ * allocation as well as time.
+ *
+ * usage: ParseBenchmark file.csv [rounds]
+ */
+public class ParseBenchmark {
+
+	private static final int WARMUP_ROUNDS = 3;
+
+	public static void main(String[] args) throws IOException, MutationsRejectedException {
+
+		File csvData = new File(args[0]);
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+		System.out.println("path\tround\trecords\tmutations\tns/record");
+
+		for(int round = -WARMUP_ROUNDS; round < rounds; round++) {
+			for(String path : new String[] {"commons-csv", "tokenizer"}) {
+
+				CountingBatchWriter writer = new CountingBatchWriter();
+
+				long start = System.nanoTime();
+				int records = path.equals("tokenizer")
+						? tokenize(csvData, writer)
+						: CsvIngest.ingest(csvData, new CsvRecordWriters.Plain(new MutationCoalescer(writer)));
+				long elapsed = System.nanoTime() - start;
+
+				if(round >= 0) {
+					System.out.println(
+							path + "\t" +
+							round + "\t" +
+							records + "\t" +
+							writer.mutations + "\t" +
+							String.format("%.1f", (double) elapsed / Math.max(1, records)));
+				}
+			}
+		}
+	}
+
+	private static int tokenize(File csvData, BatchWriter writer)
+			throws IOException, MutationsRejectedException {
+
+		MappedByteBuffer region;
+		try (RandomAccessFile file = new RandomAccessFile(csvData, "r")) {
+			region = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+		}
+
+		return new TokenizedIngest(writer).handle(region, true);
+	}
+}
@@ -0,0 +1,137 @@
+package com.oreilly.accumulotraining;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.accumulo.core.client.BatchWriter;
+import org.apache.accumulo.core.client.MutationsRejectedException;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Value;
+
+/**
+ * Compares generating and writing mutations on one thread, as
+ * ReplicationDataGenerator and ErrorHandlingExample used to, with handing
+ * them to a PipelinedBatchWriter, without needing a cluster.
+ *
+ * Mutations look like ReplicationDataGenerator's 1k records, with a freshly
+ * generated value each so generation costs some CPU. The writer they go to
+ * stands in for the network: every batchSize mutations it blocks for
+ * flushMillis, as a BatchWriter does when its buffer is full or flush()
+ * is called. In the lock-step loop generation stops for every one of those
+ * waits; in the pipeline it only stops when the ring buffer is full.
+ *
+ * usage: PipelineBenchmark [mutations] [flushMillis] [batchSize]
+ */
+public class PipelineBenchmark {
+
+	public static void main(String[] args) throws MutationsRejectedException {
+
+		int mutations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		long flushMillis = args.length > 1 ? Long.parseLong(args[1]) : 20;
+		int batchSize = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+
+		System.out.println("mode\tbackpressure\tmutations/s\tseconds");
+
+		for(int round = 0; round < 2; round++) {
+			// the first round warms up the JIT
+			boolean report = round > 0;
+
+			run("lock-step", null, mutations, flushMillis, batchSize, report);
+			for(PipelinedBatchWriter.Backpressure backpressure : PipelinedBatchWriter.Backpressure.values()) {
+				run("pipelined", backpressure, mutations, flushMillis, batchSize, report);
+			}
+		}
+	}
+
+	private static void run(
+			String mode,
+			PipelinedBatchWriter.Backpressure backpressure,
+			int mutations,
+			long flushMillis,
+			int batchSize,
+			boolean report)
+			throws MutationsRejectedException {
+
+		BatchWriter writer = new SimulatedBatchWriter(flushMillis, batchSize);
+		if(backpressure != null) {
+			writer = new PipelinedBatchWriter(writer, PipelinedBatchWriter.DEFAULT_CAPACITY, 1, backpressure);
+		}
+
+		Random random = new Random(42);
+		byte[] value = new byte[1024];
+
+		long start = System.nanoTime();
+
+		for(int i = 0; i < mutations; i++) {
+			for(int j = 0; j < value.length; j++) {
+				value[j] = (byte) (random.nextInt(26) + 'a');
+			}
+
+			Mutation m = new Mutation(Integer.toString(i));
+			m.put("", "", new Value(value));
+			writer.addMutation(m);
+		}
+
+		writer.close();
+
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		if(report) {
+			System.out.println(
+					mode + "\t" +
+					(backpressure == null ? "-" : backpressure.name()) + "\t" +
+					String.format("%.0f", mutations / seconds) + "\t" +
+					String.format("%.3f", seconds));
+		}
+	}
+
+	/**
+	 * Serializes every mutation, as the real writer does, and waits
+	 * flushMillis for every batch
+	 */
+	private static class SimulatedBatchWriter implements BatchWriter {
+
+		private final long flushMillis;
+		private final int batchSize;
+		private int pending = 0;
+
+		SimulatedBatchWriter(long flushMillis, int batchSize) {
+			this.flushMillis = flushMillis;
+			this.batchSize = batchSize;
+		}
+
+		@Override
+		public synchronized void addMutation(Mutation m) {
+			m.numBytes();
+			if(++pending >= batchSize) {
+				flush();
+			}
+		}
+
+		@Override
+		public void addMutations(Iterable<Mutation> iterable) {
+			for(Mutation m : iterable) {
+				addMutation(m);
+			}
+		}
+
+		@Override
+		public synchronized void flush() {
+			if(pending == 0) {
+				return;
+			}
+
+			try {
+				TimeUnit.MILLISECONDS.sleep(flushMillis);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			pending = 0;
+		}
+
+		@Override
+		public void close() {
+			flush();
+		}
+	}
+}
@@ -0,0 +1,227 @@
+package com.oreilly.accumulotraining;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.accumulo.core.client.BatchWriter;
+import org.apache.accumulo.core.client.MutationsRejectedException;
+import org.apache.accumulo.core.data.Mutation;
+
+/**
+ * Lets the threads generating mutations keep going while others send them.
+ *
+ * addMutation() only puts the mutation in a BoundedRingBuffer; one or more
+ * drain threads take them out and hand them to the target writer, which is
+ * where any blocking flushes happen. When the buffer is full, producers wait
+ * according to the configured Backpressure, which is what keeps a fast
+ * producer from running arbitrarily far ahead of the servers.
+ *
+ * flush() waits until everything added before it has reached the target
+ * and then flushes the target. If the target rejects mutations the drain
+ * threads stop and the exception is rethrown from the next call made by a
+ * producer; mutations still in the buffer at that point are not sent.
+ */
+public class PipelinedBatchWriter implements BatchWriter {
+
+	private static final Logger logger = Logger.getLogger(PipelinedBatchWriter.class.getName());
+
+	public static final int DEFAULT_CAPACITY = 8192;
+
+	/**
+	 * How a thread waits for space, or for mutations, in the ring buffer
+	 */
+	public enum Backpressure {
+		/** busy-spin; lowest latency, burns a core per waiting thread */
+		SPIN,
+		/** yield the CPU between attempts */
+		YIELD,
+		/** sleep briefly between attempts; cheapest when waits are long */
+		PARK;
+
+		void idle(int attempt) {
+			switch(this) {
+				case SPIN:
+					break;
+				case YIELD:
+					Thread.yield();
+					break;
+				default:
+					// spin briefly first, most waits are short
+					if(attempt < 100) {
+						Thread.yield();
+					} else {
+						LockSupport.parkNanos(PARK_NANOS);
+					}
+			}
+		}
+	}
+
+	private static final long PARK_NANOS = 50000;
+
+	private final BatchWriter target;
+	private final BoundedRingBuffer<Mutation> buffer;
+	private final Backpressure backpressure;
+	private final List<Thread> drainers = new ArrayList<>();
+
+	private final AtomicLong added = new AtomicLong();
+	private final AtomicLong drained = new AtomicLong();
+
+	private volatile Throwable failure = null;
+	private volatile boolean closing = false;
+	private boolean closed = false;
+
+	/**
+	 * Drains into target with one thread, blocking producers with PARK
+	 *
+	 * @param target
+	 */
+	public PipelinedBatchWriter(BatchWriter target) {
+		this(target, DEFAULT_CAPACITY, 1, Backpressure.PARK);
+	}
+
+	/**
+	 *
+	 * @param target must be thread safe if drainThreads is more than one
+	 * @param capacity mutations buffered before producers wait
+	 * @param drainThreads threads moving mutations into target
+	 * @param backpressure how producers and drainers wait
+	 */
+	public PipelinedBatchWriter(BatchWriter target, int capacity, int drainThreads, Backpressure backpressure) {
+
+		this.target = target;
+		this.buffer = new BoundedRingBuffer<>(capacity);
+		this.backpressure = backpressure;
+
+		for(int i = 0; i < drainThreads; i++) {
+			Thread t = new Thread(new Drainer(), "pipeline-drain-" + i);
+			t.setDaemon(true);
+			t.start();
+			drainers.add(t);
+		}
+	}
+
+	@Override
+	public void addMutation(Mutation m) throws MutationsRejectedException {
+
+		checkFailure();
+		if(closing) {
+			throw new IllegalStateException("writer is closed");
+		}
+
+		int attempt = 0;
+		while(!buffer.offer(m)) {
+			checkFailure();
+			backpressure.idle(attempt++);
+		}
+
+		added.incrementAndGet();
+	}
+
+	@Override
+	public void addMutations(Iterable<Mutation> iterable) throws MutationsRejectedException {
+		for(Mutation m : iterable) {
+			addMutation(m);
+		}
+	}
+
+	/**
+	 * Waits for the drainers to catch up with every mutation added so far,
+	 * then flushes the target
+	 */
+	@Override
+	public void flush() throws MutationsRejectedException {
+
+		long expected = added.get();
+		int attempt = 0;
+
+		while(drained.get() < expected) {
+			checkFailure();
+			backpressure.idle(attempt++);
+		}
+
+		checkFailure();
+		target.flush();
+	}
+
+	@Override
+	public synchronized void close() throws MutationsRejectedException {
+
+		if(closed) {
+			return;
+		}
+
+		try {
+			flush();
+		} finally {
+			closed = true;
+			closing = true;
+
+			for(Thread t : drainers) {
+				try {
+					t.join();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+
+			// even when the flush failed, so the target lets go of what it holds
+			target.close();
+		}
+	}
+
+	/**
+	 * Mutations waiting in the buffer
+	 *
+	 * @return
+	 */
+	public int getBuffered() {
+		return buffer.size();
+	}
+
+	private void checkFailure() throws MutationsRejectedException {
+		Throwable ex = failure;
+		if(ex instanceof MutationsRejectedException) {
+			throw (MutationsRejectedException) ex;
+		}
+		if(ex != null) {
+			throw new IllegalStateException("pipeline stopped", ex);
+		}
+	}
+
+	private class Drainer implements Runnable {
+
+		@Override
+		public void run() {
+
+			int attempt = 0;
+
+			while(failure == null) {
+				Mutation m = buffer.poll();
+
+				if(m == null) {
+					if(closing) {
+						return;
+					}
+					backpressure.idle(attempt++);
+					continue;
+				}
+				attempt = 0;
+
+				try {
+					target.addMutation(m);
+				} catch (MutationsRejectedException | RuntimeException ex) {
+					logger.log(Level.SEVERE, "could not write mutation, stopping pipeline", ex);
+					failure = ex;
+					return;
+				}
+
+				drained.incrementAndGet();
+			}
+		}
+	}
+}
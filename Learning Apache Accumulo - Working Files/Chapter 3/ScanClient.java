@@ -1,16 +1,24 @@
 package com.oreilly.accumulotraining;
 
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.accumulo.core.client.AccumuloException;
 import org.apache.accumulo.core.client.AccumuloSecurityException;
+import org.apache.accumulo.core.client.BatchScanner;
+import org.apache.accumulo.core.client.ClientSideIteratorScanner;
 import org.apache.accumulo.core.client.Connector;
-import org.apache.accumulo.core.client.Instance;
+import org.apache.accumulo.core.client.IteratorSetting;
 import org.apache.accumulo.core.client.Scanner;
 import org.apache.accumulo.core.client.TableNotFoundException;
-import org.apache.accumulo.core.client.ZooKeeperInstance;
-import org.apache.accumulo.core.client.security.tokens.PasswordToken;
 import org.apache.accumulo.core.data.Key;
 import org.apache.accumulo.core.data.Range;
 import org.apache.accumulo.core.data.Value;
@@ -21,6 +29,9 @@ public class ScanClient {
 	
 	private static final Logger logger = Logger.getLogger(ScanClient.class.getName());
 	
+	// after the versioning iterator and any ScanFilter iterators
+	private static final int AGGREGATE_PRIORITY = 40;
+	
 	public static void run(
 			String instanceName,
 			String zookeepers,
@@ -31,10 +42,29 @@ public class ScanClient {
 			String columnFamily,
 			String columnQualifier) {
 		
+		runExport(instanceName, zookeepers, username, password, table, row, columnFamily, columnQualifier, 
+				ScanExporter.Format.TEXT, null);
+	}
+	
+	/**
+	 * Writes what run() would print in format, to output or to standard
+	 * out if output is null, through a ScanExporter
+	 */
+	public static void runExport(
+			String instanceName,
+			String zookeepers,
+			String username,
+			String password,
+			String table,
+			String row,
+			String columnFamily,
+			String columnQualifier,
+			ScanExporter.Format format,
+			String output) {
+		
 		try {
 		
-			Instance inst = new ZooKeeperInstance(instanceName, zookeepers);
-			Connector conn = inst.getConnector(username, new PasswordToken(password));
+			Connector conn = ConnectionManager.shared().getConnector(instanceName, zookeepers, username, password);
 			
 			Scanner scanner = conn.createScanner(table, Authorizations.EMPTY);
 			
@@ -51,18 +81,300 @@ public class ScanClient {
 				}
 			}
 			
-			for(Map.Entry<Key, Value> e : scanner) {
-				System.out.println(
-						e.getKey().getRow().toString() + " " +
-						e.getKey().getColumnFamily().toString() + " " +
-						e.getKey().getColumnQualifier().toString() + "\t" +
-						new String(e.getValue().get()));
+			export(scanner, format, output);
+		
+		} catch (AccumuloException | AccumuloSecurityException | TableNotFoundException | IOException ex) {
+			logger.log(Level.SEVERE, ex.getLocalizedMessage(), ex);
+		}
+	}
+	
+	/**
+	 * Writes the rows from startRow to endRow inclusive, either of which
+	 * may be null, reading every tablet they span at once through a
+	 * ParallelScanner. Unless ordered is set, entries come out in whatever
+	 * order the tablet servers send them.
+	 */
+	public static void runParallel(
+			String instanceName,
+			String zookeepers,
+			String username,
+			String password,
+			String table,
+			String startRow,
+			String endRow,
+			String columnFamily,
+			String columnQualifier,
+			int threads,
+			boolean ordered,
+			ScanExporter.Format format,
+			String output) {
+		
+		try {
+		
+			Connector conn = ConnectionManager.shared().getConnector(instanceName, zookeepers, username, password);
+			
+			List<IteratorSetting.Column> columns = new ArrayList<>();
+			if(columnFamily != null) {
+				if(columnQualifier != null) {
+					columns.add(new IteratorSetting.Column(new Text(columnFamily), new Text(columnQualifier)));
+				}
+				else {
+					columns.add(new IteratorSetting.Column(new Text(columnFamily)));
+				}
 			}
 			
+			try (ParallelScanner scanner = new ParallelScanner(
+					conn, 
+					table, 
+					Authorizations.EMPTY, 
+					new Range(startRow, endRow), 
+					columns, 
+					threads, 
+					ordered)) {
+				
+				logger.log(Level.INFO, "reading {0} tablets of {1} with {2} threads", 
+						new Object[] {scanner.getPieces(), table, threads});
+				export(scanner, format, output);
+			}
+		
+		} catch (AccumuloException | AccumuloSecurityException | TableNotFoundException | IOException ex) {
+			logger.log(Level.SEVERE, ex.getLocalizedMessage(), ex);
+		}
+	}
+	
+	/**
+	 * Writes the entries of table that match a ScanFilter expression, such
+	 * as "country~A.* year=2000..2010 quantity>100", with the filtering
+	 * done on the tablet servers
+	 */
+	public static void runFiltered(
+			String instanceName,
+			String zookeepers,
+			String username,
+			String password,
+			String table,
+			String filter,
+			ScanExporter.Format format,
+			String output) {
+		
+		try {
+		
+			Connector conn = ConnectionManager.shared().getConnector(instanceName, zookeepers, username, password);
+			
+			Scanner scanner = conn.createScanner(table, Authorizations.EMPTY);
+			ScanFilter.parse(filter).configure(scanner);
+			
+			export(scanner, format, output);
+		
+		} catch (AccumuloException | AccumuloSecurityException | TableNotFoundException | IOException ex) {
+			logger.log(Level.SEVERE, ex.getLocalizedMessage(), ex);
+		}
+	}
+	
+	/**
+	 * Runs a ScanFilter expression with the filters on the tablet servers,
+	 * then with them applied in the client to the same range and columns,
+	 * and prints how many entries and bytes came back each way
+	 */
+	public static void measureFilter(
+			String instanceName,
+			String zookeepers,
+			String username,
+			String password,
+			String table,
+			String filter) {
+		
+		try {
+		
+			Connector conn = ConnectionManager.shared().getConnector(instanceName, zookeepers, username, password);
+			ScanFilter scanFilter = ScanFilter.parse(filter);
+			
+			Scanner pushedDown = conn.createScanner(table, Authorizations.EMPTY);
+			scanFilter.configure(pushedDown);
+			
+			long start = System.nanoTime();
+			long[] server = sent(pushedDown);
+			long serverMillis = (System.nanoTime() - start) / 1000000;
+			
+			// the same range and columns without the iterators, which is what
+			// filtering in the client has to read
+			Scanner unfiltered = conn.createScanner(table, Authorizations.EMPTY);
+			scanFilter.configure(unfiltered, false);
+			
+			ClientSideIteratorScanner clientSide = new ClientSideIteratorScanner(
+					conn.createScanner(table, Authorizations.EMPTY));
+			scanFilter.configure(clientSide);
+			
+			start = System.nanoTime();
+			long clientResults = sent(clientSide)[0];
+			long clientMillis = (System.nanoTime() - start) / 1000000;
+			long[] client = sent(unfiltered);
+			
+			System.out.println("filtered in\tresults\tentries sent\tbytes sent\tms");
+			System.out.println("server\t" + server[0] + "\t" + server[0] + "\t" + server[1] + "\t" + serverMillis);
+			System.out.println("client\t" + clientResults + "\t" + client[0] + "\t" + client[1] + "\t" + clientMillis);
+			if(client[1] > 0) {
+				System.out.println(String.format("filtering on the servers sent %.1f%% of the bytes", 
+						100.0 * server[1] / client[1]));
+			}
+		
+		} catch (AccumuloException | AccumuloSecurityException | TableNotFoundException ex) {
+			logger.log(Level.SEVERE, ex.getLocalizedMessage(), ex);
+		}
+	}
+	
+	/**
+	 * Prints the count, sum, minimum, maximum and mean of the quantities
+	 * that match a ScanFilter expression, which may be empty for the whole
+	 * table, in total or for each row or row and column family. The tablet
+	 * servers reduce their entries to partial results with an
+	 * AggregateIterator and only those are sent back.
+	 */
+	public static void runAggregate(
+			String instanceName,
+			String zookeepers,
+			String username,
+			String password,
+			String table,
+			String filter,
+			AggregateIterator.Group group,
+			int threads) {
+		
+		try {
+		
+			Connector conn = ConnectionManager.shared().getConnector(instanceName, zookeepers, username, password);
+			
+			SortedMap<String, AggregateIterator.Stats> results = aggregate(conn, table, filter, group, threads);
+			
+			System.out.println("group\tcount\tsum\tmin\tmax\tmean");
+			for(Map.Entry<String, AggregateIterator.Stats> result : results.entrySet()) {
+				AggregateIterator.Stats stats = result.getValue();
+				System.out.println(
+						result.getKey() + "\t" + 
+						stats.getCount() + "\t" + 
+						stats.getSum() + "\t" + 
+						stats.getMin() + "\t" + 
+						stats.getMax() + "\t" + 
+						stats.getMean());
+			}
 		
 		} catch (AccumuloException | AccumuloSecurityException | TableNotFoundException ex) {
 			logger.log(Level.SEVERE, ex.getLocalizedMessage(), ex);
 		}
 	}
+	
+	/**
+	 * Combines the partial results of the tablets into one Stats per group,
+	 * keyed by row, by row and column family separated by a space, or
+	 * under "total" when the group is a whole range
+	 */
+	static SortedMap<String, AggregateIterator.Stats> aggregate(
+			Connector conn, 
+			String table, 
+			String filter, 
+			AggregateIterator.Group group, 
+			int threads) 
+			throws AccumuloException, AccumuloSecurityException, TableNotFoundException {
+		
+		ScanFilter scanFilter = ScanFilter.parse(filter);
+		
+		IteratorSetting setting = new IteratorSetting(AGGREGATE_PRIORITY, "aggregate", AggregateIterator.class);
+		AggregateIterator.setGroup(setting, group);
+		
+		SortedMap<String, AggregateIterator.Stats> results = new TreeMap<>();
+		long partials = 0;
+		long bytes = 0;
+		
+		// one range per tablet, so each tablet sends one partial result per group
+		BatchScanner scanner = conn.createBatchScanner(table, Authorizations.EMPTY, threads);
+		try {
+			scanner.setRanges(conn.tableOperations().splitRangeByTablets(table, scanFilter.getRange(), Integer.MAX_VALUE));
+			for(IteratorSetting.Column column : scanFilter.getColumns()) {
+				if(column.getColumnQualifier() == null) {
+					scanner.fetchColumnFamily(column.getColumnFamily());
+				} else {
+					scanner.fetchColumn(column.getColumnFamily(), column.getColumnQualifier());
+				}
+			}
+			for(IteratorSetting filterSetting : scanFilter.getIterators()) {
+				scanner.addScanIterator(filterSetting);
+			}
+			scanner.addScanIterator(setting);
+			
+			for(Map.Entry<Key, Value> e : scanner) {
+				partials++;
+				bytes += e.getKey().getSize() + e.getValue().getSize();
+				
+				String name;
+				switch(group) {
+					case ROW:
+						name = e.getKey().getRow().toString();
+						break;
+					case FAMILY:
+						name = e.getKey().getRow().toString() + " " + e.getKey().getColumnFamily().toString();
+						break;
+					default:
+						name = "total";
+				}
+				
+				AggregateIterator.Stats stats = results.get(name);
+				if(stats == null) {
+					stats = new AggregateIterator.Stats();
+					results.put(name, stats);
+				}
+				stats.add(AggregateIterator.Stats.fromValue(e.getValue()));
+			}
+		} finally {
+			scanner.close();
+		}
+		
+		logger.log(Level.INFO, "combined {0} partial results, {1} bytes, into {2} groups", 
+				new Object[] {partials, bytes, results.size()});
+		return results;
+	}
+	
+	/**
+	 * @return entries read and the bytes of their keys and values
+	 */
+	private static long[] sent(Iterable<Map.Entry<Key, Value>> scan) {
+		long entries = 0;
+		long bytes = 0;
+		for(Map.Entry<Key, Value> e : scan) {
+			entries++;
+			bytes += e.getKey().getSize() + e.getValue().getSize();
+		}
+		return new long[] {entries, bytes};
+	}
+	
+	/**
+	 * Writes entries to output, or to standard out if output is null,
+	 * logging the rate when writing to a file
+	 */
+	private static void export(Iterable<Map.Entry<Key, Value>> entries, ScanExporter.Format format, String output) 
+			throws IOException {
+		
+		// standard out stays open for whoever prints next
+		WritableByteChannel channel = output == null 
+				? Channels.newChannel(System.out) 
+				: new FileOutputStream(output).getChannel();
+		
+		try (ScanExporter exporter = new ScanExporter(channel, format)) {
+			
+			long start = System.nanoTime();
+			exporter.export(entries);
+			exporter.flush();
+			
+			if(output != null) {
+				double seconds = (System.nanoTime() - start) / 1e9;
+				logger.log(Level.INFO, "exported {0} entries, {1} bytes to {2} in {3} s, {4} entries/s", 
+						new Object[] {exporter.getEntries(), exporter.getBytes(), output, 
+							String.format("%.1f", seconds), String.format("%.0f", exporter.getEntries() / seconds)});
+			}
+		} finally {
+			if(output != null) {
+				channel.close();
+			}
+		}
+	}
 
 }
@@ -0,0 +1,255 @@
+package com.oreilly.accumulotraining;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+
+import org.apache.accumulo.core.data.ByteSequence;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Value;
+
+/**
+ * Writes scanned entries to a channel through one large buffer, formatting
+ * straight from the bytes the Key and Value already hold. Nothing is turned
+ * into a String, and the channel is written once per buffer rather than
+ * once per entry, so a large export runs at the speed of the scan.
+ *
+ * The formats are
+ *
+ *   TEXT    row cf cq \t value, as ScanClient has always printed
+ *   TSV     row \t cf \t cq \t value, with \t \n \r and \\ escaped
+ *   JSON    one {"row":..,"cf":..,"cq":..,"value":..} object per line
+ *   BINARY  row, cf, cq and visibility each as a varint length and bytes,
+ *           the timestamp as 8 bytes, then the value as a varint length
+ *           and bytes
+ *
+ * TEXT, TSV and JSON leave out visibility and timestamp, and pass bytes
+ * other than the escaped ones through unchanged, so they are UTF-8 when
+ * the data is. BINARY keeps the whole entry.
+ *
+ * Not thread safe. Call close(), or flush(), before reading what was
+ * written; close() doesn't close the channel.
+ */
+public class ScanExporter implements AutoCloseable {
+
+	public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+	public enum Format {
+		TEXT, TSV, JSON, BINARY;
+
+		public static Format forName(String name) {
+			return valueOf(name.toUpperCase());
+		}
+	}
+
+	private static final byte[] HEX = "0123456789abcdef".getBytes();
+	private static final byte[] JSON_ROW = "{\"row\":\"".getBytes();
+	private static final byte[] JSON_CF = "\",\"cf\":\"".getBytes();
+	private static final byte[] JSON_CQ = "\",\"cq\":\"".getBytes();
+	private static final byte[] JSON_VALUE = "\",\"value\":\"".getBytes();
+	private static final byte[] JSON_END = "\"}\n".getBytes();
+
+	private final WritableByteChannel channel;
+	private final Format format;
+	private final ByteBuffer buffer;
+
+	private long entries = 0;
+	private long bytes = 0;
+
+	public ScanExporter(WritableByteChannel channel, Format format) {
+		this(channel, format, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * @param channel where to write; left open by close()
+	 * @param format
+	 * @param bufferSize bytes gathered before each write to channel
+	 */
+	public ScanExporter(WritableByteChannel channel, Format format, int bufferSize) {
+		this.channel = channel;
+		this.format = format;
+		this.buffer = ByteBuffer.allocate(Math.max(64, bufferSize));
+	}
+
+	/**
+	 * Writes every entry
+	 *
+	 * @param scan a Scanner, BatchScanner or any other source of entries
+	 * @return entries written
+	 * @throws IOException
+	 */
+	public long export(Iterable<Map.Entry<Key, Value>> scan) throws IOException {
+		long written = 0;
+		for(Map.Entry<Key, Value> e : scan) {
+			write(e.getKey(), e.getValue());
+			written++;
+		}
+		return written;
+	}
+
+	public void write(Key key, Value value) throws IOException {
+		switch(format) {
+			case TEXT:
+				raw(key.getRowData());
+				put((byte) ' ');
+				raw(key.getColumnFamilyData());
+				put((byte) ' ');
+				raw(key.getColumnQualifierData());
+				put((byte) '\t');
+				put(value.get(), 0, value.getSize());
+				put((byte) '\n');
+				break;
+			case TSV:
+				tsv(key.getRowData());
+				put((byte) '\t');
+				tsv(key.getColumnFamilyData());
+				put((byte) '\t');
+				tsv(key.getColumnQualifierData());
+				put((byte) '\t');
+				tsv(value.get(), 0, value.getSize());
+				put((byte) '\n');
+				break;
+			case JSON:
+				put(JSON_ROW, 0, JSON_ROW.length);
+				json(key.getRowData());
+				put(JSON_CF, 0, JSON_CF.length);
+				json(key.getColumnFamilyData());
+				put(JSON_CQ, 0, JSON_CQ.length);
+				json(key.getColumnQualifierData());
+				put(JSON_VALUE, 0, JSON_VALUE.length);
+				json(value.get(), 0, value.getSize());
+				put(JSON_END, 0, JSON_END.length);
+				break;
+			default:
+				binary(key.getRowData());
+				binary(key.getColumnFamilyData());
+				binary(key.getColumnQualifierData());
+				binary(key.getColumnVisibilityData());
+				room(8);
+				buffer.putLong(key.getTimestamp());
+				varint(value.getSize());
+				put(value.get(), 0, value.getSize());
+		}
+		entries++;
+	}
+
+	/**
+	 * Writes out what is buffered
+	 *
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		buffer.flip();
+		while(buffer.hasRemaining()) {
+			bytes += channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	@Override
+	public void close() throws IOException {
+		flush();
+	}
+
+	public long getEntries() {
+		return entries;
+	}
+
+	/**
+	 * @return bytes written to the channel so far, not counting what is still buffered
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	private void room(int needed) throws IOException {
+		if(buffer.remaining() < needed) {
+			flush();
+		}
+	}
+
+	private void put(byte b) throws IOException {
+		room(1);
+		buffer.put(b);
+	}
+
+	private void put(byte[] data, int offset, int length) throws IOException {
+		if(length > buffer.capacity()) {
+			flush();
+			ByteBuffer large = ByteBuffer.wrap(data, offset, length);
+			while(large.hasRemaining()) {
+				bytes += channel.write(large);
+			}
+			return;
+		}
+		room(length);
+		buffer.put(data, offset, length);
+	}
+
+	private void raw(ByteSequence field) throws IOException {
+		put(field.getBackingArray(), field.offset(), field.length());
+	}
+
+	private void tsv(ByteSequence field) throws IOException {
+		tsv(field.getBackingArray(), field.offset(), field.length());
+	}
+
+	private void tsv(byte[] data, int offset, int length) throws IOException {
+		int end = offset + length;
+		int run = offset;
+		for(int i = offset; i < end; i++) {
+			byte b = data[i];
+			if(b == '\t' || b == '\n' || b == '\r' || b == '\\') {
+				// copy what needs no escaping in one go
+				put(data, run, i - run);
+				escape(b == '\t' ? 't' : b == '\n' ? 'n' : b == '\r' ? 'r' : '\\');
+				run = i + 1;
+			}
+		}
+		put(data, run, end - run);
+	}
+
+	private void json(ByteSequence field) throws IOException {
+		json(field.getBackingArray(), field.offset(), field.length());
+	}
+
+	private void json(byte[] data, int offset, int length) throws IOException {
+		int end = offset + length;
+		int run = offset;
+		for(int i = offset; i < end; i++) {
+			byte b = data[i];
+			if(b == '"' || b == '\\') {
+				put(data, run, i - run);
+				escape((char) b);
+				run = i + 1;
+			} else if(b >= 0 && b < 0x20) {
+				put(data, run, i - run);
+				room(6);
+				buffer.put((byte) '\\').put((byte) 'u').put((byte) '0').put((byte) '0')
+						.put(HEX[b >> 4]).put(HEX[b & 0xf]);
+				run = i + 1;
+			}
+		}
+		put(data, run, end - run);
+	}
+
+	private void escape(char c) throws IOException {
+		room(2);
+		buffer.put((byte) '\\').put((byte) c);
+	}
+
+	private void binary(ByteSequence field) throws IOException {
+		varint(field.length());
+		raw(field);
+	}
+
+	private void varint(int n) throws IOException {
+		room(5);
+		while((n & ~0x7f) != 0) {
+			buffer.put((byte) ((n & 0x7f) | 0x80));
+			n >>>= 7;
+		}
+		buffer.put((byte) n);
+	}
+}
@@ -0,0 +1,342 @@
+package com.oreilly.accumulotraining;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.accumulo.core.client.IteratorSetting;
+import org.apache.accumulo.core.client.Scanner;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.iterators.user.RegExFilter;
+import org.apache.hadoop.io.Text;
+
+/**
+ * A filter expression for ScanClient, compiled to what the tablet servers
+ * can apply themselves: a row range, the columns to fetch and iterators
+ * attached to the scan. Only the entries that match travel to the client.
+ *
+ * An expression is terms separated by spaces, all of which must hold:
+ *
+ *   row=Argentina           one row
+ *   row=A..C                rows from A to C inclusive
+ *   row~Ar.*                rows matching a regular expression
+ *   cf=wind                 one column family
+ *   cf~wind|solar           families matching a regular expression
+ *   cq=1995                 one qualifier
+ *   cq=2000..2010           qualifiers that are numbers in a range
+ *   cq>=2000, cq<2010, ...  qualifiers compared as numbers
+ *   value~.*\.5             values matching a regular expression
+ *   value=100..200, value>100, value<=5000, ...
+ *                           values compared as numbers
+ *
+ * country, energyType, year and quantity may be used for row, cf, cq and
+ * value. Regular expressions match whole fields and may not hold spaces.
+ * Terms for the same field are combined, so "year>=2000 year<2010" is one
+ * range and "row=A..M row=F..Z" scans F to M. Equalities and bounds that
+ * can never all hold, such as "country=Chile country=Peru", "year>2010
+ * year<2000" or "cq=1995 cq>=2000", are rejected; regular expressions are
+ * not checked against them.
+ */
+public class ScanFilter {
+
+	private static final int QUALIFIER_MATCH_PRIORITY = 29;
+	private static final int REGEX_PRIORITY = 30;
+	private static final int QUALIFIER_PRIORITY = 31;
+	private static final int VALUE_PRIORITY = 32;
+
+	private static final Pattern TERM = Pattern.compile("(\\w+)(<=|>=|=|~|<|>)(.*)");
+
+	private Range range = new Range();
+	private String columnFamily = null;
+	private String columnQualifier = null;
+
+	private final String[] regexes = new String[4];
+	private final Bounds qualifierBounds = new Bounds();
+	private final Bounds valueBounds = new Bounds();
+
+	/**
+	 * @param expression
+	 * @return
+	 * @throws IllegalArgumentException if the expression can't be parsed
+	 */
+	public static ScanFilter parse(String expression) {
+		ScanFilter filter = new ScanFilter();
+		for(String term : expression.trim().split("\\s+")) {
+			if(!term.isEmpty()) {
+				filter.add(term);
+			}
+		}
+		return filter;
+	}
+
+	public Range getRange() {
+		return range;
+	}
+
+	/**
+	 * @return the columns to fetch, empty for all
+	 */
+	public List<IteratorSetting.Column> getColumns() {
+		if(columnFamily == null) {
+			return Collections.emptyList();
+		}
+		return Collections.singletonList(columnQualifier == null
+				? new IteratorSetting.Column(new Text(columnFamily))
+				: new IteratorSetting.Column(new Text(columnFamily), new Text(columnQualifier)));
+	}
+
+	/**
+	 * @return the iterators to attach to the scan, in priority order
+	 */
+	public List<IteratorSetting> getIterators() {
+		List<IteratorSetting> iterators = new ArrayList<>();
+
+		if(columnQualifier != null) {
+			// a qualifier can only be fetched along with its family, and a
+			// ClientSideIteratorScanner fetches only families, so the match is
+			// an iterator as well; after a fetch it only sees matching entries
+			IteratorSetting match = new IteratorSetting(QUALIFIER_MATCH_PRIORITY, "qualifier", RegExFilter.class);
+			RegExFilter.setRegexs(match, null, null, Pattern.quote(columnQualifier), null, false);
+			iterators.add(match);
+		}
+		if(regexes[0] != null || regexes[1] != null || regexes[2] != null || regexes[3] != null) {
+			IteratorSetting regex = new IteratorSetting(REGEX_PRIORITY, "regex", RegExFilter.class);
+			RegExFilter.setRegexs(regex, regexes[0], regexes[1], regexes[2], regexes[3], false);
+			iterators.add(regex);
+		}
+		if(qualifierBounds.isSet()) {
+			iterators.add(qualifierBounds.toSetting(QUALIFIER_PRIORITY, "qualifierRange", NumericRangeFilter.Field.QUALIFIER));
+		}
+		if(valueBounds.isSet()) {
+			iterators.add(valueBounds.toSetting(VALUE_PRIORITY, "valueRange", NumericRangeFilter.Field.VALUE));
+		}
+		return iterators;
+	}
+
+	/**
+	 * Sets the range, columns and iterators of this filter on scanner
+	 *
+	 * @param scanner
+	 */
+	public void configure(Scanner scanner) {
+		configure(scanner, true);
+	}
+
+	/**
+	 * Sets the range and columns of this filter on scanner, and the
+	 * iterators if withIterators is set
+	 *
+	 * @param scanner
+	 * @param withIterators
+	 */
+	public void configure(Scanner scanner, boolean withIterators) {
+		scanner.setRange(range);
+		for(IteratorSetting.Column column : getColumns()) {
+			if(column.getColumnQualifier() == null) {
+				scanner.fetchColumnFamily(column.getColumnFamily());
+			} else {
+				scanner.fetchColumn(column.getColumnFamily(), column.getColumnQualifier());
+			}
+		}
+		if(withIterators) {
+			for(IteratorSetting setting : getIterators()) {
+				scanner.addScanIterator(setting);
+			}
+		}
+	}
+
+	private void add(String term) {
+		Matcher matcher = TERM.matcher(term);
+		if(!matcher.matches()) {
+			throw new IllegalArgumentException("not a filter term: " + term);
+		}
+		String field = fieldFor(matcher.group(1));
+		String op = matcher.group(2);
+		String operand = matcher.group(3);
+
+		if(op.equals("~")) {
+			int index = field.equals("row") ? 0 : field.equals("cf") ? 1 : field.equals("cq") ? 2 : 3;
+			if(regexes[index] != null) {
+				throw new IllegalArgumentException("only one regular expression per field: " + term);
+			}
+			Pattern.compile(operand);
+			regexes[index] = operand;
+			return;
+		}
+
+		int dots = operand.indexOf("..");
+		if(op.equals("=") && dots < 0) {
+			switch(field) {
+				case "row":
+					restrictRows(Range.exact(operand), term);
+					return;
+				case "cf":
+					columnFamily = same(columnFamily, operand, term);
+					return;
+				case "cq":
+					columnQualifier = same(columnQualifier, operand, term);
+					checkQualifier(term);
+					return;
+				default:
+					valueBounds.above(operand, true, term);
+					valueBounds.below(operand, true, term);
+					return;
+			}
+		}
+
+		if(field.equals("row")) {
+			if(!op.equals("=")) {
+				throw new IllegalArgumentException("rows take =, = with .. or ~: " + term);
+			}
+			restrictRows(new Range(operand.substring(0, dots), operand.substring(dots + 2)), term);
+			return;
+		}
+		if(field.equals("cf")) {
+			throw new IllegalArgumentException("column families take = or ~: " + term);
+		}
+
+		Bounds bounds = field.equals("cq") ? qualifierBounds : valueBounds;
+		switch(op) {
+			case "=":
+				bounds.above(operand.substring(0, dots), true, term);
+				bounds.below(operand.substring(dots + 2), true, term);
+				break;
+			case ">":
+				bounds.above(operand, false, term);
+				break;
+			case ">=":
+				bounds.above(operand, true, term);
+				break;
+			case "<":
+				bounds.below(operand, false, term);
+				break;
+			default:
+				bounds.below(operand, true, term);
+		}
+		if(bounds == qualifierBounds) {
+			checkQualifier(term);
+		}
+	}
+
+	/**
+	 * Rejects a numeric qualifier outside the qualifier bounds
+	 */
+	private void checkQualifier(String term) {
+		if(columnQualifier == null || !qualifierBounds.isSet()) {
+			return;
+		}
+		try {
+			if(!qualifierBounds.contains(Double.parseDouble(columnQualifier))) {
+				throw new IllegalArgumentException("nothing matches both " + term + " and the qualifier terms before it");
+			}
+		} catch (NumberFormatException ex) {
+			throw new IllegalArgumentException("qualifier " + columnQualifier + " is not a number, as " + term + " needs", ex);
+		}
+	}
+
+	private void restrictRows(Range rows, String term) {
+		Range both = range.clip(rows, true);
+		if(both == null) {
+			throw new IllegalArgumentException("no row matches both " + term + " and the rows before it");
+		}
+		range = both;
+	}
+
+	/**
+	 * @return operand, if it is the only value given for a field so far
+	 */
+	private static String same(String previous, String operand, String term) {
+		if(previous != null && !previous.equals(operand)) {
+			throw new IllegalArgumentException("nothing matches both " + term + " and " + previous);
+		}
+		return operand;
+	}
+
+	private static String fieldFor(String name) {
+		switch(name) {
+			case "row":
+			case "country":
+				return "row";
+			case "cf":
+			case "energyType":
+				return "cf";
+			case "cq":
+			case "year":
+				return "cq";
+			case "value":
+			case "quantity":
+				return "value";
+			default:
+				throw new IllegalArgumentException("unknown field: " + name);
+		}
+	}
+
+	/**
+	 * The tightest numeric bounds given for one field
+	 */
+	private static class Bounds {
+
+		Double min = null;
+		Double max = null;
+		boolean minInclusive = true;
+		boolean maxInclusive = true;
+
+		boolean isSet() {
+			return min != null || max != null;
+		}
+
+		void above(String operand, boolean inclusive, String term) {
+			double bound = number(operand, term);
+			if(min == null || bound > min || (bound == min && !inclusive)) {
+				min = bound;
+				minInclusive = inclusive;
+			}
+			check(term);
+		}
+
+		void below(String operand, boolean inclusive, String term) {
+			double bound = number(operand, term);
+			if(max == null || bound < max || (bound == max && !inclusive)) {
+				max = bound;
+				maxInclusive = inclusive;
+			}
+			check(term);
+		}
+
+		boolean contains(double number) {
+			return (min == null || number > min || (number == min && minInclusive))
+					&& (max == null || number < max || (number == max && maxInclusive));
+		}
+
+		/**
+		 * Rejects bounds that no number falls within
+		 */
+		private void check(String term) {
+			if(min != null && max != null && (min > max || (min.equals(max) && !(minInclusive && maxInclusive)))) {
+				throw new IllegalArgumentException("no number matches both " + term + " and the bounds before it");
+			}
+		}
+
+		IteratorSetting toSetting(int priority, String name, NumericRangeFilter.Field field) {
+			IteratorSetting setting = new IteratorSetting(priority, name, NumericRangeFilter.class);
+			NumericRangeFilter.setField(setting, field);
+			if(min != null) {
+				NumericRangeFilter.setMin(setting, min, minInclusive);
+			}
+			if(max != null) {
+				NumericRangeFilter.setMax(setting, max, maxInclusive);
+			}
+			return setting;
+		}
+
+		private static double number(String operand, String term) {
+			try {
+				return Double.parseDouble(operand);
+			} catch (NumberFormatException ex) {
+				throw new IllegalArgumentException("not a number in " + term, ex);
+			}
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package com.oreilly.accumulotraining;
+
+import java.nio.ByteBuffer;
+
+import org.apache.accumulo.core.client.BatchWriter;
+import org.apache.accumulo.core.client.MutationsRejectedException;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Value;
+import org.apache.hadoop.io.Text;
+
+/**
+ * Writes the IngestClient table layout (row country, family energy type,
+ * qualifier year, value quantity) straight from the bytes of a chunk.
+ *
+ * Fields go from the tokenizer's scratch buffers into the Mutation's own
+ * buffer, so the only per-record allocation is the Value. Consecutive
+ * records for the same country share one Mutation, up to
+ * MutationCoalescer.DEFAULT_MAX_UPDATES updates.
+ *
+ * Clients with other layouts override put() to write the record's cell
+ * differently, and written() to send more for each record, such as index
+ * entries. Both are called from several threads at once.
+ */
+public class TokenizedIngest implements ParallelIngest.ChunkHandler, CheckpointedIngest.Handler {
+
+	private final BatchWriter writer;
+	private final IngestMetrics metrics;
+
+	public TokenizedIngest(BatchWriter writer) {
+		this(writer, null);
+	}
+
+	/**
+	 * @param writer
+	 * @param metrics counts each record written, may be null
+	 */
+	public TokenizedIngest(BatchWriter writer, IngestMetrics metrics) {
+		this.writer = writer;
+		this.metrics = metrics;
+	}
+
+	@Override
+	public int handle(ByteBuffer region, boolean firstInFile) throws MutationsRejectedException {
+		return handle(region, firstInFile, null);
+	}
+
+	/**
+	 * Advances progress each time a Mutation is handed to the writer, to
+	 * the start of the first record not yet in one
+	 */
+	@Override
+	public int handle(ByteBuffer region, boolean firstInFile, CheckpointedIngest.Progress progress)
+			throws MutationsRejectedException {
+
+		EnergyRecordTokenizer tokenizer = new EnergyRecordTokenizer(region);
+		if(firstInFile) {
+			tokenizer.skipRecord(); // skip header
+		}
+
+		int written = 0;
+		Text row = new Text();
+		Mutation m = null;
+
+		while(true) {
+			int recordStart = tokenizer.position();
+			if(!tokenizer.next()) {
+				break;
+			}
+
+			Text country = tokenizer.country();
+
+			if(m != null && (!row.equals(country) || m.size() >= MutationCoalescer.DEFAULT_MAX_UPDATES)) {
+				writer.addMutation(m);
+				m = null;
+
+				if(progress != null) {
+					progress.advance(recordStart, written);
+				}
+			}
+
+			if(m == null) {
+				row.set(country);
+				m = new Mutation(row);
+			}
+
+			put(m, tokenizer);
+			written(tokenizer);
+
+			written++;
+			if(metrics != null) {
+				metrics.addRecords(1);
+			}
+		}
+
+		if(m != null) {
+			writer.addMutation(m);
+		}
+
+		if(progress != null) {
+			progress.advance(tokenizer.position(), written);
+		}
+
+		return written;
+	}
+
+	/**
+	 * Adds the current record to the Mutation for its country: the quantity
+	 * under the energy type and year
+	 *
+	 * @param m
+	 * @param record
+	 */
+	protected void put(Mutation m, EnergyRecordTokenizer record) {
+		Text quantity = record.quantity();
+		m.put(
+				record.energyType(),
+				record.year(),
+				new Value(quantity.getBytes(), 0, quantity.getLength()));
+	}
+
+	/**
+	 * Called after each record is added to its Mutation, which may not have
+	 * been handed to the writer yet
+	 *
+	 * @param record
+	 * @throws MutationsRejectedException
+	 */
+	protected void written(EnergyRecordTokenizer record) throws MutationsRejectedException {
+	}
+}
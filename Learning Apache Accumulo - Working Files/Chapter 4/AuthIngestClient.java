@@ -1,45 +1,26 @@
 package com.oreilly.accumulotraining;
 
-import java.io.File;
 import java.io.IOException;
-import java.nio.charset.Charset;
-import java.util.Iterator;
 
-import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.accumulo.core.client.AccumuloException;
 import org.apache.accumulo.core.client.AccumuloSecurityException;
 import org.apache.accumulo.core.client.BatchWriter;
-import org.apache.accumulo.core.client.BatchWriterConfig;
 import org.apache.accumulo.core.client.Connector;
-import org.apache.accumulo.core.client.Durability;
-import org.apache.accumulo.core.client.Instance;
 import org.apache.accumulo.core.client.MutationsRejectedException;
 import org.apache.accumulo.core.client.TableExistsException;
 import org.apache.accumulo.core.client.TableNotFoundException;
-import org.apache.accumulo.core.client.ZooKeeperInstance;
-import org.apache.accumulo.core.client.security.tokens.PasswordToken;
 import org.apache.accumulo.core.data.Mutation;
 import org.apache.accumulo.core.data.Value;
-import org.apache.accumulo.core.security.ColumnVisibility;
 
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVParser;
-import org.apache.commons.csv.CSVRecord;
+import org.apache.hadoop.io.Text;
 
 public class AuthIngestClient {
 	
 	private static final Logger logger = Logger.getLogger(IngestClient.class.getName());
 	
-	private static final int COUNTRY = 0;
-	private static final int COMMODITY = 1;
-	private static final int YEAR = 2;
-	private static final int UNIT = 3;
-	private static final int QUANTITY = 4;
-	private static final int FOOTNOTES = 5;
-	
 	public static void run(
 			String instanceName, 
 			String zookeepers, 
@@ -51,9 +32,7 @@ public class AuthIngestClient {
 		try {
 			
 			System.out.println("connecting to accumulo ...");
-			Instance inst = new ZooKeeperInstance(instanceName, zookeepers);
-			System.out.println("got instance");
-			Connector conn = inst.getConnector(username, new PasswordToken(password));
+			Connector conn = ConnectionManager.shared().getConnector(instanceName, zookeepers, username, password);
 			System.out.println("got connector");
 			
 			if(!conn.tableOperations().exists(table)) {
@@ -61,50 +40,19 @@ public class AuthIngestClient {
 				conn.tableOperations().create(table);
 			}
 			
-			BatchWriterConfig config = new BatchWriterConfig();
-			config.setMaxLatency(1, TimeUnit.SECONDS);
-			config.setMaxMemory(10240);
-			config.setDurability(Durability.DEFAULT);
-			config.setMaxWriteThreads(10);
-			
-			BatchWriter writer = conn.createBatchWriter(table, config);
-			
-			int written = 0;
-			File csvData = new File(filename);
+			BatchWriter writer = new AdaptiveBatchWriterFactory().createBatchWriter(conn, table);
 			
-			System.out.println("parsing file");
-			CSVParser parser = CSVParser.parse(csvData, Charset.defaultCharset(), CSVFormat.EXCEL);
+			// shared by all workers, there are only a few hundred distinct labels
+			VisibilityCache labels = new VisibilityCache();
 			
 			System.out.println("writing data from file " + filename + " ...");
 			
-			Iterator<CSVRecord> records = parser.getRecords().iterator();
-			records.next(); // skip header
-			
-			while(records.hasNext()) {
-				CSVRecord csvRecord = records.next();
-				
-				if(csvRecord.size() < 6) {
-					continue;
-				}
-				
-				String country = csvRecord.get(COUNTRY);
-				String energyType = parseEnergyType(csvRecord.get(COMMODITY));
-				Mutation m = new Mutation(country);
-				
-				m.put(
-						energyType, 
-						csvRecord.get(YEAR), 
-						new ColumnVisibility(energyType + "&" + safeToken(country)),
-						new Value(csvRecord.get(QUANTITY).getBytes()));
-				
-				writer.addMutation(m);
-				written++;
-			}
+			int written = ParallelIngest.ingestChunks(filename, new LabeledIngest(writer, labels));
 			
 			writer.close();
-			parser.close();
 			
 			System.out.println("wrote " + written + " records");
+			System.out.println("visibility cache: " + labels);
 		
 		} catch (MutationsRejectedException ex) {
 			
@@ -115,14 +63,27 @@ public class AuthIngestClient {
 		}
 	}	
 
-	private static String parseEnergyType(String line) {
-		String[] parts = line.split("\\s+");
-		if(parts.length > 3)
-			return parts[3];
-		return line;
-	}
-	
-	private static String safeToken(String s) {
-		return s.replaceAll("[^a-zA-Z]", "");
+	/**
+	 * Writes each record like TokenizedIngest, labeled with the energy type
+	 * and country
+	 */
+	static class LabeledIngest extends TokenizedIngest {
+		
+		private final VisibilityCache labels;
+		
+		LabeledIngest(BatchWriter writer, VisibilityCache labels) {
+			super(writer);
+			this.labels = labels;
+		}
+		
+		@Override
+		protected void put(Mutation m, EnergyRecordTokenizer record) {
+			Text quantity = record.quantity();
+			m.put(
+					record.energyType(),
+					record.year(),
+					labels.get(record.energyType(), record.country()),
+					new Value(quantity.getBytes(), 0, quantity.getLength()));
+		}
 	}
 }
@@ -1,19 +1,17 @@
 package com.oreilly.accumulotraining;
 
-import java.util.Map;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.accumulo.core.client.AccumuloException;
 import org.apache.accumulo.core.client.AccumuloSecurityException;
 import org.apache.accumulo.core.client.Connector;
-import org.apache.accumulo.core.client.Instance;
-import org.apache.accumulo.core.client.Scanner;
+import org.apache.accumulo.core.client.IteratorSetting;
 import org.apache.accumulo.core.client.TableNotFoundException;
-import org.apache.accumulo.core.client.ZooKeeperInstance;
-import org.apache.accumulo.core.client.security.tokens.PasswordToken;
-import org.apache.accumulo.core.data.Key;
 import org.apache.accumulo.core.data.Range;
-import org.apache.accumulo.core.data.Value;
 import org.apache.accumulo.core.security.Authorizations;
 import org.apache.hadoop.io.Text;
 
@@ -21,6 +19,9 @@ public class AuthScanClient {
 	
 	private static final Logger logger = Logger.getLogger(ScanClient.class.getName());
 	
+	// shared by every lookup in this JVM so repeated refreshes don't rescan
+	private static final ScanResultCache cache = new ScanResultCache();
+	
 	public static void run(
 			String instanceName,
 			String zookeepers,
@@ -33,35 +34,28 @@ public class AuthScanClient {
 		
 		try {
 		
-			Instance inst = new ZooKeeperInstance(instanceName, zookeepers);
-			Connector conn = inst.getConnector(username, new PasswordToken(password));
+			Connector conn = ConnectionManager.shared().getConnector(instanceName, zookeepers, username, password);
 			
 			Authorizations auths = new Authorizations("UnitedStates,solar,wind,Argentina".split(","));
-			Scanner scanner = conn.createScanner(table, auths);
-			
-			if(row != null) {
-				scanner.setRange(Range.exact(row));
-			}
+			Range range = row != null ? Range.exact(row) : new Range();
 			
+			List<IteratorSetting.Column> columns = new ArrayList<>();
 			if(columnFamily != null) {
 				if(columnQualifier != null) {
-					scanner.fetchColumn(new Text(columnFamily), new Text(columnQualifier));
+					columns.add(new IteratorSetting.Column(new Text(columnFamily), new Text(columnQualifier)));
 				}
 				else {
-					scanner.fetchColumnFamily(new Text(columnFamily));
+					columns.add(new IteratorSetting.Column(new Text(columnFamily)));
 				}
 			}
 			
-			for(Map.Entry<Key, Value> e : scanner) {
-				System.out.println(
-						e.getKey().getRow().toString() + " " +
-						e.getKey().getColumnFamily().toString() + " " +
-						e.getKey().getColumnQualifier().toString() + "\t" +
-						new String(e.getValue().get()));
+			try (ScanExporter exporter = new ScanExporter(Channels.newChannel(System.out), ScanExporter.Format.TEXT)) {
+				exporter.export(cache.scan(conn, table, auths, range, columns));
 			}
 			
+			logger.log(Level.FINE, "scan cache: {0}", cache);
 		
-		} catch (AccumuloException | AccumuloSecurityException | TableNotFoundException ex) {
+		} catch (AccumuloException | AccumuloSecurityException | TableNotFoundException | IOException ex) {
 			logger.log(Level.SEVERE, ex.getLocalizedMessage(), ex);
 		}
 	}
@@ -0,0 +1,246 @@
+package com.oreilly.accumulotraining;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.IteratorSetting;
+import org.apache.accumulo.core.client.Scanner;
+import org.apache.accumulo.core.client.TableNotFoundException;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.security.Authorizations;
+
+/**
+ * Remembers the results of small, repeated scans such as dashboard lookups
+ * so that refreshing them doesn't go back to the tablet servers.
+ *
+ * Results are keyed by the instance, user, table, range, fetched columns
+ * and the sorted set of authorizations scanned with, so one cache can
+ * serve clients of several instances. A caller only ever gets
+ * results scanned with exactly its own authorizations by the same user, so
+ * no one can see cells through the cache that their own scan would have
+ * hidden, even if they pass authorizations they weren't granted.
+ *
+ * The cache holds at most maxEntries results, dropping the least recently
+ * used, and discards results older than the time to live, which bounds how
+ * stale a lookup can be. Scans returning more than maxCells are passed
+ * through without being cached.
+ */
+public class ScanResultCache {
+
+	public static final int DEFAULT_MAX_ENTRIES = 1000;
+	public static final int DEFAULT_MAX_CELLS = 10000;
+	public static final long DEFAULT_TTL_MILLIS = 60000;
+
+	private final int maxCells;
+	private final long ttlNanos;
+
+	private final Map<CacheKey, Result> results;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder expirations = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	public ScanResultCache() {
+		this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_CELLS, DEFAULT_TTL_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 *
+	 * @param maxEntries results kept
+	 * @param maxCells largest result that is cached
+	 * @param ttl how long a result may be served
+	 * @param unit
+	 */
+	@SuppressWarnings("serial") // the access-ordered map is never serialized
+	public ScanResultCache(final int maxEntries, int maxCells, long ttl, TimeUnit unit) {
+
+		this.maxCells = maxCells;
+		this.ttlNanos = unit.toNanos(ttl);
+
+		this.results = new LinkedHashMap<CacheKey, Result>(16, 0.75f, true) {
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<CacheKey, Result> eldest) {
+				if(size() > maxEntries) {
+					evictions.increment();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Returns the cells in range, from the cache if the same user scanned
+	 * the same thing with the same authorizations within the time to live
+	 *
+	 * @param conn
+	 * @param table
+	 * @param auths
+	 * @param range
+	 * @param columns families, or family and qualifier pairs, to fetch; empty for all
+	 * @return an unmodifiable list of the cells
+	 * @throws TableNotFoundException
+	 */
+	public List<Map.Entry<Key, Value>> scan(
+			Connector conn,
+			String table,
+			Authorizations auths,
+			Range range,
+			Collection<IteratorSetting.Column> columns)
+			throws TableNotFoundException {
+
+		CacheKey key = new CacheKey(conn.getInstance().getInstanceID(), conn.whoami(), table, auths, range, columns);
+		long now = System.nanoTime();
+
+		synchronized(results) {
+			Result cached = results.get(key);
+			if(cached != null) {
+				if(now - cached.loaded < ttlNanos) {
+					hits.increment();
+					return cached.cells;
+				}
+				results.remove(key);
+				expirations.increment();
+			}
+		}
+
+		misses.increment();
+
+		Scanner scanner = conn.createScanner(table, auths);
+		scanner.setRange(range);
+		for(IteratorSetting.Column column : columns) {
+			if(column.getColumnQualifier() == null) {
+				scanner.fetchColumnFamily(column.getColumnFamily());
+			} else {
+				scanner.fetchColumn(column.getColumnFamily(), column.getColumnQualifier());
+			}
+		}
+
+		List<Map.Entry<Key, Value>> cells = new ArrayList<>();
+		for(Map.Entry<Key, Value> e : scanner) {
+			cells.add(new AbstractMap.SimpleImmutableEntry<>(new Key(e.getKey()), new Value(e.getValue())));
+		}
+		cells = Collections.unmodifiableList(cells);
+
+		if(cells.size() <= maxCells) {
+			synchronized(results) {
+				results.put(key, new Result(cells, now));
+			}
+		}
+
+		return cells;
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getExpirations() {
+		return expirations.sum();
+	}
+
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	public int size() {
+		synchronized(results) {
+			return results.size();
+		}
+	}
+
+	@Override
+	public String toString() {
+		long h = getHits();
+		long total = h + getMisses();
+		return String.format("%d results, %d hits, %d misses (%.2f%% hit rate), %d expired, %d evicted",
+				size(), h, getMisses(), total == 0 ? 0.0 : 100.0 * h / total, getExpirations(), getEvictions());
+	}
+
+	private static class Result {
+
+		final List<Map.Entry<Key, Value>> cells;
+		final long loaded;
+
+		Result(List<Map.Entry<Key, Value>> cells, long loaded) {
+			this.cells = cells;
+			this.loaded = loaded;
+		}
+	}
+
+	private static class CacheKey {
+
+		final String instanceId;
+		final String user;
+		final String table;
+		final List<String> auths = new ArrayList<>();
+		final Range range;
+		final List<String> columns = new ArrayList<>();
+		final int hash;
+
+		CacheKey(
+				String instanceId,
+				String user,
+				String table,
+				Authorizations auths,
+				Range range,
+				Collection<IteratorSetting.Column> columns) {
+
+			this.instanceId = instanceId;
+			this.user = user;
+			this.table = table;
+			this.range = range;
+
+			// the same set in any order is the same key
+			for(byte[] auth : auths.getAuthorizations()) {
+				this.auths.add(new String(auth, StandardCharsets.UTF_8));
+			}
+			Collections.sort(this.auths);
+
+			for(IteratorSetting.Column column : columns) {
+				this.columns.add(column.getColumnFamily() + "\u0000"
+						+ (column.getColumnQualifier() == null ? "*" : ":" + column.getColumnQualifier()));
+			}
+			Collections.sort(this.columns);
+
+			this.hash = Objects.hash(instanceId, user, table, this.auths, range, this.columns);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof CacheKey)) {
+				return false;
+			}
+			CacheKey other = (CacheKey) o;
+			return instanceId.equals(other.instanceId)
+					&& user.equals(other.user)
+					&& table.equals(other.table)
+					&& auths.equals(other.auths)
+					&& range.equals(other.range)
+					&& columns.equals(other.columns);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package com.oreilly.accumulotraining;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.accumulo.core.client.MutationsRejectedException;
+
+/**
+ * Measures the labeled ingest hot path, AuthIngestClient.LabeledIngest,
+ * with and without the VisibilityCache, without needing a cluster.
+ *
+ * The file is mapped once up front and each round tokenizes it from
+ * memory, as ParseBenchmark does for TokenizedIngest. Mutations go to a
+ * BatchWriter that serializes and discards them. The first rounds warm up
+ * the JIT and are not reported.
+ *
+ * usage: VisibilityBenchmark file.csv [rounds]
+ */
+public class VisibilityBenchmark {
+
+	private static final int WARMUP_ROUNDS = 3;
+
+	public static void main(String[] args) throws IOException, MutationsRejectedException {
+
+		File csvData = new File(args[0]);
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+		MappedByteBuffer region;
+		try (RandomAccessFile file = new RandomAccessFile(csvData, "r")) {
+			region = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+		}
+
+		System.out.println("labels\tround\trecords\tns/record\tcache");
+
+		for(int round = -WARMUP_ROUNDS; round < rounds; round++) {
+			for(boolean cached : new boolean[] {false, true}) {
+
+				// a cache that holds nothing builds every label, as before
+				VisibilityCache labels = cached ? new VisibilityCache() : new VisibilityCache(0);
+				AuthIngestClient.LabeledIngest ingest = new AuthIngestClient.LabeledIngest(
+						new CountingBatchWriter(), labels);
+
+				long start = System.nanoTime();
+				int records = ingest.handle(region.duplicate(), true);
+				long elapsed = System.nanoTime() - start;
+
+				if(round >= 0) {
+					System.out.println(
+							(cached ? "cached" : "parsed") + "\t" +
+							round + "\t" +
+							records + "\t" +
+							String.format("%.1f", (double) elapsed / Math.max(1, records)) + "\t" +
+							labels);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,197 @@
+package com.oreilly.accumulotraining;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.accumulo.core.security.ColumnVisibility;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+
+/**
+ * Hands out the ColumnVisibility for an (energy type, country) pair,
+ * building each one only once.
+ *
+ * Building a label means a string concatenation, a regex replace and a
+ * parse of the expression, while the energy files only hold a few hundred
+ * distinct pairs. Cached labels are already parsed and serialized, and
+ * ColumnVisibility is not modified once built, so one instance is shared
+ * by every thread and Mutation that needs it.
+ *
+ * Lookups don't lock, and are made on the bytes of the fields through a
+ * key each thread reuses, so a hit allocates nothing; Strings are only
+ * built to make a new label. The cache holds at most maxSize labels; should the
+ * working set ever outgrow that, each new label pushes out an arbitrary
+ * old one, which is counted as an eviction.
+ */
+public class VisibilityCache {
+
+	public static final int DEFAULT_MAX_SIZE = 4096;
+
+	private final int maxSize;
+	private final ConcurrentMap<Pair, ColumnVisibility> labels = new ConcurrentHashMap<>();
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	private final ThreadLocal<Pair> scratch = new ThreadLocal<Pair>() {
+
+		@Override
+		protected Pair initialValue() {
+			return new Pair();
+		}
+	};
+
+	public VisibilityCache() {
+		this(DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * @param maxSize labels kept; 0 builds a new label for every call
+	 */
+	public VisibilityCache(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * The label for data of energyType from country
+	 *
+	 * @param energyType
+	 * @param country
+	 * @return
+	 */
+	public ColumnVisibility get(String energyType, String country) {
+		return get(new Text(energyType), new Text(country));
+	}
+
+	/**
+	 * The label for data of energyType from country, given as the bytes a
+	 * tokenizer holds. Neither is kept.
+	 *
+	 * @param energyType
+	 * @param country
+	 * @return
+	 */
+	public ColumnVisibility get(Text energyType, Text country) {
+
+		Pair key = scratch.get().set(
+				energyType.getBytes(), energyType.getLength(), country.getBytes(), country.getLength());
+
+		ColumnVisibility label = labels.get(key);
+		if(label != null) {
+			hits.increment();
+			return label;
+		}
+
+		misses.increment();
+		label = labelFor(energyType.toString(), country.toString());
+
+		if(maxSize > 0) {
+			if(labels.size() >= maxSize) {
+				Iterator<Pair> victim = labels.keySet().iterator();
+				if(victim.hasNext()) {
+					labels.remove(victim.next());
+					evictions.increment();
+				}
+			}
+			labels.putIfAbsent(key.copy(), label);
+		}
+
+		return label;
+	}
+
+	/**
+	 * Builds a label without the cache. Countries become tokens by dropping
+	 * everything but letters.
+	 *
+	 * @param energyType
+	 * @param country
+	 * @return
+	 */
+	public static ColumnVisibility labelFor(String energyType, String country) {
+		return new ColumnVisibility(energyType + "&" + safeToken(country));
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	public double getHitRate() {
+		long h = hits.sum();
+		long total = h + misses.sum();
+		return total == 0 ? 0 : (double) h / total;
+	}
+
+	public int size() {
+		return labels.size();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d labels, %d hits, %d misses (%.2f%% hit rate), %d evictions",
+				size(), getHits(), getMisses(), getHitRate() * 100, getEvictions());
+	}
+
+	private static String safeToken(String s) {
+		return s.replaceAll("[^a-zA-Z]", "");
+	}
+
+	/**
+	 * The bytes of an energy type and country. The cache's keys own copies
+	 * of them; a thread's lookup key points at the caller's buffers and is
+	 * never stored.
+	 */
+	private static class Pair {
+
+		private byte[] energyType;
+		private int energyTypeLength;
+		private byte[] country;
+		private int countryLength;
+		private int hash;
+
+		Pair set(byte[] energyType, int energyTypeLength, byte[] country, int countryLength) {
+			this.energyType = energyType;
+			this.energyTypeLength = energyTypeLength;
+			this.country = country;
+			this.countryLength = countryLength;
+			this.hash = 31 * WritableComparator.hashBytes(energyType, energyTypeLength)
+					+ WritableComparator.hashBytes(country, countryLength);
+			return this;
+		}
+
+		Pair copy() {
+			return new Pair().set(
+					Arrays.copyOf(energyType, energyTypeLength), energyTypeLength,
+					Arrays.copyOf(country, countryLength), countryLength);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof Pair)) {
+				return false;
+			}
+			Pair other = (Pair) o;
+			return hash == other.hash
+					&& WritableComparator.compareBytes(
+							energyType, 0, energyTypeLength, other.energyType, 0, other.energyTypeLength) == 0
+					&& WritableComparator.compareBytes(
+							country, 0, countryLength, other.country, 0, other.countryLength) == 0;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+}
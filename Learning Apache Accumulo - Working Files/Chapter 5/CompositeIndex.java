@@ -0,0 +1,409 @@
+package com.oreilly.accumulotraining;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.accumulo.core.client.AccumuloException;
+import org.apache.accumulo.core.client.AccumuloSecurityException;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.TableExistsException;
+import org.apache.accumulo.core.client.TableNotFoundException;
+import org.apache.accumulo.core.client.lexicoder.DoubleLexicoder;
+import org.apache.accumulo.core.client.lexicoder.LongLexicoder;
+import org.apache.accumulo.core.client.lexicoder.StringLexicoder;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.hadoop.io.Text;
+
+/**
+ * An index over several attributes of the energy table, such as
+ * (energyType, year, quantity), so a query that fixes the leading
+ * attributes and bounds the next one reads only the entries it wants.
+ *
+ * Each index row is its attributes in order, each encoded with the
+ * lexicoder for its type, escaped and joined with 0x00 bytes, the same way
+ * PairLexicoder and ListLexicoder build rows: 0x00 in a value becomes
+ * 0x01 0x01 and 0x01 becomes 0x01 0x02. Rows then sort by the first
+ * attribute, then the second, and so on. The rest of the entry is laid out
+ * as in EnergyIndex, covering:
+ *
+ *   attributes / energy type / country \t year -> quantity
+ *
+ * A composite index lives in table + "_by_" + its attribute names joined
+ * with "_". The data table's COMPOSITES_PROPERTY lists the indexes kept
+ * for it, as attribute lists separated by ';', for example
+ * "energyType,year,quantity;year,quantity".
+ *
+ * Instances don't change once built and can be shared between threads.
+ */
+public class CompositeIndex {
+
+	public static final String COMPOSITES_PROPERTY = "table.custom.index.composites";
+
+	/**
+	 * What can be indexed, and how each is encoded
+	 */
+	public enum Attribute {
+		COUNTRY("country"),
+		ENERGY_TYPE("energyType"),
+		YEAR("year"),
+		QUANTITY("quantity");
+
+		private final String label;
+
+		Attribute(String label) {
+			this.label = label;
+		}
+
+		public String getLabel() {
+			return label;
+		}
+
+		public static Attribute forLabel(String label) {
+			for(Attribute attribute : values()) {
+				if(attribute.label.equals(label)) {
+					return attribute;
+				}
+			}
+			throw new IllegalArgumentException("unknown attribute: " + label);
+		}
+	}
+
+	private static final StringLexicoder stringLexicoder = new StringLexicoder();
+	private static final LongLexicoder longLexicoder = new LongLexicoder();
+	private static final DoubleLexicoder doubleLexicoder = new DoubleLexicoder();
+
+	private final List<Attribute> attributes;
+
+	public CompositeIndex(Attribute... attributes) {
+		this(Arrays.asList(attributes));
+	}
+
+	public CompositeIndex(List<Attribute> attributes) {
+		if(attributes.isEmpty()) {
+			throw new IllegalArgumentException("a composite index needs at least one attribute");
+		}
+		this.attributes = Collections.unmodifiableList(new ArrayList<>(attributes));
+	}
+
+	/**
+	 * Parses a comma separated attribute list such as "year,quantity"
+	 *
+	 * @param spec
+	 * @return
+	 */
+	public static CompositeIndex parse(String spec) {
+		List<Attribute> attributes = new ArrayList<>();
+		for(String label : spec.split(",")) {
+			attributes.add(Attribute.forLabel(label.trim()));
+		}
+		return new CompositeIndex(attributes);
+	}
+
+	/**
+	 * Parses a ';' separated list of indexes, as kept in COMPOSITES_PROPERTY
+	 *
+	 * @param specs may be null or empty
+	 * @return
+	 */
+	public static List<CompositeIndex> parseAll(String specs) {
+		List<CompositeIndex> indexes = new ArrayList<>();
+		if(specs == null) {
+			return indexes;
+		}
+		for(String spec : specs.split(";")) {
+			if(!spec.trim().isEmpty()) {
+				indexes.add(parse(spec));
+			}
+		}
+		return indexes;
+	}
+
+	/**
+	 * The composite indexes kept for table
+	 *
+	 * @param conn
+	 * @param table the data table
+	 * @return
+	 * @throws AccumuloException
+	 * @throws TableNotFoundException
+	 */
+	public static List<CompositeIndex> forTable(Connector conn, String table)
+			throws AccumuloException, TableNotFoundException {
+
+		for(Map.Entry<String, String> property : conn.tableOperations().getProperties(table)) {
+			if(property.getKey().equals(COMPOSITES_PROPERTY)) {
+				return parseAll(property.getValue());
+			}
+		}
+		return new ArrayList<>();
+	}
+
+	/**
+	 * Records the composite indexes to keep for a new data table and
+	 * creates their tables
+	 *
+	 * @param conn
+	 * @param table the data table
+	 * @param indexes
+	 * @throws AccumuloException
+	 * @throws AccumuloSecurityException
+	 * @throws TableExistsException
+	 */
+	public static void configure(Connector conn, String table, List<CompositeIndex> indexes)
+			throws AccumuloException, AccumuloSecurityException, TableExistsException {
+
+		if(indexes.isEmpty()) {
+			return;
+		}
+
+		StringBuilder specs = new StringBuilder();
+		for(CompositeIndex index : indexes) {
+			if(specs.length() > 0) {
+				specs.append(';');
+			}
+			specs.append(index.getSpec());
+
+			if(!conn.tableOperations().exists(index.tableFor(table))) {
+				System.out.println("creating table " + index.tableFor(table));
+				conn.tableOperations().create(index.tableFor(table));
+			}
+		}
+
+		conn.tableOperations().setProperty(table, COMPOSITES_PROPERTY, specs.toString());
+	}
+
+	public List<Attribute> getAttributes() {
+		return attributes;
+	}
+
+	/**
+	 * @return the attribute labels joined with ','
+	 */
+	public String getSpec() {
+		StringBuilder spec = new StringBuilder();
+		for(Attribute attribute : attributes) {
+			if(spec.length() > 0) {
+				spec.append(',');
+			}
+			spec.append(attribute.getLabel());
+		}
+		return spec.toString();
+	}
+
+	/**
+	 * @param table the data table
+	 * @return the name of this index's table
+	 */
+	public String tableFor(String table) {
+		StringBuilder name = new StringBuilder(table).append("_by");
+		for(Attribute attribute : attributes) {
+			name.append('_').append(attribute.getLabel());
+		}
+		return name.toString();
+	}
+
+	/**
+	 * The index entry for a data cell
+	 *
+	 * @param country
+	 * @param energyType
+	 * @param year
+	 * @param quantity
+	 * @return
+	 * @throws NumberFormatException if year or quantity is not a number
+	 */
+	public Mutation put(String country, String energyType, String year, String quantity) {
+		Mutation im = new Mutation(row(country, energyType, year, quantity));
+		im.put(energyType, country + "\t" + year, new Value(quantity.getBytes()));
+		return im;
+	}
+
+	/**
+	 * Removes the index entry written by put() with the same arguments
+	 *
+	 * @param country
+	 * @param energyType
+	 * @param year
+	 * @param quantity
+	 * @return
+	 * @throws NumberFormatException if year or quantity is not a number
+	 */
+	public Mutation delete(String country, String energyType, String year, String quantity) {
+		Mutation im = new Mutation(row(country, energyType, year, quantity));
+		im.putDelete(energyType, country + "\t" + year);
+		return im;
+	}
+
+	/**
+	 * Whether a cell can be indexed, which takes a numeric year and quantity
+	 *
+	 * @param year
+	 * @param quantity
+	 * @return
+	 */
+	public static boolean isIndexable(String year, String quantity) {
+		if(!EnergyIndex.isIndexable(quantity)) {
+			return false;
+		}
+		try {
+			Long.parseLong(year);
+			return true;
+		} catch (NumberFormatException ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * The rows of this index that have the given values for its leading
+	 * attributes and, if rangeLow and rangeHigh are given, a value from
+	 * rangeLow to rangeHigh inclusive for the attribute after those
+	 *
+	 * @param equal values for the first equal.size() attributes
+	 * @param rangeLow may be null, to not bound the next attribute
+	 * @param rangeHigh
+	 * @return
+	 */
+	public Range range(List<String> equal, String rangeLow, String rangeHigh) {
+
+		byte[][] prefix = new byte[equal.size()][];
+		for(int i = 0; i < equal.size(); i++) {
+			prefix[i] = encode(attributes.get(i), equal.get(i));
+		}
+
+		if(rangeLow == null) {
+			if(prefix.length == 0) {
+				return new Range();
+			}
+			if(prefix.length == attributes.size()) {
+				return Range.exact(new Text(concat(prefix)));
+			}
+			// whole values, so "Chin" doesn't match "China"
+			byte[] joined = concat(prefix);
+			byte[] start = Arrays.copyOf(joined, joined.length + 1);
+			start[joined.length] = 0x00;
+			return Range.prefix(new Text(start));
+		}
+
+		Attribute next = attributes.get(equal.size());
+		byte[] low = encode(next, rangeLow);
+		byte[] high = encode(next, rangeHigh);
+
+		byte[] start = append(prefix, low);
+		// escaped values never hold 0x00 and only 0x00 follows a whole
+		// value, so this sorts after every row whose value is high
+		byte[] end = append(prefix, high);
+		end = Arrays.copyOf(end, end.length + 1);
+		end[end.length - 1] = 0x01;
+
+		return new Range(new Text(start), true, new Text(end), false);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof CompositeIndex && attributes.equals(((CompositeIndex) o).attributes);
+	}
+
+	@Override
+	public int hashCode() {
+		return attributes.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return "(" + getSpec() + ")";
+	}
+
+	private byte[] row(String country, String energyType, String year, String quantity) {
+		byte[][] fields = new byte[attributes.size()][];
+		for(int i = 0; i < fields.length; i++) {
+			Attribute attribute = attributes.get(i);
+			switch(attribute) {
+				case COUNTRY:
+					fields[i] = encode(attribute, country);
+					break;
+				case ENERGY_TYPE:
+					fields[i] = encode(attribute, energyType);
+					break;
+				case YEAR:
+					fields[i] = encode(attribute, year);
+					break;
+				default:
+					fields[i] = encode(attribute, quantity);
+			}
+		}
+		return concat(fields);
+	}
+
+	/**
+	 * Lexicodes and escapes one value
+	 */
+	private static byte[] encode(Attribute attribute, String value) {
+		switch(attribute) {
+			case YEAR:
+				return escape(longLexicoder.encode(Long.parseLong(value)));
+			case QUANTITY:
+				return escape(doubleLexicoder.encode(Double.parseDouble(value)));
+			default:
+				return escape(stringLexicoder.encode(value));
+		}
+	}
+
+	private static byte[] append(byte[][] prefix, byte[] last) {
+		byte[][] fields = Arrays.copyOf(prefix, prefix.length + 1);
+		fields[prefix.length] = last;
+		return concat(fields);
+	}
+
+	/**
+	 * Escapes 0x00 and 0x01 so a value never holds the separator
+	 */
+	private static byte[] escape(byte[] value) {
+		int escapes = 0;
+		for(byte b : value) {
+			if(b == 0x00 || b == 0x01) {
+				escapes++;
+			}
+		}
+		if(escapes == 0) {
+			return value;
+		}
+
+		byte[] escaped = new byte[value.length + escapes];
+		int i = 0;
+		for(byte b : value) {
+			if(b == 0x00 || b == 0x01) {
+				escaped[i++] = 0x01;
+				escaped[i++] = (byte) (b + 1);
+			} else {
+				escaped[i++] = b;
+			}
+		}
+		return escaped;
+	}
+
+	/**
+	 * Joins escaped values with 0x00 between them
+	 */
+	private static byte[] concat(byte[][] fields) {
+		int length = Math.max(fields.length - 1, 0);
+		for(byte[] field : fields) {
+			length += field.length;
+		}
+
+		byte[] joined = new byte[length];
+		int i = 0;
+		for(int f = 0; f < fields.length; f++) {
+			if(f > 0) {
+				joined[i++] = 0x00;
+			}
+			System.arraycopy(fields[f], 0, joined, i, fields[f].length);
+			i += fields[f].length;
+		}
+		return joined;
+	}
+}
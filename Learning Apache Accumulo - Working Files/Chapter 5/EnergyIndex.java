@@ -0,0 +1,320 @@
+package com.oreilly.accumulotraining;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.accumulo.core.client.AccumuloException;
+import org.apache.accumulo.core.client.AccumuloSecurityException;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.TableNotFoundException;
+import org.apache.accumulo.core.client.lexicoder.DoubleLexicoder;
+import org.apache.accumulo.core.data.ByteSequence;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.hadoop.io.Text;
+
+/**
+ * The layout of the value index over the energy table, in one place for
+ * the clients that write, maintain and read it.
+ *
+ * The data table holds country / energy type / year -> quantity. For each
+ * of those cells the index table, named table + "_index", holds
+ *
+ *   [shard] lexicoded quantity / energy type / country \t year -> blank
+ *
+ * so a range of quantities is a range of index rows, and each index entry
+ * can be turned back into the data cell it points at.
+ *
+ * A covering index stores the quantity as written in the data table as
+ * the entry's value instead of leaving it blank. Queries that want the
+ * quantities can then read them from the index rather than looking each
+ * cell up in the data table.
+ *
+ * Without shards, similar quantities are neighbouring rows, so loading or
+ * querying a band of values keeps a few tablets busy while the rest of the
+ * cluster idles. A sharded index starts each row with a three digit shard
+ * picked by hashing the country, which spreads every band of values over
+ * all shards; a query then scans the same quantity range in each shard.
+ *
+ * The shard count and whether the index is covering are kept in the index
+ * table's SHARDS_PROPERTY and COVERING_PROPERTY, set once when the table
+ * is created, so every client lays out and reads entries the same way.
+ * Index tables without them are unsharded and not covering.
+ *
+ * Instances don't change once built and can be shared between threads.
+ */
+public class EnergyIndex {
+
+	public static final String SHARDS_PROPERTY = "table.custom.index.shards";
+	public static final String COVERING_PROPERTY = "table.custom.index.covering";
+
+	public static final int DEFAULT_SHARDS = 16;
+	public static final int MAX_SHARDS = 1000;
+
+	private static final Value BLANK_VALUE = new Value("".getBytes());
+	private static final byte[] EMPTY_BYTES = new byte[0];
+
+	private final int shards;
+	private final boolean covering;
+	private final DoubleLexicoder doubleLexicoder = new DoubleLexicoder();
+
+	/**
+	 * An unsharded index
+	 */
+	public EnergyIndex() {
+		this(0);
+	}
+
+	/**
+	 * @param shards 0 for an unsharded index, otherwise at most MAX_SHARDS
+	 */
+	public EnergyIndex(int shards) {
+		this(shards, false);
+	}
+
+	/**
+	 * @param shards 0 for an unsharded index, otherwise at most MAX_SHARDS
+	 * @param covering whether entries hold the quantity
+	 */
+	public EnergyIndex(int shards, boolean covering) {
+		if(shards < 0 || shards > MAX_SHARDS) {
+			throw new IllegalArgumentException("shards must be between 0 and " + MAX_SHARDS + ": " + shards);
+		}
+		this.shards = shards;
+		this.covering = covering;
+	}
+
+	/**
+	 * The layout of an existing index
+	 *
+	 * @param conn
+	 * @param table the data table
+	 * @return
+	 * @throws AccumuloException
+	 * @throws TableNotFoundException
+	 */
+	public static EnergyIndex forTable(Connector conn, String table)
+			throws AccumuloException, TableNotFoundException {
+
+		int shards = 0;
+		boolean covering = false;
+
+		for(Map.Entry<String, String> property : conn.tableOperations().getProperties(indexTableFor(table))) {
+			if(property.getKey().equals(SHARDS_PROPERTY)) {
+				shards = Integer.parseInt(property.getValue());
+			} else if(property.getKey().equals(COVERING_PROPERTY)) {
+				covering = Boolean.parseBoolean(property.getValue());
+			}
+		}
+		return new EnergyIndex(shards, covering);
+	}
+
+	/**
+	 * Records this layout on a new, still empty index table
+	 *
+	 * @param conn
+	 * @param table the data table
+	 * @throws AccumuloException
+	 * @throws AccumuloSecurityException
+	 */
+	public void configure(Connector conn, String table) throws AccumuloException, AccumuloSecurityException {
+		if(shards > 0) {
+			conn.tableOperations().setProperty(indexTableFor(table), SHARDS_PROPERTY, Integer.toString(shards));
+		}
+		if(covering) {
+			conn.tableOperations().setProperty(indexTableFor(table), COVERING_PROPERTY, Boolean.toString(covering));
+		}
+	}
+
+	/**
+	 * @param table the data table
+	 * @return the name of its index table
+	 */
+	public static String indexTableFor(String table) {
+		return table + "_index";
+	}
+
+	public int getShards() {
+		return shards;
+	}
+
+	public boolean isCovering() {
+		return covering;
+	}
+
+	/**
+	 * The index row for a data cell of country
+	 *
+	 * @param country
+	 * @param quantity
+	 * @return
+	 */
+	public byte[] indexRow(String country, double quantity) {
+		byte[] encoded = doubleLexicoder.encode(quantity);
+		if(shards == 0) {
+			return encoded;
+		}
+
+		byte[] row = new byte[3 + encoded.length];
+		System.arraycopy(shardPrefix(shardFor(country)), 0, row, 0, 3);
+		System.arraycopy(encoded, 0, row, 3, encoded.length);
+		return row;
+	}
+
+	/**
+	 * The index rows holding quantities from start to end inclusive, one
+	 * range per shard
+	 *
+	 * @param start
+	 * @param end
+	 * @return
+	 */
+	public List<Range> ranges(double start, double end) {
+
+		byte[] from = doubleLexicoder.encode(start);
+		byte[] to = doubleLexicoder.encode(end);
+
+		List<Range> ranges = new ArrayList<>();
+		if(shards == 0) {
+			ranges.add(new Range(new Text(from), new Text(to)));
+			return ranges;
+		}
+
+		for(int shard = 0; shard < shards; shard++) {
+			Text startRow = new Text(shardPrefix(shard));
+			startRow.append(from, 0, from.length);
+			Text endRow = new Text(shardPrefix(shard));
+			endRow.append(to, 0, to.length);
+			ranges.add(new Range(startRow, endRow));
+		}
+		return ranges;
+	}
+
+	/**
+	 * The index entry for a data cell
+	 *
+	 * @param country data row
+	 * @param energyType data column family
+	 * @param year data column qualifier
+	 * @param quantity data value
+	 * @return
+	 * @throws NumberFormatException if quantity is not a number
+	 */
+	public Mutation put(String country, String energyType, String year, String quantity) {
+		Mutation im = new Mutation(indexRow(country, Double.parseDouble(quantity)));
+		im.put(energyType, country + "\t" + year, covering ? new Value(quantity.getBytes()) : BLANK_VALUE);
+		return im;
+	}
+
+	/**
+	 * Removes the index entry written by put() with the same arguments
+	 *
+	 * @param country
+	 * @param energyType
+	 * @param year
+	 * @param quantity
+	 * @return
+	 * @throws NumberFormatException if quantity is not a number
+	 */
+	public Mutation delete(String country, String energyType, String year, String quantity) {
+		Mutation im = new Mutation(indexRow(country, Double.parseDouble(quantity)));
+		im.putDelete(energyType, country + "\t" + year);
+		return im;
+	}
+
+	/**
+	 * Whether a data value can be indexed at all
+	 *
+	 * @param quantity
+	 * @return
+	 */
+	public static boolean isIndexable(String quantity) {
+		if(quantity == null) {
+			return false;
+		}
+		try {
+			Double.parseDouble(quantity);
+			return true;
+		} catch (NumberFormatException ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * Whether an index entry holds the quantity of its data cell; entries
+	 * of an index that isn't covering, or was made covering later, are
+	 * blank
+	 *
+	 * @param indexValue
+	 * @return
+	 */
+	public static boolean isCovered(Value indexValue) {
+		return indexValue.getSize() > 0;
+	}
+
+	/**
+	 * The data cell an index entry points at. Works on the key's bytes
+	 * directly, as it runs once for every entry a lookup reads.
+	 *
+	 * @param indexKey
+	 * @return row, column family and qualifier of the data cell
+	 * @throws IllegalArgumentException if indexKey is not an index entry
+	 */
+	public static Key mainKey(Key indexKey) {
+		ByteSequence cf = indexKey.getColumnFamilyData();
+		ByteSequence cq = indexKey.getColumnQualifierData();
+		byte[] bytes = cq.getBackingArray();
+		int offset = cq.offset();
+
+		int tab = 0;
+		while(tab < cq.length() && bytes[offset + tab] != '\t') {
+			tab++;
+		}
+		if(tab == cq.length()) {
+			throw new IllegalArgumentException("not an index entry: " + indexKey);
+		}
+
+		return new Key(
+				bytes, offset, tab,
+				cf.getBackingArray(), cf.offset(), cf.length(),
+				bytes, offset + tab + 1, cq.length() - tab - 1,
+				EMPTY_BYTES, 0, 0,
+				Long.MAX_VALUE);
+	}
+
+	/**
+	 * How many bytes come before the lexicoded quantity in an index row
+	 *
+	 * @return 0 for an unsharded index
+	 */
+	public int getPrefixLength() {
+		return shards == 0 ? 0 : 3;
+	}
+
+	/**
+	 * The quantity an index entry was filed under
+	 *
+	 * @param indexKey
+	 * @return
+	 */
+	public double quantity(Key indexKey) {
+		ByteSequence row = indexKey.getRowData();
+		int skip = getPrefixLength();
+		return doubleLexicoder.decode(
+				Arrays.copyOfRange(row.getBackingArray(), row.offset() + skip, row.offset() + row.length()));
+	}
+
+	private int shardFor(String country) {
+		// String.hashCode is fixed by the language spec, so every client agrees
+		return (country.hashCode() & Integer.MAX_VALUE) % shards;
+	}
+
+	private static byte[] shardPrefix(int shard) {
+		return String.format("%03d", shard).getBytes(StandardCharsets.UTF_8);
+	}
+}
@@ -1,12 +1,8 @@
 package com.oreilly.accumulotraining;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collection;
+import java.nio.file.Paths;
 import java.util.Iterator;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
 
 import java.util.concurrent.TimeUnit;
 
@@ -16,15 +12,10 @@ import org.apache.accumulo.core.client.BatchWriter;
 import org.apache.accumulo.core.client.BatchWriterConfig;
 import org.apache.accumulo.core.client.Connector;
 import org.apache.accumulo.core.client.Durability;
-import org.apache.accumulo.core.client.MutationsRejectedException;
 import org.apache.accumulo.core.client.TableExistsException;
-import org.apache.accumulo.core.client.TableNotFoundException;
 import org.apache.accumulo.core.client.ZooKeeperInstance;
-import org.apache.accumulo.core.client.security.SecurityErrorCode;
 import org.apache.accumulo.core.client.security.tokens.PasswordToken;
-import org.apache.accumulo.core.data.ConstraintViolationSummary;
 import org.apache.accumulo.core.data.Mutation;
-import org.apache.accumulo.core.data.TabletId;
 import org.apache.accumulo.core.data.Value;
 
 import org.slf4j.Logger;
@@ -45,8 +36,6 @@ public class ErrorHandlingExample {
   private ZooKeeperInstance inst;
   private Connector conn;
   private DataGenerator incomingData;
-  private ArrayList<Mutation> batch;
-  private BatchWriter dataWriter = null;
   
   public ErrorHandlingExample(
           String instanceName,
@@ -60,7 +49,7 @@ public class ErrorHandlingExample {
     this.password = password;
   }
   
-  public void run() throws TableNotFoundException, AccumuloException, AccumuloSecurityException, TableExistsException, InterruptedException, IOException {
+  public void run() throws AccumuloException, AccumuloSecurityException, TableExistsException, IOException {
     
     inst = new ZooKeeperInstance(instanceName, zookeepers);
     conn = inst.getConnector(username, new PasswordToken(password));
@@ -69,17 +58,23 @@ public class ErrorHandlingExample {
       conn.tableOperations().create(DATA_TABLE);
     }
 
-    BatchWriterConfig dataWriterConfig = new BatchWriterConfig();
+    BatchWriterConfig dataWriterConfig = new AdaptiveBatchWriterFactory()
+            // writes survive single server failure
+            .setDurability(Durability.FLUSH)
+            .newConfig(conn);
     dataWriterConfig.setMaxLatency(10, TimeUnit.SECONDS);
-    dataWriterConfig.setMaxMemory(10240);
-    // writes survive single server failure
-    dataWriterConfig.setDurability(Durability.FLUSH);
-    dataWriterConfig.setMaxWriteThreads(10);
 
     // this causes our batch writer to get an exception rather than waiting forever
     //dataWriterConfig.setTimeout(5, TimeUnit.SECONDS);
 
-    dataWriter = null;
+    // retries transient failures and sets aside mutations that can never be written
+    ResilientBatchWriter resilientWriter = new ResilientBatchWriter(
+            conn, DATA_TABLE, dataWriterConfig, Paths.get(DATA_TABLE + ".deadletter"))
+            .setBatchSize(BATCH_SIZE);
+
+    // batches are flushed and retried on another thread while generation continues
+    BatchWriter dataWriter = new PipelinedBatchWriter(resilientWriter);
+
     incomingData = new DataGenerator(10000);
 
     while (incomingData.hasNext()) {
@@ -89,93 +84,15 @@ public class ErrorHandlingExample {
       m.put("colFam",
               "colQual",
               new Value("value".getBytes()));
-      batch.add(m);
-
-      if (batch.size() >= BATCH_SIZE) {
-
-        if(dataWriter == null) {
-          dataWriter = conn.createBatchWriter(DATA_TABLE, dataWriterConfig);
-        }
-        
-        try {
-
-          dataWriter.addMutations(batch);
-
-          dataWriter.flush();
-          batch.clear();
-
-          return;
-
-        } catch (MutationsRejectedException ex) {
-
-          if (!handleExceptions(ex)) {
-            // print out info from batch that failed
-            dumpBatchToScreen(batch);
-            
-            throw new IOException("There are permanent errors .. exiting");
-          }
-          else {
-            // can optionally retry the batch
-          }
-
-          // this BatchWriter won't be able to reconnect after errors
-          try {
-            dataWriter.close();
-          } catch (Exception ex1) {
-            logger.warn("Additional error closing batch writer: " + ex1.getMessage());
-          }
-          
-          dataWriter = null;
-        }
-      }
-    }    
-  }
-  
-  
-  
-  /**
-   * This method differentiates between various types of exception we may see
-   * and returns true if we could retry, false if we should exit.
-   * 
-   * @param ex
-   * @return 
-   */
-  private boolean handleExceptions(MutationsRejectedException ex) {
 
-    // ---- permanent failures ----
-    
-    Map<TabletId, Set<SecurityErrorCode>> securityErrors = ex.getSecurityErrorCodes();
-    for (Map.Entry<TabletId, Set<SecurityErrorCode>> entry : securityErrors.entrySet()) {
-      for (SecurityErrorCode err : entry.getValue()) {
-        logger.error("permanent error: " + err.toString());
-      }
+      dataWriter.addMutation(m);
     }
 
-    List<ConstraintViolationSummary> constraintViolations = ex.getConstraintViolationSummaries();
-
-    if (!securityErrors.isEmpty() || !constraintViolations.isEmpty()) {
-      logger.error("Have permanent errors. Exiting ...");
-      return false;
-    }
-
-    // ---- transient failures ----
-    
-    Collection<String> errorServers = ex.getErrorServers();
-    for (String errorServer : errorServers) {
-      logger.warn("Problem with server: " + errorServer);
-    }
-
-    int numUnknownExceptions = ex.getUnknownExceptions();
-    if (numUnknownExceptions > 0) {
-      logger.warn(numUnknownExceptions + " unknown exceptions.");
-    }
-
-    return true;
-  }
+    dataWriter.close();
 
-  private void dumpBatchToScreen(ArrayList<Mutation> batch) {
-    for(Mutation m : batch) {
-      System.out.println(new String(m.getRow()));
+    if (resilientWriter.getDeadLettered() > 0) {
+      throw new IOException("There are permanent errors, " + resilientWriter.getDeadLettered() 
+              + " mutations were not written .. exiting");
     }
   }
 
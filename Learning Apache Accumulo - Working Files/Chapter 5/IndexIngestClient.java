@@ -1,10 +1,12 @@
 package com.oreilly.accumulotraining;
 
-import java.io.File;
 import java.io.IOException;
-import java.nio.charset.Charset;
-import java.util.Iterator;
 
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -12,35 +14,19 @@ import java.util.logging.Logger;
 import org.apache.accumulo.core.client.AccumuloException;
 import org.apache.accumulo.core.client.AccumuloSecurityException;
 import org.apache.accumulo.core.client.BatchWriter;
-import org.apache.accumulo.core.client.BatchWriterConfig;
 import org.apache.accumulo.core.client.Connector;
-import org.apache.accumulo.core.client.Durability;
-import org.apache.accumulo.core.client.Instance;
 import org.apache.accumulo.core.client.MultiTableBatchWriter;
 import org.apache.accumulo.core.client.MutationsRejectedException;
 import org.apache.accumulo.core.client.TableExistsException;
 import org.apache.accumulo.core.client.TableNotFoundException;
-import org.apache.accumulo.core.client.ZooKeeperInstance;
-import org.apache.accumulo.core.client.lexicoder.DoubleLexicoder;
-import org.apache.accumulo.core.client.security.tokens.PasswordToken;
-import org.apache.accumulo.core.data.Mutation;
-import org.apache.accumulo.core.data.Value;
 
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVParser;
-import org.apache.commons.csv.CSVRecord;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
 
 public class IndexIngestClient {
 	
 	private static final Logger logger = Logger.getLogger(IndexIngestClient.class.getName());
 	
-	private static final int COUNTRY = 0;
-	private static final int COMMODITY = 1;
-	private static final int YEAR = 2;
-	private static final int UNIT = 3;
-	private static final int QUANTITY = 4;
-	private static final int FOOTNOTES = 5;
-	
 	public static void run(
 			String instanceName, 
 			String zookeepers, 
@@ -49,98 +35,310 @@ public class IndexIngestClient {
 			String table, 
 			String filename) {
 		
+		run(instanceName, zookeepers, username, password, table, filename, EnergyIndex.DEFAULT_SHARDS);
+	}
+	
+	/**
+	 * Like run(), creating the index with the given number of shards if it
+	 * doesn't exist yet; an existing index keeps its layout
+	 */
+	public static void run(
+			String instanceName, 
+			String zookeepers, 
+			String username, 
+			String password, 
+			String table, 
+			String filename,
+			int shards) {
+		
+		run(instanceName, zookeepers, username, password, table, filename, shards, false);
+	}
+	
+	/**
+	 * Like run(), creating the index with the given number of shards if it
+	 * doesn't exist yet, and as a covering index that holds the quantities
+	 * if covering is set; an existing index keeps its layout
+	 */
+	public static void run(
+			String instanceName, 
+			String zookeepers, 
+			String username, 
+			String password, 
+			String table, 
+			String filename,
+			int shards,
+			boolean covering) {
+		
+		run(instanceName, zookeepers, username, password, table, filename, shards, covering, 
+				Collections.<CompositeIndex>emptyList());
+	}
+	
+	/**
+	 * Like run(), also keeping the given composite indexes if the data
+	 * table doesn't exist yet; an existing table keeps the composite
+	 * indexes it was created with
+	 */
+	public static void run(
+			String instanceName, 
+			String zookeepers, 
+			String username, 
+			String password, 
+			String table, 
+			String filename,
+			int shards,
+			boolean covering,
+			List<CompositeIndex> composites) {
+		
 		try {
 			
 			System.out.println("connecting to accumulo ...");
-			Instance inst = new ZooKeeperInstance(instanceName, zookeepers);
-			System.out.println("got instance");
-			Connector conn = inst.getConnector(username, new PasswordToken(password));
+			Connector conn = ConnectionManager.shared().getConnector(instanceName, zookeepers, username, password);
 			System.out.println("got connector");
 			
-			if(!conn.tableOperations().exists(table)) {
-				System.out.println("creating table " + table);
-				conn.tableOperations().create(table);
-			}
+			String indexTable = EnergyIndex.indexTableFor(table);
 			
-			String indexTable = table + "_index";
+			createTablesIfMissing(conn, table, indexTable, filename, new EnergyIndex(shards, covering), composites);
+			EnergyIndex index = EnergyIndex.forTable(conn, table);
 			
-			if(!conn.tableOperations().exists(indexTable)) {
-				System.out.println("creating table " + indexTable);
-				conn.tableOperations().create(indexTable);
+			try (IngestMetrics metrics = new IngestMetrics(table).startLogging(10, TimeUnit.SECONDS)) {
+				
+				MultiTableBatchWriter multiWriter = metrics.meter(new AdaptiveBatchWriterFactory().createMultiTableBatchWriter(conn));
+				
+				BatchWriter writer = multiWriter.getBatchWriter(table);
+				BatchWriter indexWriter = multiWriter.getBatchWriter(indexTable);
+				Map<CompositeIndex, BatchWriter> compositeWriters = compositeWriters(conn, table, multiWriter);
+				
+				System.out.println("writing data from file " + filename + " ...");
+				
+				int written = ParallelIngest.ingestChunks(
+						filename, new IndexedIngest(writer, metrics, indexWriter, index, compositeWriters));
+				
+				multiWriter.close();
+				
+				System.out.println("wrote " + written + " records");
 			}
+		
+		} catch (MutationsRejectedException ex) {
 			
-			BatchWriterConfig config = new BatchWriterConfig();
-			config.setMaxLatency(1, TimeUnit.SECONDS);
-			config.setMaxMemory(10240);
-			config.setDurability(Durability.DEFAULT);
-			config.setMaxWriteThreads(10);
+			//
+		} catch (AccumuloSecurityException | TableNotFoundException | TableExistsException | IOException ex) {
+			logger.log(Level.SEVERE, ex.getLocalizedMessage(), ex);
+		} catch (AccumuloException ex) {
+			Logger.getLogger(IngestClient.class.getName()).log(Level.SEVERE, null, ex);
+		}
+	}	
+	
+	/**
+	 * Loads the same data and index entries as run() by writing sorted
+	 * RFiles for both tables under workDir and importing them
+	 */
+	public static void runBulk(
+			String instanceName, 
+			String zookeepers, 
+			String username, 
+			String password, 
+			String table, 
+			String filename,
+			String workDir) {
+		
+		try {
 			
-			MultiTableBatchWriter multiWriter = conn.createMultiTableBatchWriter(config);
+			System.out.println("connecting to accumulo ...");
+			Connector conn = ConnectionManager.shared().getConnector(instanceName, zookeepers, username, password);
 			
-			BatchWriter writer = multiWriter.getBatchWriter(table);
-			BatchWriter indexWriter = multiWriter.getBatchWriter(indexTable);
+			String indexTable = EnergyIndex.indexTableFor(table);
 			
+			createTablesIfMissing(
+					conn, table, indexTable, filename, new EnergyIndex(EnergyIndex.DEFAULT_SHARDS), 
+					Collections.<CompositeIndex>emptyList());
+			EnergyIndex index = EnergyIndex.forTable(conn, table);
 			
-			DoubleLexicoder doubleLexicoder = new DoubleLexicoder();
-			Value BLANK_VALUE = new Value("".getBytes());
-					
-			int written = 0;
-			File csvData = new File(filename);
+			FileSystem fs = FileSystem.get(new Configuration());
+			BulkIngest.Writer writer = BulkIngest.createWriter(conn, fs, workDir, table, false);
+			BulkIngest.Writer indexWriter = BulkIngest.createWriter(conn, fs, workDir, indexTable, false);
 			
-			System.out.println("parsing file");
-			CSVParser parser = CSVParser.parse(csvData, Charset.defaultCharset(), CSVFormat.EXCEL);
+			Map<CompositeIndex, BulkIngest.Writer> compositeWriters = new LinkedHashMap<>();
+			for(CompositeIndex composite : CompositeIndex.forTable(conn, table)) {
+				compositeWriters.put(composite, BulkIngest.createWriter(conn, fs, workDir, composite.tableFor(table), false));
+			}
 			
-			System.out.println("writing data from file " + filename + " ...");
+			System.out.println("sorting data from file " + filename + " ...");
 			
-			Iterator<CSVRecord> records = parser.getRecords().iterator();
-			records.next(); // skip header
+			int written = ParallelIngest.ingestChunks(
+					filename, new IndexedIngest(writer, null, indexWriter, index, 
+							new LinkedHashMap<CompositeIndex, BatchWriter>(compositeWriters)));
 			
-			while(records.hasNext()) {
-				CSVRecord csvRecord = records.next();
+			System.out.println("importing into " + table + " and " + indexTable + " ...");
+			writer.importInto();
+			indexWriter.importInto();
+			for(BulkIngest.Writer compositeWriter : compositeWriters.values()) {
+				compositeWriter.importInto();
+			}
 			
-				if(csvRecord.size() < 6) {
-					continue;
-				}
+			System.out.println("loaded " + written + " records");
+		
+		} catch (AccumuloException | AccumuloSecurityException | TableNotFoundException | TableExistsException | IOException ex) {
+			logger.log(Level.SEVERE, ex.getLocalizedMessage(), ex);
+		}
+	}
+	
+	/**
+	 * Loads the file like run(), but only writes data cells and index
+	 * entries that are new or changed since the previous load recorded in
+	 * fingerprintFile
+	 */
+	public static void runIncremental(
+			String instanceName, 
+			String zookeepers, 
+			String username, 
+			String password, 
+			String table, 
+			String filename,
+			String fingerprintFile) {
+		
+		try {
+			
+			System.out.println("connecting to accumulo ...");
+			Connector conn = ConnectionManager.shared().getConnector(instanceName, zookeepers, username, password);
+			
+			String indexTable = EnergyIndex.indexTableFor(table);
+			
+			boolean created = createTablesIfMissing(
+					conn, table, indexTable, filename, new EnergyIndex(EnergyIndex.DEFAULT_SHARDS), 
+					Collections.<CompositeIndex>emptyList());
+			EnergyIndex index = EnergyIndex.forTable(conn, table);
+			
+			FingerprintStore fingerprints = FingerprintStore.open(
+					Paths.get(fingerprintFile), FingerprintStore.tablesId(conn, table, indexTable), created);
+			
+			try (IngestMetrics metrics = new IngestMetrics(table).startLogging(10, TimeUnit.SECONDS)) {
 				
-				String energyType = parseEnergyType(csvRecord.get(COMMODITY));
-				Mutation m = new Mutation(csvRecord.get(COUNTRY));
+				MultiTableBatchWriter multiWriter = fingerprints.filter(
+						metrics.meter(new AdaptiveBatchWriterFactory().createMultiTableBatchWriter(conn)));
 				
-				m.put(
-						energyType, 
-						csvRecord.get(YEAR), 
-						new Value(csvRecord.get(QUANTITY).getBytes()));
+				BatchWriter writer = multiWriter.getBatchWriter(table);
+				BatchWriter indexWriter = multiWriter.getBatchWriter(indexTable);
+				Map<CompositeIndex, BatchWriter> compositeWriters = compositeWriters(conn, table, multiWriter);
 				
-				writer.addMutation(m);
+				System.out.println("writing changes from file " + filename + " ...");
 				
-				// write index entry
-				byte[] indexEntry = doubleLexicoder.encode(Double.parseDouble(csvRecord.get(QUANTITY)));
-				Mutation im = new Mutation(indexEntry);
+				int read = ParallelIngest.ingestChunks(
+						filename, new IndexedIngest(writer, metrics, indexWriter, index, compositeWriters));
 				
-				im.put(energyType, csvRecord.get(COUNTRY) + "\t" + csvRecord.get(YEAR), BLANK_VALUE);
-				indexWriter.addMutation(im);
+				multiWriter.close();
+				fingerprints.save();
 				
-				written++;
+				System.out.println("read " + read + " records, wrote " + fingerprints.getWritten() 
+						+ " cells, skipped " + fingerprints.getSkipped() + " unchanged");
 			}
-			
-			multiWriter.close();
-			parser.close();
-			
-			System.out.println("wrote " + written + " records");
 		
 		} catch (MutationsRejectedException ex) {
 			
-			//
-		} catch (AccumuloSecurityException | TableNotFoundException | TableExistsException | IOException ex) {
+			// see Error Handling Example
+			
+		} catch (AccumuloException | AccumuloSecurityException | TableNotFoundException | TableExistsException | IOException ex) {
 			logger.log(Level.SEVERE, ex.getLocalizedMessage(), ex);
-		} catch (AccumuloException ex) {
-			Logger.getLogger(IngestClient.class.getName()).log(Level.SEVERE, null, ex);
 		}
-	}	
-
-	private static String parseEnergyType(String line) {
-		String[] parts = line.split("\\s+");
-		if(parts.length > 3)
-			return parts[3];
-		return line;
+	}
+	
+	/**
+	 * Creates the tables that don't exist yet, a new index laid out as
+	 * layout, and a new data table with the given composite indexes. An
+	 * existing index keeps its layout; see EnergyIndex.forTable().
+	 * 
+	 * @return true if either table was created
+	 */
+	private static boolean createTablesIfMissing(
+			Connector conn, 
+			String table, 
+			String indexTable, 
+			String filename, 
+			EnergyIndex layout, 
+			List<CompositeIndex> composites) 
+			throws AccumuloException, AccumuloSecurityException, TableExistsException, TableNotFoundException, IOException {
+		
+		boolean created = false;
+		
+		if(!conn.tableOperations().exists(table)) {
+			created = true;
+			System.out.println("creating table " + table);
+			conn.tableOperations().create(table);
+			
+			// spread the first writes across tablet servers
+			OptimizationExamples.splitTable(
+					conn, 
+					table, 
+					SplitPlanner.countrySplits(filename, SplitPlanner.defaultSplitCount(conn)));
+			
+			CompositeIndex.configure(conn, table, composites);
+		}
+		
+		if(!conn.tableOperations().exists(indexTable)) {
+			created = true;
+			System.out.println("creating table " + indexTable);
+			conn.tableOperations().create(indexTable);
+			
+			layout.configure(conn, table);
+			
+			OptimizationExamples.splitTable(
+					conn, 
+					indexTable, 
+					SplitPlanner.quantitySplits(filename, layout, SplitPlanner.defaultSplitCount(conn)));
+		}
+		
+		return created;
+	}
+	
+	private static Map<CompositeIndex, BatchWriter> compositeWriters(
+			Connector conn, String table, MultiTableBatchWriter multiWriter) 
+			throws AccumuloException, AccumuloSecurityException, TableNotFoundException {
+		
+		Map<CompositeIndex, BatchWriter> writers = new LinkedHashMap<>();
+		for(CompositeIndex composite : CompositeIndex.forTable(conn, table)) {
+			writers.put(composite, multiWriter.getBatchWriter(composite.tableFor(table)));
+		}
+		return writers;
+	}
+	
+	/**
+	 * Writes the data Mutation and its value and composite index entries
+	 * for each record, straight from the bytes of each chunk
+	 */
+	static class IndexedIngest extends TokenizedIngest {
+		
+		private final BatchWriter indexWriter;
+		private final EnergyIndex index;
+		private final Map<CompositeIndex, BatchWriter> compositeWriters;
+		
+		IndexedIngest(
+				BatchWriter writer, 
+				IngestMetrics metrics,
+				BatchWriter indexWriter, 
+				EnergyIndex index, 
+				Map<CompositeIndex, BatchWriter> compositeWriters) {
+			super(writer, metrics);
+			this.indexWriter = indexWriter;
+			this.index = index;
+			this.compositeWriters = compositeWriters;
+		}
+		
+		@Override
+		protected void written(EnergyRecordTokenizer record) throws MutationsRejectedException {
+			
+			// the index row is worked out from the parsed quantity, so Strings are needed here
+			String country = record.country().toString();
+			String energyType = record.energyType().toString();
+			String year = record.year().toString();
+			String quantity = record.quantity().toString();
+			
+			// write index entry
+			indexWriter.addMutation(index.put(country, energyType, year, quantity));
+			
+			if(!compositeWriters.isEmpty() && CompositeIndex.isIndexable(year, quantity)) {
+				for(Map.Entry<CompositeIndex, BatchWriter> composite : compositeWriters.entrySet()) {
+					composite.getValue().addMutation(composite.getKey().put(country, energyType, year, quantity));
+				}
+			}
+		}
 	}
 }
@@ -0,0 +1,451 @@
+package com.oreilly.accumulotraining;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.accumulo.core.client.AccumuloException;
+import org.apache.accumulo.core.client.AccumuloSecurityException;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.Scanner;
+import org.apache.accumulo.core.client.TableNotFoundException;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.security.Authorizations;
+import org.apache.hadoop.io.Text;
+
+/**
+ * Answers queries over the energy table such as "solar in 2010 between
+ * 100 and 200" with whichever of its indexes reads the fewest entries.
+ *
+ * A query fixes any of country, energyType, year and quantity to a value
+ * and may bound one of them to a range, written for example as
+ *
+ *   energyType=solar year=2010 quantity=100..200
+ *
+ * The planner considers each CompositeIndex of the table, the value index
+ * and the data table itself, whose rows are countries. An index is scored
+ * by how many of the query's predicates it can turn into its scan range:
+ * two for each leading attribute fixed by the query, one more if the next
+ * attribute is the bounded one. The highest score wins, composite indexes
+ * first on a tie, and the data table is the fallback for queries no
+ * index can help with. Predicates the chosen index can't use are checked
+ * on each entry it returns.
+ */
+public class IndexQueryClient {
+
+	private static final Logger logger = Logger.getLogger(IndexQueryClient.class.getName());
+
+	/**
+	 * Equality predicates and at most one range predicate, all of which a
+	 * cell has to match
+	 */
+	public static class Query {
+
+		private final Map<CompositeIndex.Attribute, String> equal = new EnumMap<>(CompositeIndex.Attribute.class);
+		private CompositeIndex.Attribute rangeAttribute = null;
+		private String low = null;
+		private String high = null;
+
+		/**
+		 * Parses space separated predicates, attribute=value or
+		 * attribute=low..high
+		 *
+		 * @param query
+		 * @return
+		 */
+		public static Query parse(String query) {
+			Query q = new Query();
+			for(String predicate : query.trim().split("\\s+")) {
+				String[] parts = predicate.split("=", 2);
+				if(parts.length != 2) {
+					throw new IllegalArgumentException("expected attribute=value: " + predicate);
+				}
+				CompositeIndex.Attribute attribute = CompositeIndex.Attribute.forLabel(parts[0]);
+				int dots = parts[1].indexOf("..");
+				if(dots >= 0) {
+					q.between(attribute, parts[1].substring(0, dots), parts[1].substring(dots + 2));
+				} else {
+					q.where(attribute, parts[1]);
+				}
+			}
+			return q;
+		}
+
+		public Query where(CompositeIndex.Attribute attribute, String value) {
+			equal.put(attribute, value);
+			return this;
+		}
+
+		public Query between(CompositeIndex.Attribute attribute, String low, String high) {
+			if(rangeAttribute != null && rangeAttribute != attribute) {
+				throw new IllegalArgumentException("only one attribute can be bounded");
+			}
+			this.rangeAttribute = attribute;
+			this.low = low;
+			this.high = high;
+			return this;
+		}
+
+		/**
+		 * Whether a cell matches every predicate
+		 */
+		boolean matches(String country, String energyType, String year, String quantity) {
+			for(Entry<CompositeIndex.Attribute, String> predicate : equal.entrySet()) {
+				if(compare(predicate.getKey(), valueOf(predicate.getKey(), country, energyType, year, quantity), predicate.getValue()) != 0) {
+					return false;
+				}
+			}
+			if(rangeAttribute != null) {
+				String value = valueOf(rangeAttribute, country, energyType, year, quantity);
+				return compare(rangeAttribute, value, low) >= 0 && compare(rangeAttribute, value, high) <= 0;
+			}
+			return true;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder s = new StringBuilder();
+			for(Entry<CompositeIndex.Attribute, String> predicate : equal.entrySet()) {
+				s.append(predicate.getKey().getLabel()).append('=').append(predicate.getValue()).append(' ');
+			}
+			if(rangeAttribute != null) {
+				s.append(rangeAttribute.getLabel()).append('=').append(low).append("..").append(high);
+			}
+			return s.toString().trim();
+		}
+
+		private static String valueOf(CompositeIndex.Attribute attribute, String country, String energyType, String year, String quantity) {
+			switch(attribute) {
+				case COUNTRY:
+					return country;
+				case ENERGY_TYPE:
+					return energyType;
+				case YEAR:
+					return year;
+				default:
+					return quantity;
+			}
+		}
+
+		/**
+		 * Compares numbers as numbers, like the lexicoders order them
+		 */
+		private static int compare(CompositeIndex.Attribute attribute, String value, String bound) {
+			try {
+				switch(attribute) {
+					case YEAR:
+						return Long.compare(Long.parseLong(value), Long.parseLong(bound));
+					case QUANTITY:
+						return Double.compare(Double.parseDouble(value), Double.parseDouble(bound));
+					default:
+						return value.compareTo(bound);
+				}
+			} catch (NumberFormatException ex) {
+				// not a number never matches
+				return 1;
+			}
+		}
+	}
+
+	/**
+	 * What a plan found, and how many entries it read to find it
+	 */
+	public static class Result {
+
+		final List<Entry<Key, Value>> cells = new ArrayList<>();
+		long entriesRead = 0;
+		long nanos = 0;
+
+		public List<Entry<Key, Value>> getCells() {
+			return cells;
+		}
+
+		public long getEntriesRead() {
+			return entriesRead;
+		}
+
+		public long getNanos() {
+			return nanos;
+		}
+
+		void add(Key cell, Value quantity, Query query) {
+			String country = cell.getRow().toString();
+			String energyType = cell.getColumnFamily().toString();
+			String year = cell.getColumnQualifier().toString();
+			if(query.matches(country, energyType, year, quantity.toString())) {
+				cells.add(new AbstractMap.SimpleImmutableEntry<>(cell, quantity));
+			}
+		}
+	}
+
+	/**
+	 * One way of answering a query
+	 */
+	public abstract static class Plan {
+
+		final int score;
+
+		Plan(int score) {
+			this.score = score;
+		}
+
+		public int getScore() {
+			return score;
+		}
+
+		public Result execute(Connector conn, String table, Query query) throws AccumuloException, TableNotFoundException {
+			Result result = new Result();
+			long start = System.nanoTime();
+			scan(conn, table, query, result);
+			result.nanos = System.nanoTime() - start;
+			return result;
+		}
+
+		abstract void scan(Connector conn, String table, Query query, Result result)
+				throws AccumuloException, TableNotFoundException;
+	}
+
+	/**
+	 * Scans a composite index for the query's leading equalities and range
+	 */
+	static class CompositePlan extends Plan {
+
+		private final CompositeIndex index;
+		private final List<String> equal;
+		private final boolean bounded;
+
+		CompositePlan(CompositeIndex index, List<String> equal, boolean bounded) {
+			super(2 * equal.size() + (bounded ? 1 : 0));
+			this.index = index;
+			this.equal = equal;
+			this.bounded = bounded;
+		}
+
+		static CompositePlan forQuery(CompositeIndex index, Query query) {
+			List<String> equal = new ArrayList<>();
+			for(CompositeIndex.Attribute attribute : index.getAttributes()) {
+				String value = query.equal.get(attribute);
+				if(value == null) {
+					break;
+				}
+				equal.add(value);
+			}
+			boolean bounded = equal.size() < index.getAttributes().size()
+					&& index.getAttributes().get(equal.size()) == query.rangeAttribute;
+			return new CompositePlan(index, equal, bounded);
+		}
+
+		@Override
+		void scan(Connector conn, String table, Query query, Result result) throws TableNotFoundException {
+			Scanner scanner = conn.createScanner(index.tableFor(table), Authorizations.EMPTY);
+			scanner.setRange(bounded
+					? index.range(equal, query.low, query.high)
+					: index.range(equal, null, null));
+
+			for(Entry<Key, Value> e : scanner) {
+				result.entriesRead++;
+				result.add(EnergyIndex.mainKey(e.getKey()), e.getValue(), query);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "composite index " + index;
+		}
+	}
+
+	/**
+	 * Looks up a quantity range in the value index
+	 */
+	static class ValueIndexPlan extends Plan {
+
+		ValueIndexPlan() {
+			super(1);
+		}
+
+		@Override
+		void scan(Connector conn, String table, Query query, Result result)
+				throws AccumuloException, TableNotFoundException {
+
+			try (StreamingIndexLookup lookup = new StreamingIndexLookup(
+					conn,
+					table,
+					Authorizations.EMPTY,
+					Double.parseDouble(query.low),
+					Double.parseDouble(query.high),
+					true,
+					StreamingIndexLookup.DEFAULT_MAX_BATCH,
+					StreamingIndexLookup.DEFAULT_MAX_BATCH)) {
+
+				while(lookup.hasNext()) {
+					Entry<Key, Value> e = lookup.next();
+					result.add(e.getKey(), e.getValue(), query);
+				}
+				result.entriesRead += lookup.getIndexEntriesRead() + lookup.getDataLookups();
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "value index";
+		}
+	}
+
+	/**
+	 * Reads the data table, one country's row if the query names it
+	 */
+	static class DataTablePlan extends Plan {
+
+		private final String country;
+
+		DataTablePlan(String country) {
+			super(country == null ? 0 : 2);
+			this.country = country;
+		}
+
+		@Override
+		void scan(Connector conn, String table, Query query, Result result) throws TableNotFoundException {
+			Scanner scanner = conn.createScanner(table, Authorizations.EMPTY);
+			if(country != null) {
+				scanner.setRange(Range.exact(country));
+			}
+			String energyType = query.equal.get(CompositeIndex.Attribute.ENERGY_TYPE);
+			if(energyType != null) {
+				scanner.fetchColumnFamily(new Text(energyType));
+			}
+
+			for(Entry<Key, Value> e : scanner) {
+				result.entriesRead++;
+				Key k = e.getKey();
+				result.add(new Key(k.getRow(), k.getColumnFamily(), k.getColumnQualifier()), e.getValue(), query);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return country == null ? "data table scan" : "data table row";
+		}
+	}
+
+	/**
+	 * Every plan that can answer query on table, the one the planner picks
+	 * first
+	 *
+	 * @param conn
+	 * @param table
+	 * @param query
+	 * @return
+	 * @throws AccumuloException
+	 * @throws TableNotFoundException
+	 */
+	public static List<Plan> plans(Connector conn, String table, Query query)
+			throws AccumuloException, TableNotFoundException {
+
+		List<Plan> plans = new ArrayList<>();
+
+		for(CompositeIndex composite : CompositeIndex.forTable(conn, table)) {
+			CompositePlan plan = CompositePlan.forQuery(composite, query);
+			if(plan.getScore() > 0) {
+				plans.add(plan);
+			}
+		}
+
+		if(query.rangeAttribute == CompositeIndex.Attribute.QUANTITY
+				&& conn.tableOperations().exists(EnergyIndex.indexTableFor(table))) {
+			plans.add(new ValueIndexPlan());
+		}
+
+		plans.add(new DataTablePlan(query.equal.get(CompositeIndex.Attribute.COUNTRY)));
+
+		// stable, so composite indexes stay ahead on a tie
+		Collections.sort(plans, new Comparator<Plan>() {
+
+			@Override
+			public int compare(Plan a, Plan b) {
+				return Integer.compare(b.getScore(), a.getScore());
+			}
+		});
+
+		return plans;
+	}
+
+	/**
+	 * Prints the cells matching query, found with the best plan
+	 */
+	public static void run(
+			String instanceName,
+			String zookeepers,
+			String username,
+			String password,
+			String table,
+			String query) {
+
+		try {
+			Connector conn = ConnectionManager.shared().getConnector(instanceName, zookeepers, username, password);
+
+			Query q = Query.parse(query);
+			Plan plan = plans(conn, table, q).get(0);
+
+			Result result = plan.execute(conn, table, q);
+
+			for(Entry<Key, Value> e : result.getCells()) {
+				Key k = e.getKey();
+				System.out.println(
+						k.getRow().toString() + " " +
+						k.getColumnFamily().toString() + " " +
+						k.getColumnQualifier().toString() + "\t" +
+						e.getValue().toString());
+			}
+
+			logger.log(Level.INFO, "{0}: {1} results from {2}, read {3} entries in {4} ms",
+					new Object[] {q, result.getCells().size(), plan, result.getEntriesRead(), result.getNanos() / 1000000});
+
+		} catch (AccumuloException | AccumuloSecurityException | TableNotFoundException ex) {
+			logger.log(Level.SEVERE, ex.getLocalizedMessage(), ex);
+		}
+	}
+
+	/**
+	 * Answers query with every plan that can, printing how many entries
+	 * each read and how long it took
+	 */
+	public static void compare(
+			String instanceName,
+			String zookeepers,
+			String username,
+			String password,
+			String table,
+			String query) {
+
+		try {
+			Connector conn = ConnectionManager.shared().getConnector(instanceName, zookeepers, username, password);
+
+			Query q = Query.parse(query);
+
+			System.out.println(q);
+			System.out.println("plan\tscore\tresults\tentries read\tms");
+
+			for(Plan plan : plans(conn, table, q)) {
+				Result result = plan.execute(conn, table, q);
+				System.out.println(
+						plan + "\t" +
+						plan.getScore() + "\t" +
+						result.getCells().size() + "\t" +
+						result.getEntriesRead() + "\t" +
+						String.format("%.1f", result.getNanos() / 1e6));
+			}
+
+		} catch (AccumuloException | AccumuloSecurityException | TableNotFoundException ex) {
+			logger.log(Level.SEVERE, ex.getLocalizedMessage(), ex);
+		}
+	}
+}
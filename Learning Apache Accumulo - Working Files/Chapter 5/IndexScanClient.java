@@ -4,8 +4,14 @@ import com.google.common.base.Function;
 import static com.google.common.collect.Iterables.limit;
 import static com.google.common.collect.Iterables.transform;
 import static com.google.common.collect.Lists.newArrayList;
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -13,21 +19,19 @@ import org.apache.accumulo.core.client.AccumuloException;
 import org.apache.accumulo.core.client.AccumuloSecurityException;
 import org.apache.accumulo.core.client.BatchScanner;
 import org.apache.accumulo.core.client.Connector;
-import org.apache.accumulo.core.client.Instance;
-import org.apache.accumulo.core.client.Scanner;
+import org.apache.accumulo.core.client.IteratorSetting;
 import org.apache.accumulo.core.client.TableNotFoundException;
-import org.apache.accumulo.core.client.ZooKeeperInstance;
-import org.apache.accumulo.core.client.lexicoder.DoubleLexicoder;
-import org.apache.accumulo.core.client.security.tokens.PasswordToken;
 import org.apache.accumulo.core.data.Key;
 import org.apache.accumulo.core.data.Range;
 import org.apache.accumulo.core.data.Value;
 import org.apache.accumulo.core.security.Authorizations;
-import org.apache.hadoop.io.Text;
 
 public class IndexScanClient {
 
 	private static final Logger logger = Logger.getLogger(IndexScanClient.class.getName());
+	
+	private static final int QUERY_THREADS = 10;
+	private static final int TOP_K_PRIORITY = 50;
 
 	public static void run(
 			String instanceName,
@@ -39,28 +43,14 @@ public class IndexScanClient {
 			String endValue) {
 
 		try {
-			Instance inst = new ZooKeeperInstance(instanceName, zookeepers);
-			Connector conn = inst.getConnector(username, new PasswordToken(password));
+			Connector conn = ConnectionManager.shared().getConnector(instanceName, zookeepers, username, password);
 
 			// scan index table first
-			Scanner scanner = conn.createScanner(table + "_index", Authorizations.EMPTY);
-			
-			DoubleLexicoder doubleLexicoder = new DoubleLexicoder();
-			
-			Range range = new Range(
-					new Text(doubleLexicoder.encode(Double.parseDouble(startValue))), 
-					new Text(doubleLexicoder.encode(Double.parseDouble(endValue))));
-			
-			
-			scanner.setRange(range);
-			
-			// get identifying keys for main table key-value pairs
-			ArrayList<Range> results = newArrayList(
-					transform(
-							transform(
-									scanner,
-									MAIN_KEY_FOR_INDEX_ENTRY),
-							EXACT_RANGE_FOR_KEY));
+			ArrayList<Range> results = lookup(
+					conn, 
+					table, 
+					Double.parseDouble(startValue), 
+					Double.parseDouble(endValue));
 			
 			if(results.isEmpty()) {
 				System.out.println("no results");
@@ -69,7 +59,7 @@ public class IndexScanClient {
 			
 			System.out.println("Got " + results.size() + " results\nFirst 20 results:\n");
 			
-			BatchScanner batchScanner = conn.createBatchScanner(table, Authorizations.EMPTY, 10);
+			BatchScanner batchScanner = conn.createBatchScanner(table, Authorizations.EMPTY, QUERY_THREADS);
 			
 			batchScanner.setRanges(results);
 			
@@ -88,14 +78,239 @@ public class IndexScanClient {
 		}
 	}
 	
+	/**
+	 * Prints the first limit data cells whose quantity is from startValue
+	 * to endValue, reading only as much of the index as it takes to find
+	 * them rather than all of it
+	 */
+	public static void runStreaming(
+			String instanceName,
+			String zookeepers,
+			String username,
+			String password,
+			String table,
+			String startValue,
+			String endValue,
+			int limit) {
+		
+		runStreaming(instanceName, zookeepers, username, password, table, startValue, endValue, limit, true);
+	}
+	
+	/**
+	 * Like runStreaming(), leaving out the quantities unless values is set.
+	 * Keys alone, and quantities from a covering index, come from the index
+	 * without reading the data table.
+	 */
+	public static void runStreaming(
+			String instanceName,
+			String zookeepers,
+			String username,
+			String password,
+			String table,
+			String startValue,
+			String endValue,
+			int limit,
+			boolean values) {
+
+		try {
+			Connector conn = ConnectionManager.shared().getConnector(instanceName, zookeepers, username, password);
+
+			try (StreamingIndexLookup lookup = new StreamingIndexLookup(
+					conn, 
+					table, 
+					Authorizations.EMPTY, 
+					Double.parseDouble(startValue), 
+					Double.parseDouble(endValue), 
+					values, 
+					limit, 
+					StreamingIndexLookup.DEFAULT_MAX_BATCH)) {
+				
+				int printed = 0;
+				while(printed < limit && lookup.hasNext()) {
+					Entry<Key, Value> result = lookup.next();
+					Key k = result.getKey();
+					System.out.println(
+							k.getRow().toString() + " " +
+							k.getColumnFamily().toString() + " " +
+							k.getColumnQualifier().toString() + 
+							(values ? "\t" + new String(result.getValue().get()) : ""));
+					printed++;
+				}
+				
+				if(printed == 0) {
+					System.out.println("no results");
+				}
+				
+				logger.log(Level.INFO, "read {0} index entries in {1} batches and {2} data cells for {3} results", 
+						new Object[] {lookup.getIndexEntriesRead(), lookup.getBatches(), lookup.getDataLookups(), printed});
+			}
+			
+		} catch (AccumuloException | AccumuloSecurityException | TableNotFoundException ex) {
+			logger.log(Level.SEVERE, ex.getLocalizedMessage(), ex);
+		}
+	}
+	
+	/**
+	 * Prints the k data cells with the highest quantities from startValue
+	 * to endValue, or the lowest unless highest is set. The tablet servers
+	 * pick the candidates, so only k index entries per shard are read back.
+	 */
+	public static void runTopK(
+			String instanceName,
+			String zookeepers,
+			String username,
+			String password,
+			String table,
+			String startValue,
+			String endValue,
+			int k,
+			boolean highest) {
+
+		try {
+			Connector conn = ConnectionManager.shared().getConnector(instanceName, zookeepers, username, password);
+
+			EnergyIndex index = EnergyIndex.forTable(conn, table);
+			
+			long start = System.nanoTime();
+			List<Entry<Key, Value>> results = topK(
+					conn, 
+					table, 
+					Double.parseDouble(startValue), 
+					Double.parseDouble(endValue), 
+					k, 
+					highest);
+			
+			if(results.isEmpty()) {
+				System.out.println("no results");
+				return;
+			}
+			
+			for(Entry<Key, Value> result : results) {
+				Key cell = EnergyIndex.mainKey(result.getKey());
+				System.out.println(
+						cell.getRow().toString() + " " +
+						cell.getColumnFamily().toString() + " " +
+						cell.getColumnQualifier().toString() + "\t" +
+						(EnergyIndex.isCovered(result.getValue()) 
+								? new String(result.getValue().get()) 
+								: Double.toString(index.quantity(result.getKey()))));
+			}
+			
+			logger.log(Level.INFO, "{0} results in {1} ms", 
+					new Object[] {results.size(), (System.nanoTime() - start) / 1000000});
+			
+		} catch (AccumuloException | AccumuloSecurityException | TableNotFoundException ex) {
+			logger.log(Level.SEVERE, ex.getLocalizedMessage(), ex);
+		}
+	}
+	
+	/**
+	 * Finds the index entries for the k data cells with the highest, or
+	 * lowest, quantities from start to end inclusive. TopKIndexIterator
+	 * keeps k entries of each shard's range on the tablet servers and this
+	 * merges them, keeping one entry per data cell.
+	 * 
+	 * @param conn
+	 * @param table the data table
+	 * @param start
+	 * @param end
+	 * @param k
+	 * @param highest
+	 * @return index entries, best first
+	 * @throws AccumuloException
+	 * @throws TableNotFoundException
+	 */
+	static List<Entry<Key, Value>> topK(Connector conn, String table, double start, double end, int k, boolean highest) 
+			throws AccumuloException, TableNotFoundException {
+		
+		EnergyIndex index = EnergyIndex.forTable(conn, table);
+		
+		IteratorSetting setting = new IteratorSetting(TOP_K_PRIORITY, "topk", TopKIndexIterator.class);
+		TopKIndexIterator.setK(setting, k);
+		TopKIndexIterator.setHighest(setting, highest);
+		TopKIndexIterator.setPrefixLength(setting, index.getPrefixLength());
+		TopKIndexIterator.setQuantityRange(setting, start, end);
+		
+		final Comparator<Key> ranking = TopKIndexIterator.ranking(index.getPrefixLength(), highest);
+		List<Entry<Key, Value>> candidates = new ArrayList<>();
+		
+		BatchScanner indexScanner = conn.createBatchScanner(
+				EnergyIndex.indexTableFor(table), Authorizations.EMPTY, QUERY_THREADS);
+		try {
+			indexScanner.setRanges(index.ranges(start, end));
+			indexScanner.addScanIterator(setting);
+			
+			for(Entry<Key, Value> e : indexScanner) {
+				candidates.add(new AbstractMap.SimpleImmutableEntry<>(e.getKey(), e.getValue()));
+			}
+		} finally {
+			indexScanner.close();
+		}
+		
+		Collections.sort(candidates, new Comparator<Entry<Key, Value>>() {
+
+			@Override
+			public int compare(Entry<Key, Value> a, Entry<Key, Value> b) {
+				return ranking.compare(a.getKey(), b.getKey());
+			}
+		});
+		
+		// a cell filed under several quantities counts once, at its best
+		List<Entry<Key, Value>> results = new ArrayList<>();
+		Set<Key> cells = new HashSet<>();
+		for(Entry<Key, Value> candidate : candidates) {
+			if(results.size() == k) {
+				break;
+			}
+			if(cells.add(EnergyIndex.mainKey(candidate.getKey()))) {
+				results.add(candidate);
+			}
+		}
+		
+		logger.log(Level.FINE, "merged {0} candidates from the tablet servers into {1} results", 
+				new Object[] {candidates.size(), results.size()});
+		return results;
+	}
+	
+	/**
+	 * Finds the data cells whose quantity is from start to end inclusive,
+	 * scanning every shard of the index in parallel
+	 * 
+	 * @param conn
+	 * @param table the data table
+	 * @param start
+	 * @param end
+	 * @return an exact range for each cell
+	 * @throws AccumuloException
+	 * @throws TableNotFoundException
+	 */
+	static ArrayList<Range> lookup(Connector conn, String table, double start, double end) 
+			throws AccumuloException, TableNotFoundException {
+		
+		EnergyIndex index = EnergyIndex.forTable(conn, table);
+		
+		BatchScanner indexScanner = conn.createBatchScanner(
+				EnergyIndex.indexTableFor(table), Authorizations.EMPTY, QUERY_THREADS);
+		try {
+			indexScanner.setRanges(index.ranges(start, end));
+			
+			// get identifying keys for main table key-value pairs
+			return newArrayList(
+					transform(
+							transform(
+									indexScanner,
+									MAIN_KEY_FOR_INDEX_ENTRY),
+							EXACT_RANGE_FOR_KEY));
+		} finally {
+			indexScanner.close();
+		}
+	}
+	
 	public static class MainKeyForIndexEntry implements Function<Entry<Key, Value>, Key> {
 
 		@Override
 		public Key apply(Entry<Key, Value> e) {
-			Key k = e.getKey();
-			String[] parts = k.getColumnQualifier().toString().split("\t");
-			
-			return new Key(new Text(parts[0]), k.getColumnFamily(), new Text(parts[1]));
+			return EnergyIndex.mainKey(e.getKey());
 		}		
 	}
 	
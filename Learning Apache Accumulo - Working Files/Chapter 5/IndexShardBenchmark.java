@@ -0,0 +1,153 @@
+package com.oreilly.accumulotraining;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.accumulo.core.client.AccumuloException;
+import org.apache.accumulo.core.client.AccumuloSecurityException;
+import org.apache.accumulo.core.client.BatchScanner;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.MutationsRejectedException;
+import org.apache.accumulo.core.client.TableNotFoundException;
+import org.apache.accumulo.core.client.ZooKeeperInstance;
+import org.apache.accumulo.core.client.security.tokens.PasswordToken;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.security.Authorizations;
+import org.apache.commons.csv.CSVRecord;
+
+/**
+ * Loads the same file with IndexIngestClient into a fresh table for each
+ * shard count, then runs the same quantity range queries against each
+ * through IndexScanClient, reporting load and query throughput.
+ *
+ * Query bands are picked at random between sampled quantities, with a
+ * fixed seed so every shard count answers the same queries. The results
+ * column is the total number of cells found and the checksum doesn't
+ * depend on the order they came back in, so both must be the same on
+ * every line; shard count 0 is the unsharded layout.
+ *
+ * Tables are named shardbench + shard count and are dropped first if they
+ * exist.
+ *
+ * usage: IndexShardBenchmark instance zookeepers user password input [shards,...] [queries]
+ */
+public class IndexShardBenchmark {
+
+	private static final int QUANTITY = 4;
+	private static final int QUERY_THREADS = 10;
+
+	public static void main(String[] args) throws Exception {
+
+		String instanceName = args[0];
+		String zookeepers = args[1];
+		String username = args[2];
+		String password = args[3];
+		String input = args[4];
+		String[] shardCounts = (args.length > 5 ? args[5] : "0,4,16,64").split(",");
+		int queries = args.length > 6 ? Integer.parseInt(args[6]) : 200;
+
+		Connector conn = new ZooKeeperInstance(instanceName, zookeepers)
+				.getConnector(username, new PasswordToken(password));
+
+		int records = countRecords(input);
+		List<double[]> bands = queryBands(input, queries);
+
+		System.out.println("shards\trecords/s\tqueries/s\tresults\tchecksum");
+
+		for(String shardCount : shardCounts) {
+
+			int shards = Integer.parseInt(shardCount.trim());
+			String table = "shardbench" + shards;
+			dropIfExists(conn, table);
+			dropIfExists(conn, EnergyIndex.indexTableFor(table));
+
+			long start = System.nanoTime();
+			IndexIngestClient.run(instanceName, zookeepers, username, password, table, input, shards);
+			double loadSeconds = (System.nanoTime() - start) / 1e9;
+
+			long results = 0;
+			long checksum = 0;
+
+			start = System.nanoTime();
+			for(double[] band : bands) {
+				ArrayList<Range> cells = IndexScanClient.lookup(conn, table, band[0], band[1]);
+				if(cells.isEmpty()) {
+					continue;
+				}
+
+				BatchScanner scanner = conn.createBatchScanner(table, Authorizations.EMPTY, QUERY_THREADS);
+				try {
+					scanner.setRanges(cells);
+					for(Map.Entry<Key, Value> e : scanner) {
+						Key k = e.getKey();
+						results++;
+						checksum += (k.getRow() + " " + k.getColumnFamily() + " " + k.getColumnQualifier()).hashCode();
+					}
+				} finally {
+					scanner.close();
+				}
+			}
+			double querySeconds = (System.nanoTime() - start) / 1e9;
+
+			System.out.println(
+					shards + "\t" +
+					String.format("%.0f", records / loadSeconds) + "\t" +
+					String.format("%.1f", bands.size() / querySeconds) + "\t" +
+					results + "\t" +
+					Long.toHexString(checksum));
+		}
+	}
+
+	private static int countRecords(String input) throws IOException, MutationsRejectedException {
+		return ParallelIngest.ingest(input, new CsvIngest.RecordHandlerFactory() {
+
+			@Override
+			public CsvIngest.RecordHandler newHandler() {
+				return new CsvIngest.RecordHandler() {
+
+					@Override
+					public void handle(CSVRecord record) {
+					}
+
+					@Override
+					public void finish() {
+					}
+				};
+			}
+		});
+	}
+
+	private static List<double[]> queryBands(String input, int queries) throws IOException {
+
+		List<Double> quantities = new ArrayList<>();
+		for(CSVRecord record : SplitPlanner.sample(input, SplitPlanner.DEFAULT_SAMPLES)) {
+			if(EnergyIndex.isIndexable(record.get(QUANTITY))) {
+				quantities.add(Double.parseDouble(record.get(QUANTITY)));
+			}
+		}
+		Collections.sort(quantities);
+
+		Random random = new Random(42);
+		List<double[]> bands = new ArrayList<>();
+		for(int i = 0; i < queries && !quantities.isEmpty(); i++) {
+			// narrow bands, around 1% of the sampled values each
+			int from = random.nextInt(quantities.size());
+			int to = Math.min(quantities.size() - 1, from + Math.max(1, quantities.size() / 100));
+			bands.add(new double[] {quantities.get(from), quantities.get(to)});
+		}
+		return bands;
+	}
+
+	private static void dropIfExists(Connector conn, String table)
+			throws AccumuloException, AccumuloSecurityException, TableNotFoundException {
+		if(conn.tableOperations().exists(table)) {
+			conn.tableOperations().delete(table);
+		}
+	}
+}
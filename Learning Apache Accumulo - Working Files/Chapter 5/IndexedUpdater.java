@@ -0,0 +1,280 @@
+package com.oreilly.accumulotraining;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.accumulo.core.client.AccumuloException;
+import org.apache.accumulo.core.client.AccumuloSecurityException;
+import org.apache.accumulo.core.client.BatchScanner;
+import org.apache.accumulo.core.client.BatchWriter;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.MultiTableBatchWriter;
+import org.apache.accumulo.core.client.MutationsRejectedException;
+import org.apache.accumulo.core.client.TableNotFoundException;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.security.Authorizations;
+import org.apache.hadoop.io.Text;
+
+/**
+ * Updates and deletes cells of an indexed energy table while keeping its
+ * EnergyIndex and CompositeIndex entries in step, so the indexes never
+ * need rebuilding.
+ *
+ * Changes are collected and applied in batches. Applying a batch looks up
+ * the current value of every changed cell with one BatchScanner, then
+ * sends the data change, the deletes of the stale index entries and the
+ * new index entries through the same MultiTableBatchWriter and flushes
+ * it, so the next batch reads the values this one wrote. Several changes
+ * to one cell within a batch only write the last of them.
+ *
+ * A cell whose quantity doesn't change keeps its index entry: a put and a
+ * delete of the same entry sent together get the same timestamp, and the
+ * delete would win. A covering entry whose quantity is only written
+ * differently is overwritten in place.
+ *
+ * Reading the old value and writing the new one is not atomic, so cells
+ * should only be changed by one updater at a time. Not thread safe.
+ */
+public class IndexedUpdater implements AutoCloseable {
+
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+
+	private static final int QUERY_THREADS = 10;
+
+	private final Connector conn;
+	private final String table;
+	private final MultiTableBatchWriter multiWriter;
+	private final BatchWriter writer;
+	private final BatchWriter indexWriter;
+	private final Authorizations auths;
+	private final EnergyIndex index;
+	private final Map<CompositeIndex, BatchWriter> compositeWriters = new LinkedHashMap<>();
+
+	private int batchSize = DEFAULT_BATCH_SIZE;
+
+	// cell -> new quantity, or null to delete it
+	private final Map<Key, String> pending = new LinkedHashMap<>();
+
+	private long updated = 0;
+	private long deleted = 0;
+	private long indexEntriesMoved = 0;
+
+	/**
+	 *
+	 * @param conn
+	 * @param table the data table; its index table must exist as well
+	 * @param multiWriter
+	 * @throws AccumuloException
+	 * @throws AccumuloSecurityException
+	 * @throws TableNotFoundException
+	 */
+	public IndexedUpdater(Connector conn, String table, MultiTableBatchWriter multiWriter)
+			throws AccumuloException, AccumuloSecurityException, TableNotFoundException {
+
+		this.conn = conn;
+		this.table = table;
+		this.multiWriter = multiWriter;
+		this.writer = multiWriter.getBatchWriter(table);
+		this.indexWriter = multiWriter.getBatchWriter(EnergyIndex.indexTableFor(table));
+		this.index = EnergyIndex.forTable(conn, table);
+
+		for(CompositeIndex composite : CompositeIndex.forTable(conn, table)) {
+			compositeWriters.put(composite, multiWriter.getBatchWriter(composite.tableFor(table)));
+		}
+
+		// read old values with everything the user can see, so no stale entry is missed
+		this.auths = conn.securityOperations().getUserAuthorizations(conn.whoami());
+	}
+
+	public IndexedUpdater setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+		return this;
+	}
+
+	/**
+	 * Sets a cell to a new quantity
+	 *
+	 * @param country
+	 * @param energyType
+	 * @param year
+	 * @param quantity
+	 * @throws MutationsRejectedException
+	 * @throws TableNotFoundException
+	 */
+	public void update(String country, String energyType, String year, String quantity)
+			throws MutationsRejectedException, TableNotFoundException {
+		change(country, energyType, year, quantity);
+	}
+
+	/**
+	 * Deletes a cell and its index entry
+	 *
+	 * @param country
+	 * @param energyType
+	 * @param year
+	 * @throws MutationsRejectedException
+	 * @throws TableNotFoundException
+	 */
+	public void delete(String country, String energyType, String year)
+			throws MutationsRejectedException, TableNotFoundException {
+		change(country, energyType, year, null);
+	}
+
+	/**
+	 * Applies the pending changes and flushes them to both tables
+	 *
+	 * @throws MutationsRejectedException
+	 * @throws TableNotFoundException
+	 */
+	public void flush() throws MutationsRejectedException, TableNotFoundException {
+		apply();
+	}
+
+	@Override
+	public void close() throws MutationsRejectedException, TableNotFoundException {
+		apply();
+		multiWriter.close();
+	}
+
+	public long getUpdated() {
+		return updated;
+	}
+
+	public long getDeleted() {
+		return deleted;
+	}
+
+	public long getIndexEntriesMoved() {
+		return indexEntriesMoved;
+	}
+
+	private void change(String country, String energyType, String year, String quantity)
+			throws MutationsRejectedException, TableNotFoundException {
+
+		Key cell = new Key(country, energyType, year);
+
+		// keep the order of first change, but only the last value
+		pending.remove(cell);
+		pending.put(cell, quantity);
+
+		if(pending.size() >= batchSize) {
+			apply();
+		}
+	}
+
+	private void apply() throws MutationsRejectedException, TableNotFoundException {
+
+		if(pending.isEmpty()) {
+			return;
+		}
+
+		Map<Key, String> old = currentValues(pending.keySet());
+
+		Map<Text, Mutation> dataMutations = new LinkedHashMap<>();
+
+		for(Map.Entry<Key, String> change : pending.entrySet()) {
+
+			Key cell = change.getKey();
+			String country = cell.getRow().toString();
+			String energyType = cell.getColumnFamily().toString();
+			String year = cell.getColumnQualifier().toString();
+			String quantity = change.getValue();
+			String oldQuantity = old.get(cell);
+
+			Mutation m = dataMutations.get(cell.getRow());
+			if(m == null) {
+				m = new Mutation(cell.getRow());
+				dataMutations.put(cell.getRow(), m);
+			}
+
+			if(quantity == null) {
+				m.putDelete(energyType, year);
+				deleted++;
+			} else {
+				m.put(energyType, year, new Value(quantity.getBytes()));
+				updated++;
+			}
+
+			boolean moved = !sameIndexEntry(country, oldQuantity, quantity);
+			// covering entries still have to hold the quantity as written, say 5.0 rather than 5
+			boolean rewritten = !moved && quantity != null && !quantity.equals(oldQuantity);
+
+			if(moved) {
+				if(EnergyIndex.isIndexable(oldQuantity)) {
+					indexWriter.addMutation(index.delete(country, energyType, year, oldQuantity));
+				}
+				if(EnergyIndex.isIndexable(quantity)) {
+					indexWriter.addMutation(index.put(country, energyType, year, quantity));
+				}
+				indexEntriesMoved++;
+			} else if(rewritten && index.isCovering()) {
+				indexWriter.addMutation(index.put(country, energyType, year, quantity));
+			}
+
+			for(Map.Entry<CompositeIndex, BatchWriter> composite : compositeWriters.entrySet()) {
+				if(moved && CompositeIndex.isIndexable(year, oldQuantity)) {
+					composite.getValue().addMutation(composite.getKey().delete(country, energyType, year, oldQuantity));
+				}
+				if((moved || rewritten) && CompositeIndex.isIndexable(year, quantity)) {
+					composite.getValue().addMutation(composite.getKey().put(country, energyType, year, quantity));
+				}
+			}
+		}
+
+		writer.addMutations(dataMutations.values());
+		pending.clear();
+
+		// a later batch changing the same cells must see these values, or
+		// it would delete the index entries of the ones before them
+		multiWriter.flush();
+	}
+
+	/**
+	 * Looks up the current quantity of each cell, leaving out cells that
+	 * don't exist
+	 */
+	private Map<Key, String> currentValues(Iterable<Key> cells) throws TableNotFoundException {
+
+		List<Range> ranges = new ArrayList<>();
+		for(Key cell : cells) {
+			ranges.add(Range.exact(cell.getRow(), cell.getColumnFamily(), cell.getColumnQualifier()));
+		}
+
+		Map<Key, String> values = new HashMap<>();
+
+		BatchScanner scanner = conn.createBatchScanner(table, auths, QUERY_THREADS);
+		try {
+			scanner.setRanges(ranges);
+			for(Map.Entry<Key, Value> e : scanner) {
+				Key k = e.getKey();
+				values.put(
+						new Key(k.getRow(), k.getColumnFamily(), k.getColumnQualifier()),
+						e.getValue().toString());
+			}
+		} finally {
+			scanner.close();
+		}
+
+		return values;
+	}
+
+	private boolean sameIndexEntry(String country, String oldQuantity, String quantity) {
+		boolean wasIndexed = EnergyIndex.isIndexable(oldQuantity);
+		boolean isIndexed = EnergyIndex.isIndexable(quantity);
+
+		if(!wasIndexed || !isIndexed) {
+			return wasIndexed == isIndexed;
+		}
+		// compare what is stored, as 0.0 and -0.0 are equal but encode differently
+		return Arrays.equals(
+				index.indexRow(country, Double.parseDouble(oldQuantity)),
+				index.indexRow(country, Double.parseDouble(quantity)));
+	}
+}
@@ -0,0 +1,423 @@
+package com.oreilly.accumulotraining;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.accumulo.core.client.BatchWriter;
+import org.apache.accumulo.core.client.BatchWriterConfig;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.MutationsRejectedException;
+import org.apache.accumulo.core.client.TableNotFoundException;
+import org.apache.accumulo.core.client.security.SecurityErrorCode;
+import org.apache.accumulo.core.data.ConstraintViolationSummary;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.TabletId;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A BatchWriter that keeps going through tablet server failures.
+ *
+ * Mutations are held until the batch they belong to has been flushed. When
+ * a flush is rejected for transient reasons (server errors, unknown
+ * exceptions such as timeouts) the underlying writer, which cannot recover
+ * once it has failed, is closed and recreated and the whole batch is sent
+ * again after an exponential backoff with jitter.
+ *
+ * Security and constraint failures are permanent, but the exception does
+ * not say which mutations caused them. The batch is split in half and each
+ * half retried until the offending mutations are isolated; those are
+ * appended to a dead-letter file of serialized Mutations, which
+ * readDeadLetters() can load back for inspection or replay. When both
+ * halves fail for the same reason and it applies to all of them, such as a
+ * missing WRITE permission or a constraint every mutation violates, the
+ * whole batch is dead-lettered at once instead of being split further.
+ *
+ * Nothing is dropped, but a retried batch may repeat mutations that had
+ * already been applied. Puts of the same value are harmless on tables that
+ * keep one version; tables with combiners would count them twice.
+ */
+public class ResilientBatchWriter implements BatchWriter {
+
+  private static final Logger logger = LoggerFactory.getLogger(ResilientBatchWriter.class);
+
+  public static final int DEFAULT_BATCH_SIZE = 1000;
+
+  private final Connector conn;
+  private final String table;
+  private final BatchWriterConfig config;
+  private final Path deadLetterFile;
+
+  private int batchSize = DEFAULT_BATCH_SIZE;
+  private int maxRetries = 10;
+  private long initialBackoffMillis = 100;
+  private long maxBackoffMillis = 30000;
+
+  private final List<Mutation> batch = new ArrayList<>();
+  private BatchWriter writer = null;
+  private DataOutputStream deadLetters = null;
+  private long deadLettered = 0;
+  private long retries = 0;
+
+  /**
+   *
+   * @param conn
+   * @param table
+   * @param config used for every writer created, including replacements
+   * @param deadLetterFile where permanently rejected mutations are appended
+   */
+  public ResilientBatchWriter(Connector conn, String table, BatchWriterConfig config, Path deadLetterFile) {
+    this.conn = conn;
+    this.table = table;
+    this.config = config;
+    this.deadLetterFile = deadLetterFile;
+  }
+
+  /**
+   * Number of mutations sent and flushed together, and so resent together
+   * after a failure
+   *
+   * @param batchSize
+   * @return
+   */
+  public ResilientBatchWriter setBatchSize(int batchSize) {
+    this.batchSize = batchSize;
+    return this;
+  }
+
+  /**
+   * Transient failures in a row before giving up and throwing
+   *
+   * @param maxRetries
+   * @return
+   */
+  public ResilientBatchWriter setMaxRetries(int maxRetries) {
+    this.maxRetries = maxRetries;
+    return this;
+  }
+
+  public ResilientBatchWriter setBackoff(long initialMillis, long maxMillis) {
+    this.initialBackoffMillis = initialMillis;
+    this.maxBackoffMillis = maxMillis;
+    return this;
+  }
+
+  @Override
+  public synchronized void addMutation(Mutation m) throws MutationsRejectedException {
+    batch.add(m);
+    if (batch.size() >= batchSize) {
+      flush();
+    }
+  }
+
+  @Override
+  public synchronized void addMutations(Iterable<Mutation> iterable) throws MutationsRejectedException {
+    for (Mutation m : iterable) {
+      addMutation(m);
+    }
+  }
+
+  /**
+   * Sends the current batch, retrying until it is either written or
+   * dead-lettered
+   *
+   * @throws MutationsRejectedException if transient failures outlast maxRetries
+   */
+  @Override
+  public synchronized void flush() throws MutationsRejectedException {
+    if (batch.isEmpty()) {
+      return;
+    }
+
+    submit(new ArrayList<>(batch));
+    batch.clear();
+  }
+
+  @Override
+  public synchronized void close() throws MutationsRejectedException {
+    flush();
+
+    if (writer != null) {
+      writer.close();
+      writer = null;
+    }
+
+    if (deadLetters != null) {
+      try {
+        deadLetters.close();
+      } catch (IOException ex) {
+        logger.warn("could not close dead-letter file " + deadLetterFile, ex);
+      }
+      deadLetters = null;
+    }
+
+    if (deadLettered > 0) {
+      logger.error(deadLettered + " mutations for " + table + " were rejected permanently, see " + deadLetterFile);
+    }
+  }
+
+  public synchronized long getDeadLettered() {
+    return deadLettered;
+  }
+
+  public synchronized long getRetries() {
+    return retries;
+  }
+
+  /**
+   * Reads back the mutations written to a dead-letter file
+   *
+   * @param deadLetterFile
+   * @return
+   * @throws IOException
+   */
+  public static List<Mutation> readDeadLetters(Path deadLetterFile) throws IOException {
+
+    List<Mutation> mutations = new ArrayList<>();
+
+    try (DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(deadLetterFile.toFile())))) {
+      while (true) {
+        Mutation m = new Mutation();
+        try {
+          m.readFields(in);
+        } catch (EOFException ex) {
+          break;
+        }
+        mutations.add(m);
+      }
+    }
+
+    return mutations;
+  }
+
+  private void submit(List<Mutation> mutations) throws MutationsRejectedException {
+    MutationsRejectedException ex = send(mutations);
+    if (ex != null) {
+      isolate(mutations, ex);
+    }
+  }
+
+  /**
+   * Writes mutations, retrying transient failures
+   *
+   * @return null if they were written, or the permanent failure
+   * @throws MutationsRejectedException if transient failures outlast maxRetries
+   */
+  private MutationsRejectedException send(List<Mutation> mutations) throws MutationsRejectedException {
+
+    int attempt = 0;
+
+    while (true) {
+      try {
+        if (writer == null) {
+          writer = conn.createBatchWriter(table, config);
+        }
+
+        writer.addMutations(mutations);
+        writer.flush();
+        return null;
+
+      } catch (TableNotFoundException ex) {
+        throw new IllegalStateException("table " + table + " no longer exists", ex);
+
+      } catch (MutationsRejectedException ex) {
+
+        // this BatchWriter won't be able to reconnect after errors
+        discardWriter();
+
+        if (isPermanent(ex)) {
+          return ex;
+        }
+
+        if (++attempt > maxRetries) {
+          logger.error("giving up on " + mutations.size() + " mutations after " + maxRetries + " retries");
+          throw ex;
+        }
+
+        retries++;
+        backoff(attempt, ex);
+      }
+    }
+  }
+
+  /**
+   * Splits a batch that failed permanently until the mutations responsible
+   * are found, writing everything else
+   */
+  private void isolate(List<Mutation> mutations, MutationsRejectedException ex) throws MutationsRejectedException {
+
+    if (mutations.size() == 1) {
+      deadLetter(mutations.get(0), ex);
+      return;
+    }
+
+    List<Mutation> left = mutations.subList(0, mutations.size() / 2);
+    List<Mutation> right = mutations.subList(left.size(), mutations.size());
+
+    MutationsRejectedException leftEx = send(left);
+    MutationsRejectedException rightEx = send(right);
+
+    if (leftEx != null && rightEx != null && rejectsAll(left, leftEx) && rejectsAll(right, rightEx)
+            && causes(leftEx).equals(causes(rightEx))) {
+      logger.error("every part of " + mutations.size() + " mutations for " + table
+              + " was rejected for " + causes(ex) + ", dead-lettering all of them");
+      for (Mutation m : mutations) {
+        deadLetter(m, ex, false);
+      }
+      return;
+    }
+
+    if (leftEx != null) {
+      isolate(left, leftEx);
+    }
+    if (rightEx != null) {
+      isolate(right, rightEx);
+    }
+  }
+
+  /**
+   * Whether the failure can apply to every one of the mutations: security
+   * errors don't say, constraint violations are counted
+   */
+  private static boolean rejectsAll(List<Mutation> mutations, MutationsRejectedException ex) {
+    long violating = 0;
+    for (ConstraintViolationSummary violation : ex.getConstraintViolationSummaries()) {
+      violating = Math.max(violating, violation.getNumberOfViolatingMutations());
+    }
+    return ex.getConstraintViolationSummaries().isEmpty() || violating >= mutations.size();
+  }
+
+  /**
+   * The security error codes and violated constraints of a failure
+   */
+  private static Set<String> causes(MutationsRejectedException ex) {
+    Set<String> causes = new TreeSet<>();
+    for (Set<SecurityErrorCode> codes : ex.getSecurityErrorCodes().values()) {
+      for (SecurityErrorCode code : codes) {
+        causes.add(code.toString());
+      }
+    }
+    for (ConstraintViolationSummary violation : ex.getConstraintViolationSummaries()) {
+      causes.add(violation.getConstrainClass() + ":" + violation.getViolationCode());
+    }
+    return causes;
+  }
+
+  private void deadLetter(Mutation m, MutationsRejectedException ex) throws MutationsRejectedException {
+    deadLetter(m, ex, true);
+  }
+
+  private void deadLetter(Mutation m, MutationsRejectedException ex, boolean log) throws MutationsRejectedException {
+
+    if (log) {
+      logger.error("dead-lettering mutation for row " + new String(m.getRow()) + ": " + ex.getMessage());
+    }
+
+    try {
+      if (deadLetters == null) {
+        deadLetters = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(deadLetterFile.toFile(), true)));
+      }
+
+      m.write(deadLetters);
+      deadLetters.flush();
+      deadLettered++;
+
+    } catch (IOException ioe) {
+      // nowhere to put it, so fail rather than lose it
+      logger.error("could not write dead-letter file " + deadLetterFile, ioe);
+      throw ex;
+    }
+  }
+
+  private void discardWriter() {
+    if (writer == null) {
+      return;
+    }
+
+    try {
+      writer.close();
+    } catch (Exception ex) {
+      logger.warn("Additional error closing batch writer: " + ex.getMessage());
+    }
+    writer = null;
+  }
+
+  /**
+   * Sleeps between half and all of initialBackoff * 2^(attempt - 1),
+   * capped at maxBackoff, so clients that failed together don't retry
+   * together
+   */
+  private void backoff(int attempt, MutationsRejectedException ex) throws MutationsRejectedException {
+
+    long delay = Math.min(maxBackoffMillis, initialBackoffMillis << Math.min(attempt - 1, 30));
+    long sleep = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+
+    logger.warn("retry " + attempt + " of " + maxRetries + " for " + table + " in " + sleep + " ms");
+
+    try {
+      Thread.sleep(sleep);
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw ex;
+    }
+  }
+
+  /**
+   * Security errors and constraint violations will fail again however often
+   * they are retried; server errors and unknown exceptions may not
+   *
+   * @param ex
+   * @return
+   */
+  static boolean isPermanent(MutationsRejectedException ex) {
+
+    // ---- permanent failures ----
+
+    Map<TabletId, Set<SecurityErrorCode>> securityErrors = ex.getSecurityErrorCodes();
+    for (Map.Entry<TabletId, Set<SecurityErrorCode>> entry : securityErrors.entrySet()) {
+      for (SecurityErrorCode err : entry.getValue()) {
+        logger.error("permanent error: " + err.toString());
+      }
+    }
+
+    List<ConstraintViolationSummary> constraintViolations = ex.getConstraintViolationSummaries();
+    for (ConstraintViolationSummary violation : constraintViolations) {
+      logger.error("permanent error: " + violation.toString());
+    }
+
+    if (!securityErrors.isEmpty() || !constraintViolations.isEmpty()) {
+      return true;
+    }
+
+    // ---- transient failures ----
+
+    Collection<String> errorServers = ex.getErrorServers();
+    for (String errorServer : errorServers) {
+      logger.warn("Problem with server: " + errorServer);
+    }
+
+    int numUnknownExceptions = ex.getUnknownExceptions();
+    if (numUnknownExceptions > 0) {
+      logger.warn(numUnknownExceptions + " unknown exceptions.");
+    }
+
+    return false;
+  }
+}
@@ -0,0 +1,257 @@
+package com.oreilly.accumulotraining;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.accumulo.core.client.AccumuloException;
+import org.apache.accumulo.core.client.BatchScanner;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.TableNotFoundException;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.security.Authorizations;
+
+/**
+ * Looks up the data cells for a range of quantities a batch of index
+ * entries at a time, so a caller that only wants the first few results
+ * doesn't wait for the whole index range to be read.
+ *
+ * The first batch holds as many index entries as the caller expects to
+ * need, and each one after that twice as many, up to maxBatch. While the
+ * data cells of one batch are fetched with a BatchScanner, a background
+ * thread reads the next batch of index entries. Closing the lookup stops
+ * both scans, so nothing past the batch being read is pulled from the
+ * index.
+ *
+ * Cells are read from the data table only when the index doesn't cover
+ * what the caller asked for. A caller that only wants the keys, which
+ * country produced what in which year, is answered from the index alone,
+ * as is one that wants quantities from a covering index. Cells answered
+ * from the index have no timestamp or visibility.
+ *
+ * Each data cell is returned once, even if several index entries point
+ * at it. Results within a batch come back in no particular order, as with
+ * any BatchScanner. Iterate from a single thread and close when done.
+ */
+public class StreamingIndexLookup implements Iterator<Entry<Key, Value>>, AutoCloseable {
+
+	public static final int DEFAULT_MAX_BATCH = 1000;
+
+	private static final int QUERY_THREADS = 10;
+
+	private final Connector conn;
+	private final String table;
+	private final Authorizations auths;
+	private final int maxBatch;
+
+	private final BatchScanner indexScanner;
+	private final Iterator<Entry<Key, Value>> indexEntries;
+	private final ExecutorService reader;
+
+	// cells already looked up; entries for several quantities of one cell would repeat it
+	private final Set<Key> requested = new HashSet<>();
+
+	private final boolean values;
+
+	private int batchSize;
+	private Future<Batch> nextBatch;
+
+	private Iterator<Entry<Key, Value>> covered = null;
+	private BatchScanner dataScanner = null;
+	private Iterator<Entry<Key, Value>> cells = null;
+	private boolean done = false;
+
+	// written by the reader thread
+	private volatile long indexEntriesRead = 0;
+	private int batches = 0;
+	private long dataLookups = 0;
+
+	/**
+	 *
+	 * @param conn
+	 * @param table the data table
+	 * @param auths
+	 * @param start lowest quantity
+	 * @param end highest quantity
+	 * @param values whether the caller needs the quantities, or only the keys
+	 * @param expected results the caller is likely to use, which sizes the first batch
+	 * @param maxBatch most index entries read at once
+	 * @throws AccumuloException
+	 * @throws TableNotFoundException
+	 */
+	public StreamingIndexLookup(
+			Connector conn,
+			String table,
+			Authorizations auths,
+			double start,
+			double end,
+			boolean values,
+			int expected,
+			int maxBatch)
+			throws AccumuloException, TableNotFoundException {
+
+		this.conn = conn;
+		this.table = table;
+		this.auths = auths;
+		this.values = values;
+		this.maxBatch = maxBatch;
+		this.batchSize = Math.max(1, Math.min(expected, maxBatch));
+
+		EnergyIndex index = EnergyIndex.forTable(conn, table);
+
+		indexScanner = conn.createBatchScanner(EnergyIndex.indexTableFor(table), auths, QUERY_THREADS);
+		indexScanner.setRanges(index.ranges(start, end));
+		indexEntries = indexScanner.iterator();
+
+		reader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "index-lookup-reader");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		nextBatch = reader.submit(readBatch(batchSize));
+		covered = Collections.emptyIterator();
+	}
+
+	@Override
+	public boolean hasNext() {
+
+		while(!done && !covered.hasNext() && (cells == null || !cells.hasNext())) {
+
+			closeDataScanner();
+
+			Batch batch = take();
+			if(batch.read == 0) {
+				done = true;
+				break;
+			}
+
+			// read the next batch of the index while this one is looked up
+			batchSize = Math.min(batchSize * 2, maxBatch);
+			nextBatch = reader.submit(readBatch(batchSize));
+
+			covered = batch.covered.iterator();
+			batches++;
+
+			if(!batch.ranges.isEmpty()) {
+				try {
+					dataScanner = conn.createBatchScanner(table, auths, QUERY_THREADS);
+				} catch (TableNotFoundException ex) {
+					throw new IllegalStateException(ex);
+				}
+				dataScanner.setRanges(batch.ranges);
+				cells = dataScanner.iterator();
+				dataLookups += batch.ranges.size();
+			}
+		}
+
+		return !done;
+	}
+
+	@Override
+	public Entry<Key, Value> next() {
+		if(!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		return covered.hasNext() ? covered.next() : cells.next();
+	}
+
+	@Override
+	public void close() {
+		done = true;
+		reader.shutdownNow();
+		indexScanner.close();
+		closeDataScanner();
+	}
+
+	public long getIndexEntriesRead() {
+		return indexEntriesRead;
+	}
+
+	public int getBatches() {
+		return batches;
+	}
+
+	/**
+	 * @return cells that had to be read from the data table
+	 */
+	public long getDataLookups() {
+		return dataLookups;
+	}
+
+	private Batch take() {
+		try {
+			return nextBatch.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(ex);
+		} catch (ExecutionException ex) {
+			throw new IllegalStateException(ex.getCause());
+		}
+	}
+
+	/**
+	 * Reads up to size index entries, answering what the index covers and
+	 * turning the rest into exact ranges in the data table. Only ever runs
+	 * on the reader thread, one batch at a time.
+	 */
+	private Callable<Batch> readBatch(final int size) {
+		return new Callable<Batch>() {
+
+			@Override
+			public Batch call() {
+				Batch batch = new Batch();
+				while(batch.read < size && indexEntries.hasNext()) {
+					Entry<Key, Value> entry = indexEntries.next();
+					batch.read++;
+
+					Key cell = EnergyIndex.mainKey(entry.getKey());
+					if(!requested.add(cell)) {
+						continue;
+					}
+
+					if(!values || EnergyIndex.isCovered(entry.getValue())) {
+						batch.covered.add(new AbstractMap.SimpleImmutableEntry<>(cell, entry.getValue()));
+					} else {
+						batch.ranges.add(Range.exact(cell.getRow(), cell.getColumnFamily(), cell.getColumnQualifier()));
+					}
+				}
+				indexEntriesRead += batch.read;
+				return batch;
+			}
+		};
+	}
+
+	private void closeDataScanner() {
+		if(dataScanner != null) {
+			dataScanner.close();
+			dataScanner = null;
+			cells = null;
+		}
+	}
+
+	private static class Batch {
+
+		// index entries read, including ones for cells already requested
+		int read = 0;
+		final List<Entry<Key, Value>> covered = new ArrayList<>();
+		final List<Range> ranges = new ArrayList<>();
+	}
+}
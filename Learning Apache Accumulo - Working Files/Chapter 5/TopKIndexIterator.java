@@ -0,0 +1,264 @@
+package com.oreilly.accumulotraining;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.PriorityQueue;
+
+import org.apache.accumulo.core.client.IteratorSetting;
+import org.apache.accumulo.core.client.lexicoder.DoubleLexicoder;
+import org.apache.accumulo.core.data.ByteSequence;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.IteratorEnvironment;
+import org.apache.accumulo.core.iterators.OptionDescriber;
+import org.apache.accumulo.core.iterators.SortedKeyValueIterator;
+import org.apache.accumulo.core.iterators.WrappingIterator;
+import org.apache.hadoop.io.WritableComparator;
+
+/**
+ * Runs on the tablet servers over an EnergyIndex table and returns only
+ * the k entries with the highest (or lowest) quantities in each range it
+ * is seeked to, so a query for the top producers in a band of values
+ * sends k entries per range across the network instead of the whole band.
+ *
+ * Quantities are compared as the lexicoded bytes of the index row, after
+ * the shard prefix, which sort the same way as the numbers; nothing is
+ * decoded. Entries outside the optional start and end quantities are
+ * skipped. Ties go to the smaller key, so every server and the client
+ * break them the same way.
+ *
+ * The chosen entries come back in key order, as an iterator must return
+ * them, and the client merges them with ranking(). k must stay well below
+ * what a tablet server returns in one batch: a scan that is resumed part
+ * way through a range only sees the rest of it, and would pick its own k.
+ */
+public class TopKIndexIterator extends WrappingIterator implements OptionDescriber {
+
+	public static final String K_OPTION = "k";
+	public static final String HIGHEST_OPTION = "highest";
+	public static final String PREFIX_OPTION = "prefixLength";
+	public static final String START_OPTION = "start";
+	public static final String END_OPTION = "end";
+
+	private int k;
+	private boolean highest;
+	private int prefixLength;
+	private byte[] start = null;
+	private byte[] end = null;
+	private Map<String, String> options;
+
+	private Iterator<Entry<Key, Value>> chosen = Collections.emptyIterator();
+	private Entry<Key, Value> top = null;
+
+	/**
+	 * @param setting
+	 * @param k entries to keep in each range
+	 */
+	public static void setK(IteratorSetting setting, int k) {
+		if(k < 1) {
+			throw new IllegalArgumentException("k must be positive: " + k);
+		}
+		setting.addOption(K_OPTION, Integer.toString(k));
+	}
+
+	/**
+	 * @param setting
+	 * @param highest true to keep the highest quantities, false for the lowest
+	 */
+	public static void setHighest(IteratorSetting setting, boolean highest) {
+		setting.addOption(HIGHEST_OPTION, Boolean.toString(highest));
+	}
+
+	/**
+	 * @param setting
+	 * @param prefixLength bytes before the quantity in each row, from EnergyIndex.getPrefixLength()
+	 */
+	public static void setPrefixLength(IteratorSetting setting, int prefixLength) {
+		setting.addOption(PREFIX_OPTION, Integer.toString(prefixLength));
+	}
+
+	/**
+	 * Skips entries for quantities outside start to end inclusive
+	 *
+	 * @param setting
+	 * @param start
+	 * @param end
+	 */
+	public static void setQuantityRange(IteratorSetting setting, double start, double end) {
+		setting.addOption(START_OPTION, Double.toString(start));
+		setting.addOption(END_OPTION, Double.toString(end));
+	}
+
+	/**
+	 * Orders index keys best first: by quantity, highest or lowest first,
+	 * then by key
+	 *
+	 * @param prefixLength bytes before the quantity in each row
+	 * @param highest
+	 * @return
+	 */
+	public static Comparator<Key> ranking(final int prefixLength, final boolean highest) {
+		return new Comparator<Key>() {
+
+			@Override
+			public int compare(Key a, Key b) {
+				int c = compareQuantities(a.getRowData(), b.getRowData(), prefixLength);
+				if(c != 0) {
+					return highest ? -c : c;
+				}
+				return a.compareTo(b);
+			}
+		};
+	}
+
+	@Override
+	public void init(SortedKeyValueIterator<Key, Value> source, Map<String, String> options, IteratorEnvironment env)
+			throws IOException {
+		super.init(source, options, env);
+
+		this.options = new HashMap<>(options);
+		k = Integer.parseInt(options.get(K_OPTION));
+		highest = !options.containsKey(HIGHEST_OPTION) || Boolean.parseBoolean(options.get(HIGHEST_OPTION));
+		prefixLength = options.containsKey(PREFIX_OPTION) ? Integer.parseInt(options.get(PREFIX_OPTION)) : 0;
+
+		DoubleLexicoder lexicoder = new DoubleLexicoder();
+		if(options.containsKey(START_OPTION)) {
+			start = lexicoder.encode(Double.parseDouble(options.get(START_OPTION)));
+		}
+		if(options.containsKey(END_OPTION)) {
+			end = lexicoder.encode(Double.parseDouble(options.get(END_OPTION)));
+		}
+	}
+
+	@Override
+	public SortedKeyValueIterator<Key, Value> deepCopy(IteratorEnvironment env) {
+		TopKIndexIterator copy = new TopKIndexIterator();
+		try {
+			copy.init(getSource().deepCopy(env), options, env);
+		} catch (IOException ex) {
+			throw new IllegalStateException(ex);
+		}
+		return copy;
+	}
+
+	@Override
+	public void seek(Range range, Collection<ByteSequence> columnFamilies, boolean inclusive) throws IOException {
+		super.seek(range, columnFamilies, inclusive);
+
+		// the worst entry kept so far is at the head, ready to be replaced
+		Comparator<Key> best = ranking(prefixLength, highest);
+		PriorityQueue<Entry<Key, Value>> kept = new PriorityQueue<>(k, Collections.reverseOrder(byKey(best)));
+
+		SortedKeyValueIterator<Key, Value> source = getSource();
+		while(source.hasTop()) {
+			Key key = source.getTopKey();
+			if(inRange(key.getRowData())
+					&& (kept.size() < k || best.compare(key, kept.peek().getKey()) < 0)) {
+				// the source reuses its key and value, so keep copies
+				kept.add(new AbstractMap.SimpleImmutableEntry<>(new Key(key), new Value(source.getTopValue())));
+				if(kept.size() > k) {
+					kept.poll();
+				}
+			}
+			source.next();
+		}
+
+		List<Entry<Key, Value>> results = new ArrayList<>(kept);
+		Collections.sort(results, byKey(null));
+		chosen = results.iterator();
+		top = chosen.hasNext() ? chosen.next() : null;
+	}
+
+	@Override
+	public boolean hasTop() {
+		return top != null;
+	}
+
+	@Override
+	public Key getTopKey() {
+		return top.getKey();
+	}
+
+	@Override
+	public Value getTopValue() {
+		return top.getValue();
+	}
+
+	@Override
+	public void next() throws IOException {
+		top = chosen.hasNext() ? chosen.next() : null;
+	}
+
+	@Override
+	public IteratorOptions describeOptions() {
+		Map<String, String> described = new HashMap<>();
+		described.put(K_OPTION, "entries to keep in each range");
+		described.put(HIGHEST_OPTION, "true to keep the highest quantities, false for the lowest (default true)");
+		described.put(PREFIX_OPTION, "bytes before the lexicoded quantity in each row (default 0)");
+		described.put(START_OPTION, "lowest quantity to keep (optional)");
+		described.put(END_OPTION, "highest quantity to keep (optional)");
+		return new IteratorOptions("topk", "keeps the k index entries with the highest or lowest quantities",
+				described, null);
+	}
+
+	@Override
+	public boolean validateOptions(Map<String, String> options) {
+		try {
+			if(Integer.parseInt(options.get(K_OPTION)) < 1) {
+				throw new IllegalArgumentException(K_OPTION + " must be positive");
+			}
+			if(options.containsKey(PREFIX_OPTION) && Integer.parseInt(options.get(PREFIX_OPTION)) < 0) {
+				throw new IllegalArgumentException(PREFIX_OPTION + " must not be negative");
+			}
+			if(options.containsKey(START_OPTION)) {
+				Double.parseDouble(options.get(START_OPTION));
+			}
+			if(options.containsKey(END_OPTION)) {
+				Double.parseDouble(options.get(END_OPTION));
+			}
+		} catch (NumberFormatException ex) {
+			throw new IllegalArgumentException(ex);
+		}
+		return true;
+	}
+
+	private boolean inRange(ByteSequence row) {
+		return (start == null || compareQuantity(row, start) >= 0)
+				&& (end == null || compareQuantity(row, end) <= 0);
+	}
+
+	private int compareQuantity(ByteSequence row, byte[] bound) {
+		return WritableComparator.compareBytes(
+				row.getBackingArray(), row.offset() + prefixLength, row.length() - prefixLength,
+				bound, 0, bound.length);
+	}
+
+	private static int compareQuantities(ByteSequence a, ByteSequence b, int prefixLength) {
+		return WritableComparator.compareBytes(
+				a.getBackingArray(), a.offset() + prefixLength, a.length() - prefixLength,
+				b.getBackingArray(), b.offset() + prefixLength, b.length() - prefixLength);
+	}
+
+	/**
+	 * Orders entries by their keys, with order or in natural key order if null
+	 */
+	private static Comparator<Entry<Key, Value>> byKey(final Comparator<Key> order) {
+		return new Comparator<Entry<Key, Value>>() {
+
+			@Override
+			public int compare(Entry<Key, Value> a, Entry<Key, Value> b) {
+				return order == null ? a.getKey().compareTo(b.getKey()) : order.compare(a.getKey(), b.getKey());
+			}
+		};
+	}
+}
@@ -1,19 +1,19 @@
 package com.oreilly.accumulotraining;
 
-import java.util.concurrent.TimeUnit;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.accumulo.core.client.AccumuloException;
 import org.apache.accumulo.core.client.AccumuloSecurityException;
 import org.apache.accumulo.core.client.BatchWriter;
-import org.apache.accumulo.core.client.BatchWriterConfig;
 import org.apache.accumulo.core.client.Connector;
-import org.apache.accumulo.core.client.Durability;
-import org.apache.accumulo.core.client.Instance;
 import org.apache.accumulo.core.client.TableNotFoundException;
-import org.apache.accumulo.core.client.ZooKeeperInstance;
-import org.apache.accumulo.core.client.security.tokens.PasswordToken;
 import org.apache.accumulo.core.data.Mutation;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
 
 public class UpdateDeleteClient {
 
@@ -31,17 +31,10 @@ public class UpdateDeleteClient {
 		
 		try {
 			
-			Instance inst = new ZooKeeperInstance(instanceName, zookeepers);
+			Connector conn = ConnectionManager.shared().getConnector(instanceName, zookeepers, username, password);
 			
-			Connector conn = inst.getConnector(username, new PasswordToken(password));
-			
-			BatchWriterConfig config = new BatchWriterConfig();
-			config.setMaxLatency(1, TimeUnit.SECONDS);
-			config.setMaxMemory(10240);
-			config.setDurability(Durability.DEFAULT);
-			config.setMaxWriteThreads(10);
-			
-			BatchWriter writer = conn.createBatchWriter(table, config);
+			// shared with other calls, so flush rather than close it
+			BatchWriter writer = ConnectionManager.shared().getBatchWriter(conn, table);
 			
 			Mutation m = new Mutation(row);
 			if(delete) {
@@ -52,10 +45,111 @@ public class UpdateDeleteClient {
 			}
 			
 			writer.addMutation(m);
-			writer.close();
+			writer.flush();
 		}
 		catch (AccumuloException | AccumuloSecurityException | TableNotFoundException ex) {
 			Logger.getLogger(IngestClient.class.getName()).log(Level.SEVERE, null, ex);
 		}
 	}		
+	
+	/**
+	 * Updates or deletes a cell of a table written by IndexIngestClient,
+	 * moving its index entry to match
+	 */
+	public static void runIndexed(
+			String instanceName, 
+			String zookeepers, 
+			String username, 
+			String password, 
+			String table, 
+			String row,
+			String columnFamily,
+			String columnQualifier,
+			String value,
+			boolean delete) {
+		
+		try {
+			
+			Connector conn = ConnectionManager.shared().getConnector(instanceName, zookeepers, username, password);
+			
+			try (IndexedUpdater updater = new IndexedUpdater(
+					conn, table, ConnectionManager.shared().getMultiTableBatchWriter(conn))) {
+				
+				if(delete) {
+					updater.delete(row, columnFamily, columnQualifier);
+				}
+				else {
+					updater.update(row, columnFamily, columnQualifier, value);
+				}
+			}
+		}
+		catch (AccumuloException | AccumuloSecurityException | TableNotFoundException ex) {
+			Logger.getLogger(IngestClient.class.getName()).log(Level.SEVERE, null, ex);
+		}
+	}
+	
+	/**
+	 * Applies a file of changes to a table written by IndexIngestClient,
+	 * keeping its index up to date.
+	 * 
+	 * Each line is country,energy type,year,quantity, with a header line;
+	 * an empty quantity deletes the cell. A file with any other line is
+	 * rejected before anything is changed.
+	 */
+	public static void runIndexed(
+			String instanceName, 
+			String zookeepers, 
+			String username, 
+			String password, 
+			String table, 
+			String filename) {
+		
+		try {
+			
+			File changes = new File(filename);
+			checkChanges(changes);
+			
+			Connector conn = ConnectionManager.shared().getConnector(instanceName, zookeepers, username, password);
+			
+			try (IndexedUpdater updater = new IndexedUpdater(
+					conn, table, ConnectionManager.shared().getMultiTableBatchWriter(conn));
+					CSVParser parser = CSVParser.parse(changes, Charset.defaultCharset(), CSVFormat.EXCEL.withHeader())) {
+				
+				for(CSVRecord csvRecord : parser) {
+					if(csvRecord.get(3).isEmpty()) {
+						updater.delete(csvRecord.get(0), csvRecord.get(1), csvRecord.get(2));
+					}
+					else {
+						updater.update(csvRecord.get(0), csvRecord.get(1), csvRecord.get(2), csvRecord.get(3));
+					}
+				}
+				
+				updater.flush();
+				
+				System.out.println("updated " + updater.getUpdated() + " cells, deleted " + updater.getDeleted() 
+						+ ", moved " + updater.getIndexEntriesMoved() + " index entries");
+			}
+		}
+		catch (AccumuloException | AccumuloSecurityException | TableNotFoundException | IOException ex) {
+			Logger.getLogger(IngestClient.class.getName()).log(Level.SEVERE, null, ex);
+		}
+	}
+	
+	/**
+	 * Checks that every line of a change file has all four fields, so a
+	 * truncated line can't be taken for a delete
+	 * 
+	 * @throws IOException naming the first line that doesn't
+	 */
+	private static void checkChanges(File changes) throws IOException {
+		try (CSVParser parser = CSVParser.parse(changes, Charset.defaultCharset(), CSVFormat.EXCEL.withHeader())) {
+			for(CSVRecord csvRecord : parser) {
+				if(csvRecord.size() != 4) {
+					// the header is line 1
+					throw new IOException(changes + " line " + (csvRecord.getRecordNumber() + 1) + " has " 
+							+ csvRecord.size() + " fields, not country,energy type,year,quantity");
+				}
+			}
+		}
+	}
 }
@@ -1,47 +1,32 @@
 package com.oreilly.accumulotraining;
 
-import java.io.File;
 import java.io.IOException;
 import java.math.BigDecimal;
-import java.nio.charset.Charset;
 import java.util.EnumSet;
-import java.util.Iterator;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.accumulo.core.client.AccumuloException;
 import org.apache.accumulo.core.client.AccumuloSecurityException;
 import org.apache.accumulo.core.client.BatchWriter;
-import org.apache.accumulo.core.client.BatchWriterConfig;
 import org.apache.accumulo.core.client.Connector;
-import org.apache.accumulo.core.client.Durability;
-import org.apache.accumulo.core.client.Instance;
 import org.apache.accumulo.core.client.IteratorSetting;
 import org.apache.accumulo.core.client.TableExistsException;
 import org.apache.accumulo.core.client.TableNotFoundException;
-import org.apache.accumulo.core.client.ZooKeeperInstance;
-import org.apache.accumulo.core.client.security.tokens.PasswordToken;
 import org.apache.accumulo.core.data.Mutation;
 import org.apache.accumulo.core.data.Value;
 import org.apache.accumulo.core.iterators.IteratorUtil.IteratorScope;
 import org.apache.accumulo.core.iterators.user.BigDecimalCombiner.BigDecimalEncoder;
 import org.apache.accumulo.core.iterators.user.BigDecimalCombiner.BigDecimalSummingCombiner;
 
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVParser;
-import org.apache.commons.csv.CSVRecord;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.io.Text;
 
 
 public class IteratorClient {
   
   private static final Logger logger = Logger.getLogger(IteratorClient.class.getName());
-	
-	private static final int COUNTRY = 0;
-	private static final int COMMODITY = 1;
-	private static final int YEAR = 2;
-	private static final int UNIT = 3;
-	private static final int QUANTITY = 4;
-	private static final int FOOTNOTES = 5;
   
   private static final String BLANK_COL_QUAL = "";
 	
@@ -56,83 +41,107 @@ public class IteratorClient {
     try {
       
       System.out.println("connecting to accumulo ...");
-      Instance inst = new ZooKeeperInstance(instanceName, zookeepers);
-      System.out.println("got instance");
-      Connector conn = inst.getConnector(username, new PasswordToken(password));
+      Connector conn = ConnectionManager.shared().getConnector(instanceName, zookeepers, username, password);
       System.out.println("got connector");
       
-      if(!conn.tableOperations().exists(table)) {
-        System.out.println("creating table " + table);
-        conn.tableOperations().create(table);
+      createTableIfMissing(conn, table);
+      
+      try (IngestMetrics metrics = new IngestMetrics(table).startLogging(10, TimeUnit.SECONDS)) {
+        
+        BatchWriter writer = metrics.meter(new AdaptiveBatchWriterFactory().createBatchWriter(conn, table));
         
-        // remove versioning iterator
-        conn.tableOperations().removeIterator(table, "vers", EnumSet.allOf(IteratorScope.class));
+        System.out.println("writing data from file " + filename + " ...");
         
-        // setup combining iterator
-        IteratorSetting iterSetting = new IteratorSetting(10, "sum", BigDecimalSummingCombiner.class);
-        BigDecimalSummingCombiner.setCombineAllColumns(iterSetting, true);
+        int written = ParallelIngest.ingestChunks(filename, new SummedIngest(writer, metrics));
         
-        conn.tableOperations().attachIterator(table, iterSetting);
+        writer.close();
+        
+        System.out.println("wrote " + written + " records");
       }
+		
+    } catch (AccumuloException | AccumuloSecurityException | TableNotFoundException |TableExistsException | IOException ex) {
+      logger.log(Level.SEVERE, ex.getLocalizedMessage(), ex);
+    }
+			
+  }
+  
+  /**
+   * Loads the same data as run() by writing sorted RFiles under workDir
+   * and importing them. Every value is kept so the combiner still sums them.
+   */
+  public static void runBulk(
+          String instanceName, 
+          String zookeepers, 
+          String username, 
+          String password, 
+          String table, 
+          String filename,
+          String workDir) {
+    
+    try {
       
-      BatchWriterConfig config = new BatchWriterConfig();
-      config.setMaxLatency(1, TimeUnit.SECONDS);
-      config.setMaxMemory(10240);
-      config.setDurability(Durability.DEFAULT);
-      config.setMaxWriteThreads(10);
+      System.out.println("connecting to accumulo ...");
+      Connector conn = ConnectionManager.shared().getConnector(instanceName, zookeepers, username, password);
       
-      BatchWriter writer = conn.createBatchWriter(table, config);
-      BigDecimalEncoder encoder = new BigDecimalEncoder();
+      createTableIfMissing(conn, table);
       
-      int written = 0;
-      File csvData = new File(filename);
+      BulkIngest.Writer writer = BulkIngest.createWriter(
+              conn, FileSystem.get(new Configuration()), workDir, table, true);
+      
+      System.out.println("sorting data from file " + filename + " ...");
+      
+      int written = ParallelIngest.ingestChunks(filename, new SummedIngest(writer, null));
+      
+      System.out.println("importing into " + table + " ...");
+      writer.importInto();
+      
+      System.out.println("loaded " + written + " records");
       
-      System.out.println("parsing file");
-			CSVParser parser = CSVParser.parse(csvData, Charset.defaultCharset(), CSVFormat.EXCEL);
-			
-			System.out.println("writing data from file " + filename + " ...");
-			
-			Iterator<CSVRecord> records = parser.getRecords().iterator();
-			records.next(); // skip header
-			
-			while(records.hasNext()) {
-				CSVRecord csvRecord = records.next();
-				
-				if(csvRecord.size() < 6) {
-					continue;
-				}
-				
-				String country = csvRecord.get(COUNTRY);
-				String energyType = parseEnergyType(csvRecord.get(COMMODITY));
-				Mutation m = new Mutation(country);
-				
-        BigDecimal value = BigDecimal.valueOf(Double.parseDouble(csvRecord.get(QUANTITY)));
-        
-				m.put(
-						energyType,
-            BLANK_COL_QUAL,
-						new Value(encoder.encode(value)));
-				
-				writer.addMutation(m);
-				written++;
-			}
-			
-			writer.close();
-			parser.close();
-			
-			System.out.println("wrote " + written + " records");
-		
     } catch (AccumuloException | AccumuloSecurityException | TableNotFoundException |TableExistsException | IOException ex) {
       logger.log(Level.SEVERE, ex.getLocalizedMessage(), ex);
     }
-			
   }
-
-  private static String parseEnergyType(String line) {
-    String[] parts = line.split("\\s+");
-    if (parts.length > 3) {
-      return parts[3];
+  
+  private static void createTableIfMissing(Connector conn, String table) 
+          throws AccumuloException, AccumuloSecurityException, TableExistsException, TableNotFoundException {
+    
+    if(!conn.tableOperations().exists(table)) {
+      System.out.println("creating table " + table);
+      conn.tableOperations().create(table);
+      
+      // remove versioning iterator
+      conn.tableOperations().removeIterator(table, "vers", EnumSet.allOf(IteratorScope.class));
+      
+      // setup combining iterator
+      IteratorSetting iterSetting = new IteratorSetting(10, "sum", BigDecimalSummingCombiner.class);
+      BigDecimalSummingCombiner.setCombineAllColumns(iterSetting, true);
+      
+      conn.tableOperations().attachIterator(table, iterSetting);
+    }
+  }
+  
+  /**
+   * Writes each quantity as a BigDecimal under the energy type, so the
+   * combiner sums the totals per country, straight from the bytes of each
+   * chunk. Repeated updates to the same column within one Mutation are all
+   * kept and summed.
+   */
+  static class SummedIngest extends TokenizedIngest {
+    
+    private static final Text BLANK = new Text(BLANK_COL_QUAL);
+    
+    private final BigDecimalEncoder encoder = new BigDecimalEncoder();
+    
+    SummedIngest(BatchWriter writer, IngestMetrics metrics) {
+      super(writer, metrics);
+    }
+    
+    @Override
+    protected void put(Mutation m, EnergyRecordTokenizer record) {
+      
+      BigDecimal value = BigDecimal.valueOf(Double.parseDouble(record.quantity().toString()));
+      
+      m.put(record.energyType(), BLANK, new Value(encoder.encode(value)));
     }
-    return line;
   }
 }
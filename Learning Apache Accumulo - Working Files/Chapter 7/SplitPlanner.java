@@ -0,0 +1,225 @@
+package com.oreilly.accumulotraining;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.apache.accumulo.core.client.Connector;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+
+/**
+ * Plans split points for a new table from a random sample of the CSV files
+ * about to be ingested, so the first writes spread across tablet servers
+ * instead of all landing on a single tablet.
+ *
+ * Samples are read from random byte offsets, so planning costs a few
+ * thousand small reads no matter how large the input is. Longer lines are
+ * slightly more likely to be picked, which is close enough for choosing
+ * quantiles.
+ */
+public class SplitPlanner {
+
+  public static final int DEFAULT_SAMPLES = 10000;
+  public static final int TABLETS_PER_SERVER = 4;
+
+  private static final int COUNTRY = 0;
+  private static final int QUANTITY = 4;
+
+  private static final int READ_SIZE = 8192;
+
+  /**
+   * Suggests one split less than TABLETS_PER_SERVER tablets per server
+   *
+   * @param connector
+   * @return
+   */
+  public static int defaultSplitCount(final Connector connector) {
+    int servers = connector.instanceOperations().getTabletServers().size();
+    return Math.max(1, servers) * TABLETS_PER_SERVER - 1;
+  }
+
+  /**
+   * Split points for a data table whose rows are the country column
+   *
+   * @param input a file, directory or glob
+   * @param splits
+   * @return
+   * @throws IOException
+   */
+  public static SortedSet<Text> countrySplits(String input, int splits) throws IOException {
+
+    List<byte[]> rows = new ArrayList<>();
+    for (CSVRecord record : sample(input, DEFAULT_SAMPLES)) {
+      rows.add(record.get(COUNTRY).getBytes());
+    }
+
+    return quantiles(rows, splits);
+  }
+
+  /**
+   * Split points for an unsharded index table whose rows are lexicoded
+   * quantities
+   *
+   * @param input a file, directory or glob
+   * @param splits
+   * @return
+   * @throws IOException
+   */
+  public static SortedSet<Text> quantitySplits(String input, int splits) throws IOException {
+    return quantitySplits(input, new EnergyIndex(), splits);
+  }
+
+  /**
+   * Split points for an index table laid out by index
+   *
+   * @param input a file, directory or glob
+   * @param index
+   * @param splits
+   * @return
+   * @throws IOException
+   */
+  public static SortedSet<Text> quantitySplits(String input, EnergyIndex index, int splits) throws IOException {
+
+    List<byte[]> rows = new ArrayList<>();
+    for (CSVRecord record : sample(input, DEFAULT_SAMPLES)) {
+      try {
+        rows.add(index.indexRow(record.get(COUNTRY), Double.parseDouble(record.get(QUANTITY))));
+      } catch (NumberFormatException ex) {
+        // header or footnote line
+      }
+    }
+
+    return quantiles(rows, splits);
+  }
+
+  /**
+   * Picks evenly spaced rows from the sorted sample, dropping duplicates
+   *
+   * @param rows
+   * @param splits
+   * @return
+   */
+  static SortedSet<Text> quantiles(List<byte[]> rows, int splits) {
+
+    Collections.sort(rows, new Comparator<byte[]>() {
+
+      @Override
+      public int compare(byte[] a, byte[] b) {
+        return WritableComparator.compareBytes(a, 0, a.length, b, 0, b.length);
+      }
+    });
+
+    SortedSet<Text> splitPoints = new TreeSet<>();
+    if (rows.isEmpty()) {
+      return splitPoints;
+    }
+
+    for (int i = 1; i <= splits; i++) {
+      int index = (int) ((long) i * rows.size() / (splits + 1));
+      splitPoints.add(new Text(rows.get(Math.min(index, rows.size() - 1))));
+    }
+
+    return splitPoints;
+  }
+
+  /**
+   * Reads complete records starting at random offsets in the input files
+   *
+   * @param input
+   * @param samples
+   * @return
+   * @throws IOException
+   */
+  static List<CSVRecord> sample(String input, int samples) throws IOException {
+
+    List<Path> files = ParallelIngest.resolve(input);
+
+    long[] sizes = new long[files.size()];
+    long total = 0;
+    for (int i = 0; i < files.size(); i++) {
+      sizes[i] = Files.size(files.get(i));
+      total += sizes[i];
+    }
+
+    List<CSVRecord> records = new ArrayList<>();
+    if (total == 0) {
+      return records;
+    }
+
+    Random random = new Random();
+    RandomAccessFile[] open = new RandomAccessFile[files.size()];
+
+    try {
+      for (int s = 0; s < samples; s++) {
+
+        // pick a byte uniformly over all files, then the line after it
+        long offset = (long) (random.nextDouble() * total);
+        int f = 0;
+        while (offset >= sizes[f]) {
+          offset -= sizes[f++];
+        }
+
+        if (open[f] == null) {
+          open[f] = new RandomAccessFile(files.get(f).toFile(), "r");
+        }
+
+        String line = lineAfter(open[f], offset);
+        if (line == null || line.isEmpty()) {
+          continue;
+        }
+
+        for (CSVRecord record : CSVParser.parse(line, CSVFormat.EXCEL)) {
+          if (record.size() >= 6) {
+            records.add(record);
+          }
+        }
+      }
+    } finally {
+      for (RandomAccessFile file : open) {
+        if (file != null) {
+          file.close();
+        }
+      }
+    }
+
+    return records;
+  }
+
+  private static String lineAfter(RandomAccessFile file, long offset) throws IOException {
+
+    byte[] buffer = new byte[READ_SIZE];
+
+    file.seek(offset);
+    int read = file.read(buffer);
+
+    // skip the remainder of the line the offset falls in
+    int start = 0;
+    while (start < read && buffer[start++] != '\n') {
+    }
+
+    int end = start;
+    while (end < read && buffer[end] != '\n') {
+      end++;
+    }
+
+    // lines longer than the buffer or cut off by the end of the file are skipped
+    if (end == start || (end == read && file.getFilePointer() < file.length())) {
+      return null;
+    }
+
+    return new String(buffer, start, end - start, Charset.defaultCharset());
+  }
+}
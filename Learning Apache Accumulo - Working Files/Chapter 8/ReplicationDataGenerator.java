@@ -3,23 +3,18 @@ package com.oreilly.accumulotraining;
 import java.util.Iterator;
 import java.util.Random;
 import java.util.UUID;
-
 import java.util.concurrent.TimeUnit;
+
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.accumulo.core.client.AccumuloException;
 import org.apache.accumulo.core.client.AccumuloSecurityException;
 import org.apache.accumulo.core.client.BatchWriter;
-import org.apache.accumulo.core.client.BatchWriterConfig;
 import org.apache.accumulo.core.client.Connector;
-import org.apache.accumulo.core.client.Durability;
-import org.apache.accumulo.core.client.Instance;
 import org.apache.accumulo.core.client.MutationsRejectedException;
 import org.apache.accumulo.core.client.TableExistsException;
 import org.apache.accumulo.core.client.TableNotFoundException;
-import org.apache.accumulo.core.client.ZooKeeperInstance;
-import org.apache.accumulo.core.client.security.tokens.PasswordToken;
 import org.apache.accumulo.core.data.Mutation;
 import org.apache.accumulo.core.data.Value;
 
@@ -39,9 +34,7 @@ public class ReplicationDataGenerator {
 		try {
 			
 			System.out.println("connecting to accumulo ...");
-			Instance inst = new ZooKeeperInstance(instanceName, zookeepers);
-			System.out.println("got instance");
-			Connector conn = inst.getConnector(username, new PasswordToken(password));
+			Connector conn = ConnectionManager.shared().getConnector(instanceName, zookeepers, username, password);
 			System.out.println("got connector");
 			
 			if(!conn.tableOperations().exists(table)) {
@@ -49,14 +42,6 @@ public class ReplicationDataGenerator {
 				conn.tableOperations().create(table);
 			}
 			
-			BatchWriterConfig config = new BatchWriterConfig();
-			config.setMaxLatency(1, TimeUnit.SECONDS);
-			config.setMaxMemory(10240);
-			config.setDurability(Durability.DEFAULT);
-			config.setMaxWriteThreads(10);
-			
-			BatchWriter writer = conn.createBatchWriter(table, config);
-			
       Random random = new Random();
       StringBuilder dummyStringBuilder = new StringBuilder();
       for(int i=0; i < 1024; i++) {
@@ -89,13 +74,22 @@ public class ReplicationDataGenerator {
         }
       };
       
-			System.out.println("Writing 50,000 1k records ...");
-			while(records.hasNext()) {
+			try (IngestMetrics metrics = new IngestMetrics(table).startLogging(10, TimeUnit.SECONDS)) {
+				
+				// records are generated while earlier ones are being sent
+				BatchWriter writer = new PipelinedBatchWriter(
+						metrics.meter(new AdaptiveBatchWriterFactory().createBatchWriter(conn, table)));
+				
+				System.out.println("Writing 50,000 1k records ...");
+				while(records.hasNext()) {
+					
+					writer.addMutation(records.next());
+					metrics.addRecords(1);
+				}
 				
-				writer.addMutation(records.next());
+				writer.close();
 			}
 			
-			writer.close();
 			System.out.println("done.");
       
 		} catch (MutationsRejectedException ex) {